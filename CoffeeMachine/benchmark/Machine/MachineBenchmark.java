@@ -0,0 +1,203 @@
+package Machine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Benchmarks for the order path of the machine. It lives in the Machine package so that it can create machines from generated settings files 
+ * and call the ingredient commit path directly, without going through the singleton.
+ * 
+ * Each benchmark runs a warmup phase followed by a measured phase on a number of threads. Preparation time is set to zero so only the work of the machine is measured.
+ * Every benchmark prints one JSON line with its parameters, throughput, rejections and latency percentiles, so results can be collected and compared between changes.
+ * The machine prints a line for each order, so System.out is silenced while the benchmarks run and the results are written to the original output and to the optional file given as first argument.
+ * 
+ * The benchmarks are:
+ * 1. commit: the ingredient check and reservation of one order, from 1 to n threads, with recipes of 4 to 64 ingredients.
+ *    With shared recipes every beverage uses the same ingredients, with disjoint recipes each thread orders a beverage which shares no ingredient with the others.
+ * 2. order: the full order flow through submitOrder, the admission queue and the outlets, from 1 to n threads.
+ * 3. restock: the full order flow while another thread keeps restocking one ingredient.
+ *    A restock while the last one is still being refilled does not make it any longer, so beverage_0 orders wait out one refill at a time while the other beverages keep flowing.
+ *    Its latencies show both the orders held back by the refill and what the restocks cost the orders which are not.
+ */
+public class MachineBenchmark {
+	
+	private static final long WARMUP_MILLIS = 1000;
+	private static final long MEASURE_MILLIS = 2000;
+	//latency samples kept per thread. Older samples are overwritten once this is full.
+	private static final int SAMPLES = 1 << 18;
+	
+	private static PrintStream out;
+	private static FileWriter results_file;
+	
+	interface Operation {
+		void run(int thread) throws Exception;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		out = System.out;
+		if (args.length > 0) {
+			results_file = new FileWriter(args[0]);
+		}
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		int max_threads = Runtime.getRuntime().availableProcessors();
+		
+		for (int recipe_size: new int[] {4, 16, 64}) {
+			for (boolean shared: new boolean[] {true, false}) {
+				for (int threads=1; threads<=max_threads; threads*=2) {
+					Machine machine = createMachine(threads, threads, recipe_size, shared);
+					run("commit", machine, recipe_size, shared, threads, thread -> machine.verifyAndPrepareBeverage("beverage_" + thread));
+				}
+			}
+		}
+		
+		for (int threads=1; threads<=max_threads; threads*=2) {
+			Machine machine = createMachine(threads, threads, 4, false);
+			run("order", machine, 4, false, threads, thread -> requirePrepared(machine.submitOrder("beverage_" + thread).join()));
+		}
+		
+		//at least one thread orders a beverage which does not wait for the refill.
+		int threads = Math.max(2, max_threads - 1);
+		Machine machine = createMachine(threads, threads, 4, false);
+		AtomicBoolean restocking = new AtomicBoolean(true);
+		Thread restocker = new Thread(() -> {
+			while (restocking.get()) {
+				machine.fullRestockToInitialCapacity(new String[] {"ingredient_0"});
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		restocker.start();
+		run("restock", machine, 4, false, threads, thread -> requirePrepared(machine.submitOrder("beverage_" + thread).join()));
+		restocking.set(false);
+		restocker.join();
+		
+		if (results_file != null) {
+			results_file.close();
+		}
+		System.exit(0);
+	}
+	
+	private static void requirePrepared(OrderResult result) {
+		if (!result.isPrepared()) {
+			throw new IllegalStateException(result.getMessage());
+		}
+	}
+	
+	/*
+	 * Writes a settings file for a machine with the given outlets and beverages and creates the machine from it.
+	 * Ingredient stock is as large as it can be and each recipe uses 1 of each ingredient, so a benchmark never runs out.
+	 */
+	static Machine createMachine(int outlets, int beverages, int recipe_size, boolean shared) throws IOException {
+		int ingredient_count = shared ? recipe_size : recipe_size * beverages;
+		StringBuilder json = new StringBuilder();
+		json.append("{\"machine\": {\"outlets\": {\"count_n\": ").append(outlets).append("}, ");
+		json.append("\"execution\": {\"mode\": \"timer\", \"threads\": ").append(outlets).append("}, ");
+		json.append("\"admission\": {\"queue_capacity\": ").append(outlets * 4).append(", \"policy\": \"block\", \"timeout_ms\": 10000}, ");
+		json.append("\"total_items_quantity\": {");
+		for (int i=0; i<ingredient_count; i++) {
+			json.append(i == 0 ? "" : ", ").append("\"ingredient_").append(i).append("\": ").append(Integer.MAX_VALUE);
+		}
+		json.append("}, \"beverages\": {");
+		for (int b=0; b<beverages; b++) {
+			json.append(b == 0 ? "" : ", ").append("\"beverage_").append(b).append("\": {");
+			for (int k=0; k<recipe_size; k++) {
+				int ingredient = shared ? k : b * recipe_size + k;
+				json.append(k == 0 ? "" : ", ").append("\"ingredient_").append(ingredient).append("\": 1");
+			}
+			json.append("}");
+		}
+		json.append("}}}");
+		
+		File settings = File.createTempFile("machine-benchmark", ".json");
+		settings.deleteOnExit();
+		try (FileWriter writer = new FileWriter(settings)) {
+			writer.write(json.toString());
+		}
+		Machine machine = new Machine(settings.getPath());
+		machine.SetPreparationTime(0);
+		return machine;
+	}
+	
+	//runs the operation on the given number of threads for the warmup and then the measured duration, and reports the measured phase.
+	private static void run(String name, Machine machine, int recipe_size, boolean shared, int threads, Operation operation) throws Exception {
+		AtomicBoolean measuring = new AtomicBoolean(false);
+		AtomicBoolean running = new AtomicBoolean(true);
+		long[][] samples = new long[threads][SAMPLES];
+		long[] ops = new long[threads];
+		long[] rejected = new long[threads];
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t=0; t<threads; t++) {
+			int thread = t;
+			new Thread(() -> {
+				long count = 0;
+				while (running.get()) {
+					boolean measured = measuring.get();
+					long start = System.nanoTime();
+					try {
+						operation.run(thread);
+					} catch (Exception e) {
+						if (measured) {
+							rejected[thread]++;
+						}
+					}
+					if (measured) {
+						samples[thread][(int)(count++ & (SAMPLES - 1))] = System.nanoTime() - start;
+					}
+				}
+				ops[thread] = count;
+				done.countDown();
+			}).start();
+		}
+		Thread.sleep(WARMUP_MILLIS);
+		long start = System.nanoTime();
+		measuring.set(true);
+		Thread.sleep(MEASURE_MILLIS);
+		running.set(false);
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		long total = 0;
+		long total_rejected = 0;
+		int kept = 0;
+		for (int t=0; t<threads; t++) {
+			total += ops[t];
+			total_rejected += rejected[t];
+			kept += (int)Math.min(ops[t], SAMPLES);
+		}
+		long[] latencies = new long[kept];
+		int at = 0;
+		for (int t=0; t<threads; t++) {
+			int n = (int)Math.min(ops[t], SAMPLES);
+			System.arraycopy(samples[t], 0, latencies, at, n);
+			at += n;
+		}
+		Arrays.sort(latencies);
+		
+		String line = String.format("{\"benchmark\": \"%s\", \"recipe_size\": %d, \"recipes\": \"%s\", \"threads\": %d, \"ops\": %d, \"rejected\": %d, \"ops_per_sec\": %.1f, "
+				+ "\"p50_ns\": %d, \"p90_ns\": %d, \"p99_ns\": %d, \"p999_ns\": %d, \"max_ns\": %d}",
+				name, recipe_size, shared ? "shared" : "disjoint", threads, total, total_rejected, total / seconds,
+				percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 0.999), latencies.length == 0 ? 0 : latencies[latencies.length - 1]);
+		out.println(line);
+		if (results_file != null) {
+			results_file.write(line + "\n");
+			results_file.flush();
+		}
+	}
+	
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[(int)Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))];
+	}
+}
@@ -0,0 +1,8 @@
+package CustomExceptions;
+
+//thrown while creating a machine from a settings file which does not describe a valid machine. The location is the path of the bad value in the file, like $.machine.beverages.hot_tea.hot_water
+public class InvalidSettingsException extends IllegalArgumentException {
+	public InvalidSettingsException(String file, String location, String problem) {
+		super("Invalid settings in " + file + " at " + location + ": " + problem);
+	}
+}
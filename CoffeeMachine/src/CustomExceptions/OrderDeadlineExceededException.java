@@ -0,0 +1,8 @@
+package CustomExceptions;
+
+public class OrderDeadlineExceededException extends Exception {
+
+	public OrderDeadlineExceededException(String beverage, long waited_millis) {
+		super(beverage + " order expired after waiting " + waited_millis + " ms for an outlet.");
+	}
+}
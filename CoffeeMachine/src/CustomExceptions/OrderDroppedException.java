@@ -0,0 +1,8 @@
+package CustomExceptions;
+
+public class OrderDroppedException extends Exception {
+
+	public OrderDroppedException(String beverage) {
+		super(beverage + " order was dropped from the waiting queue to make room for a newer order.");
+	}
+}
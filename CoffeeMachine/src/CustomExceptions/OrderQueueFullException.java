@@ -0,0 +1,9 @@
+package CustomExceptions;
+
+public class OrderQueueFullException extends Exception {
+
+	//thrown for every order turned away while the machine is overloaded, so it skips filling in a stack trace nobody reads. The order result only keeps the message.
+	public OrderQueueFullException(int capacity) {
+		super("All Outlets are busy and " + capacity + " orders are already waiting. Please try again later", null, false, false);
+	}
+}
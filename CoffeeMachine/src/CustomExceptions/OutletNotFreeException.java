@@ -2,7 +2,8 @@ package CustomExceptions;
 
 public class OutletNotFreeException extends Exception {
 
+	//like OrderQueueFullException, thrown for every order while the machine is overloaded, so it has no stack trace.
 	public OutletNotFreeException() {
-		super("All Outlets are busy serving. Please wait for an outlet to get free");
+		super("All Outlets are busy serving. Please wait for an outlet to get free", null, false, false);
 	}
 }
@@ -0,0 +1,166 @@
+package Machine;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Guards the machine against clients ordering faster than it can serve. It is asked before anything else about an order, even before the beverage is looked up,
+ * so an order it turns away costs a map lookup and a compare-and-set, and is rejected without building an exception.
+ * It is set up by the "throttle" block of the settings file. Without the block every order goes through as before:
+ *     "throttle": {"client_rate": 5, "client_burst": 10, "max_clients": 10000, "shed_utilisation": 1, "shed_queue_fill": 0.75}
+ *
+ * 1. Rate limit: every source placing orders, like a kiosk or a client of the OrderServer, gets a token bucket of client_burst orders refilled at client_rate orders per second.
+ *    An order finding the bucket of its source empty is rejected with RATE_LIMITED. Orders without a source come from the machine itself and are not limited.
+ *    The bucket is kept as the single time at which it will be full again, the generic cell rate algorithm, so taking a token is one compare-and-set and takes no lock.
+ *    Sources whose bucket is full again are forgotten once more than max_clients are known, and while that many are active the new ones share a bucket.
+ *    Forgetting is done a few sources at a time: a new source finding max_clients known looks at the next EVICT_STEP of them, carrying on where the last one stopped,
+ *    and goes to the shared bucket if that made no room. So a flood of new sources costs each of its orders a bounded amount of work instead of a scan of every source.
+ * 2. Load shedding: once shed_utilisation of the outlets are busy and the admission queue is fuller than shed_queue_fill, a share of the low priority orders is rejected
+ *    with SHED before it takes a place in the queue. The share grows with the queue: BULK orders are shed from none at the threshold to all of them with a full queue,
+ *    NORMAL orders start being shed half way from the threshold to full, and INTERACTIVE orders are never shed. The shed orders are spread evenly over the orders
+ *    of their priority rather than drawn at random, so a Simulation sheds the same orders every run.
+ */
+final class AdmissionControl {
+
+	static final String RATE_LIMITED_MESSAGE = "Too many orders from this client. Please try again later";
+	static final String SHED_MESSAGE = "The machine is too busy for this order right now. Please try again later";
+
+	//the time the bucket of a source is full again. Each token taken moves it one interval later, and a bucket can not be more than burst intervals behind.
+	private static final class Bucket {
+		final AtomicLong full_at;
+
+		Bucket(long now) {
+			full_at = new AtomicLong(now);
+		}
+
+		void giveBack(long interval) {
+			full_at.addAndGet(-interval);
+		}
+
+		boolean take(long now, long interval, long tolerance) {
+			while (true) {
+				long at = full_at.get();
+				long from = at - now < 0 ? now : at;
+				if (from - now > tolerance) {
+					return false;
+				}
+				if (full_at.compareAndSet(at, from + interval)) {
+					return true;
+				}
+			}
+		}
+	}
+
+	private static final String SHARED = "";
+	//known sources looked at for forgetting per new source once max_clients are known.
+	private static final int EVICT_STEP = 16;
+
+	private final Machine machine;
+	private final long interval_nanos;
+	private final long tolerance_nanos;
+	private final int max_clients;
+	private final double shed_utilisation;
+	private final double shed_queue_fill;
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+	//the sweep over the known sources for forgetting, only used by the thread holding evicting. Other threads do not wait for it.
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private Iterator<Bucket> sweep;
+	//orders seen of each priority while shedding, by ordinal, to spread the shed ones evenly.
+	private final AtomicLong[] seen = new AtomicLong[OrderPriority.values().length];
+
+	//a rate of 0 turns the rate limit off, and a queue fill of 1 turns shedding off.
+	AdmissionControl(Machine _machine, double client_rate, int client_burst, int _max_clients, double _shed_utilisation, double _shed_queue_fill) {
+		machine = _machine;
+		interval_nanos = client_rate > 0 ? (long)(1e9 / client_rate) : 0;
+		tolerance_nanos = interval_nanos * Math.max(0, client_burst - 1);
+		max_clients = _max_clients;
+		shed_utilisation = _shed_utilisation;
+		shed_queue_fill = _shed_queue_fill;
+		for (int i=0; i<seen.length; i++) {
+			seen[i] = new AtomicLong();
+		}
+	}
+
+	//NONE if the order may go ahead, or the reason it is turned away.
+	OrderResult.FailureReason admit(String source, OrderPriority priority, long now) {
+		if (interval_nanos > 0 && source != null && !source.isEmpty() && !bucket(source, now).take(now, interval_nanos, tolerance_nanos)) {
+			return OrderResult.FailureReason.RATE_LIMITED;
+		}
+		if (priority != OrderPriority.INTERACTIVE && shed_queue_fill < 1 && shed(priority)) {
+			return OrderResult.FailureReason.SHED;
+		}
+		return OrderResult.FailureReason.NONE;
+	}
+
+	//gives back the token admit took from the source, for a request which did not go ahead. A source forgotten since is left as it is.
+	void refund(String source) {
+		if (interval_nanos > 0 && source != null && !source.isEmpty()) {
+			Bucket bucket = buckets.get(source);
+			if (bucket == null) {
+				bucket = buckets.get(SHARED);
+			}
+			if (bucket != null) {
+				bucket.giveBack(interval_nanos);
+			}
+		}
+	}
+
+	private Bucket bucket(String source, long now) {
+		Bucket bucket = buckets.get(source);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (buckets.size() >= max_clients) {
+			evict(now);
+			if (buckets.size() >= max_clients) {
+				return buckets.computeIfAbsent(SHARED, shared -> new Bucket(now));
+			}
+		}
+		return buckets.computeIfAbsent(source, added -> new Bucket(now));
+	}
+
+	//forgets the sources with a full bucket among the next EVICT_STEP known ones. A thread finding another one at it goes on without forgetting any.
+	private void evict(long now) {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			for (int i=0; i<EVICT_STEP; i++) {
+				if (sweep == null || !sweep.hasNext()) {
+					sweep = buckets.values().iterator();
+					if (!sweep.hasNext()) {
+						return;
+					}
+				}
+				if (sweep.next().full_at.get() - now <= 0) {
+					sweep.remove();
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	private boolean shed(OrderPriority priority) {
+		int outlets = machine.getOutletCount();
+		if (machine.getBusyOutletCount() < shed_utilisation * outlets) {
+			return false;
+		}
+		int capacity = machine.getQueueCapacity();
+		double fill = capacity == 0 ? 1 : (double)machine.getWaitingOrderCount() / capacity;
+		double pressure = Math.min(1, Math.max(0, (fill - shed_queue_fill) / (1 - shed_queue_fill)));
+		double share = priority == OrderPriority.BULK ? pressure : Math.max(0, 2*pressure - 1);
+		if (share <= 0) {
+			return false;
+		}
+		long n = seen[priority.ordinal()].incrementAndGet();
+		return (long)(n * share) != (long)((n - 1) * share);
+	}
+
+	//sources with a bucket. At most max_clients, plus the shared one.
+	int getClientCount() {
+		return buckets.size();
+	}
+}
@@ -0,0 +1,161 @@
+package Machine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import CustomExceptions.OrderDeadlineExceededException;
+import CustomExceptions.OrderDroppedException;
+import CustomExceptions.OrderQueueFullException;
+import CustomExceptions.OutletNotFreeException;
+
+/*
+ * A bounded waiting queue in front of the outlets. An order goes straight to an outlet if one is free and no order is waiting ahead of it, otherwise it waits here.
+ * Whenever an outlet becomes free, the machine drains the queue into the free outlets. Waiting orders are handed out by a FairQueue, which shares the outlets among the sources
+ * of the orders by the weight of their priority and lets orders waiting longer than the aging time go first. Untagged orders are served in arrival order.
+ * With the "most_served" ordering, a CommitPlanner looks at a window of the waiting orders and picks the one which lets the current stock serve the most drinks,
+ * and its ingredients are reserved as it is dispatched so the next plan sees them taken.
+ * An order which waited longer than its deadline is rejected instead of being prepared late.
+ * When the queue is full, the policy from the "admission" block of the settings file decides what happens:
+ * 1. reject: the new order is rejected right away.
+ * 2. block: the caller waits up to the configured timeout for room in the queue, and the order is rejected if no room was made.
+ * 3. drop_oldest: the order waiting the longest is rejected to make room for the new one, whatever its priority.
+ * A queue capacity of 0 keeps the old behavior of rejecting every order which finds all the outlets busy.
+ */
+class AdmissionQueue {
+	
+	static final String REJECT = "reject";
+	static final String BLOCK = "block";
+	static final String DROP_OLDEST = "drop_oldest";
+	
+	static final String FAIR = "fair";
+	static final String MOST_SERVED = "most_served";
+	
+	private final Machine machine;
+	private final FairQueue waiting;
+	private final int capacity;
+	private final String policy;
+	private final long block_timeout_millis;
+	private final long default_deadline_millis;
+	//null unless the orders are planned to serve the most drinks. The window is the waiting orders it looks at.
+	private final CommitPlanner planner;
+	private final List<BeverageOrder> window = new ArrayList<>();
+	
+	//weights are indexed by the ordinal of the OrderPriority. An aging time of 0 turns aging off. The planner is null to hand out the orders in fair order.
+	AdmissionQueue(Machine _machine, int _capacity, String _policy, long _block_timeout_millis, long _default_deadline_millis, int[] _weights, long _aging_millis, 
+			CommitPlanner _planner) {
+		if (_policy == null) {
+			_policy = REJECT;
+		}
+		if (!REJECT.equals(_policy) && !BLOCK.equals(_policy) && !DROP_OLDEST.equals(_policy)) {
+			throw new IllegalArgumentException("Unknown admission policy: " + _policy);
+		}
+		machine = _machine;
+		capacity = _capacity;
+		policy = _policy;
+		block_timeout_millis = _block_timeout_millis;
+		default_deadline_millis = _default_deadline_millis;
+		planner = _planner;
+		waiting = new FairQueue(_weights, _aging_millis, capacity);
+	}
+	
+	//deadline in milliseconds given to orders placed without their own deadline. 0 means orders wait as long as it takes.
+	long getDefaultDeadlineMillis() {
+		return default_deadline_millis;
+	}
+	
+	//sends the order to a free outlet or makes it wait according to the policy. Throws if the order can neither be prepared now nor wait.
+	void admit(BeverageOrder order) throws Exception {
+		BeverageOrder dropped = null;
+		synchronized (this) {
+			if (waiting.isEmpty() && machine.dispatch(order, planner != null)) {
+				return;
+			}
+			if (capacity == 0) {
+				throw new OutletNotFreeException();
+			}
+			if (waiting.size() >= capacity) {
+				if (BLOCK.equals(policy)) {
+					long wait_until = System.currentTimeMillis() + block_timeout_millis;
+					long remaining = block_timeout_millis;
+					while (waiting.size() >= capacity && remaining > 0) {
+						wait(remaining);
+						remaining = wait_until - System.currentTimeMillis();
+					}
+					if (waiting.size() >= capacity) {
+						throw new OrderQueueFullException(capacity);
+					}
+				} else if (DROP_OLDEST.equals(policy)) {
+					dropped = waiting.peekOldest();
+					waiting.remove(dropped, false);
+				} else {
+					throw new OrderQueueFullException(capacity);
+				}
+			}
+			waiting.add(order);
+		}
+		if (dropped != null) {
+			dropped.rejected(new OrderDroppedException(dropped.getBeverage()));
+		}
+		//an outlet may have become free while the order was being queued.
+		drain();
+	}
+	
+	//moves waiting orders into free outlets, in the order the fair queue hands them out or the planner picks them. Orders past their deadline are rejected on the way.
+	void drain() {
+		List<BeverageOrder> expired = null;
+		synchronized (this) {
+			long now = machine.nanoTime();
+			while (!waiting.isEmpty()) {
+				BeverageOrder next = next(now);
+				if (next.isExpired(now)) {
+					waiting.remove(next, false);
+					if (expired == null) {
+						expired = new ArrayList<>();
+					}
+					expired.add(next);
+				} else if (machine.dispatch(next, planner != null)) {
+					waiting.remove(next, true);
+				} else {
+					break;
+				}
+			}
+			notifyAll();
+		}
+		if (expired != null) {
+			for (BeverageOrder order: expired) {
+				order.rejected(new OrderDeadlineExceededException(order.getBeverage(), order.getWaitedMillis()));
+			}
+		}
+	}
+	
+	private BeverageOrder next(long now) {
+		if (planner == null) {
+			return waiting.peek(now);
+		}
+		waiting.window(now, planner.getWindow(), window);
+		return planner.choose(window, machine.getIngredientTable());
+	}
+	
+	int getCapacity() {
+		return capacity;
+	}
+	
+	synchronized boolean hasRoom() {
+		return waiting.size() < capacity;
+	}
+	
+	synchronized int size() {
+		return waiting.size();
+	}
+	
+	//same as size, without taking the lock, for checks on every order which can live with a count a moment old.
+	int depth() {
+		return waiting.size();
+	}
+	
+	//how long the order waiting the longest has been waiting. 0 if nothing is waiting.
+	synchronized long getLongestWaitMillis() {
+		BeverageOrder oldest = waiting.peekOldest();
+		return oldest == null ? 0 : oldest.getWaitedMillis();
+	}
+}
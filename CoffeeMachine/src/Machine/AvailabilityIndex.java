@@ -0,0 +1,108 @@
+package Machine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps one bit per beverage telling whether the current stock can make at least one of it.
+ * An order for a beverage whose bit is clear is rejected by the sanity checks, before it takes a place in the admission queue or touches any ingredient.
+ *
+ * The bits are kept up to date incrementally. For every ingredient id the index knows which beverages use it and how much of it they need.
+ * When the level of an ingredient changes, only the beverages for which the level crossed their required quantity are checked again.
+ * Most orders cross nothing, so they pay one comparison per beverage using the ingredient.
+ *
+ * A bit is only a hint while other threads are changing the stock. Whoever writes a bit checks the stock once more afterwards and writes again if it changed in between,
+ * so a bit can not stay wrong once the changes stop. The machine still reserves the ingredients with compare-and-set, so a stale set bit can never oversell.
+ */
+final class AvailabilityIndex implements IngredientListener {
+
+	private final Machine machine;
+	//beverages by their id.
+	private final Beverage[] beverages;
+	//for each ingredient id, the ids of the beverages using it and the quantity each of them requires, as parallel arrays.
+	private final int[][] dependents;
+	private final int[][] required;
+	private final AtomicLongArray servable;
+
+	AvailabilityIndex(Machine _machine, Beverage[] _beverages, int ingredient_count) {
+		this.machine = _machine;
+		this.beverages = _beverages;
+		this.servable = new AtomicLongArray((_beverages.length + 63) >>> 6);
+		int[] uses = new int[ingredient_count];
+		for (Beverage beverage: _beverages) {
+			for (int id: beverage.getIngredientIds()) {
+				uses[id]++;
+			}
+		}
+		this.dependents = new int[ingredient_count][];
+		this.required = new int[ingredient_count][];
+		for (int id=0; id<ingredient_count; id++) {
+			this.dependents[id] = new int[uses[id]];
+			this.required[id] = new int[uses[id]];
+			uses[id] = 0;
+		}
+		for (Beverage beverage: _beverages) {
+			int[] ids = beverage.getIngredientIds();
+			int[] quantities = beverage.getQuantities();
+			for (int i=0; i<ids.length; i++) {
+				this.dependents[ids[i]][uses[ids[i]]] = beverage.getId();
+				this.required[ids[i]][uses[ids[i]]++] = quantities[i];
+			}
+		}
+	}
+
+	//tells whether the stock could make the beverage the last time one of its ingredients crossed its required quantity.
+	boolean isServable(int beverage_id) {
+		return (this.servable.get(beverage_id >>> 6) & (1L << beverage_id)) != 0;
+	}
+
+	public void levelChanged(Ingredient ingredient, int before, int after) {
+		int id = ingredient.getId();
+		if (id < 0 || id >= this.dependents.length) {
+			return;
+		}
+		int[] beverage_ids = this.dependents[id];
+		int[] quantities = this.required[id];
+		for (int i=0; i<beverage_ids.length; i++) {
+			if ((before >= quantities[i]) != (after >= quantities[i])) {
+				refresh(beverage_ids[i]);
+			}
+		}
+	}
+
+	//an ingredient was put in the table or replaced by a new container. Every beverage using it is checked again.
+	void ingredientInstalled(int id) {
+		if (id < this.dependents.length) {
+			for (int beverage_id: this.dependents[id]) {
+				refresh(beverage_id);
+			}
+		}
+	}
+
+	void refreshAll() {
+		for (int beverage_id=0; beverage_id<this.beverages.length; beverage_id++) {
+			refresh(beverage_id);
+		}
+	}
+
+	//checks the stock for the beverage and writes its bit, until the stock read after the write agrees with it.
+	void refresh(int beverage_id) {
+		boolean written;
+		boolean now = this.beverages[beverage_id].countServable(this.machine.getIngredientTable()) > 0;
+		do {
+			write(beverage_id, now);
+			written = now;
+			now = this.beverages[beverage_id].countServable(this.machine.getIngredientTable()) > 0;
+		} while (now != written);
+	}
+
+	private void write(int beverage_id, boolean value) {
+		int word = beverage_id >>> 6;
+		long bit = 1L << beverage_id;
+		long current;
+		long next;
+		do {
+			current = this.servable.get(word);
+			next = value ? current | bit : current & ~bit;
+		} while (current != next && !this.servable.compareAndSet(word, current, next));
+	}
+}
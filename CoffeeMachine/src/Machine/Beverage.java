@@ -10,13 +10,22 @@ import CustomExceptions.NotEnoughIngredientException;
 
 /*
  *A generic beverage class. The object of this class stores the ingredient requirement info of their beverage type. 
- *This class provides functionality to check whether the current qunatity in the machine of required ingredients for the beverage is sufficient or not. 
- *It also provides functionality to deduct the required amount of ingredient quantity from their current quantity in machine when an order is successfully executed. 
+ *This class provides functionality to reserve the required amount of ingredient quantity from their current quantity in machine when an order is placed. 
+ *The reservation is all-or-nothing: either every required ingredient is available and sufficient and gets deducted, or nothing is deducted at all. 
  */
 
 public class Beverage {
 	private Map<String, Integer>required_ingredients;
 	private final String name;
+	//dense id of the beverage in its machine, used as its bit in the AvailabilityIndex.
+	private int id;
+	
+	//compiled form of the recipe used on the order path. Parallel arrays of ingredient id and quantity so that reserving does no hashing, boxing or allocation.
+	private String[] ingredient_names;
+	private int[] ingredient_ids;
+	private int[] quantities;
+	//stages of the preparation sharing the resources of the machine, in order. null if the beverage is prepared in one wait at the outlet.
+	private PreparationStage[] stages;
 	
 	public Beverage(String _name) {
 		this.required_ingredients = new HashMap<>();
@@ -27,30 +36,199 @@ public class Beverage {
 		this.required_ingredients.put(ing, quan);
 	}
 	
-	//this method takes care of deducting the required amount of ingredients used from their current quantity in the machine. 
-	//It is only called if the order is finally committed to be completed after all checks.
-	void prepare(Map<String, Ingredient> availableIngredients) {
-		// TODO Auto-generated method stub
-		Iterator<Entry<String, Integer>>it = this.required_ingredients.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<String, Integer>ing = it.next();
-			availableIngredients.get(ing.getKey()).use(ing.getValue());
+	//turns the recipe map into the id and quantity arrays. Called by the machine once the ingredient names are interned to their ids.
+	void compile(Map<String, Integer>ids, int _id) {
+		this.id = _id;
+		int size = this.required_ingredients.size();
+		this.ingredient_names = new String[size];
+		this.ingredient_ids = new int[size];
+		this.quantities = new int[size];
+		int i = 0;
+		for (Entry<String, Integer>ing: this.required_ingredients.entrySet()) {
+			this.ingredient_names[i] = ing.getKey();
+			this.ingredient_ids[i] = ids.get(ing.getKey());
+			this.quantities[i++] = ing.getValue();
 		}
 	}
-
-	//checks if all the required ingredients are available and sufficient to prepare this beverage. Throws exception otherwise.
-	boolean verify(Map<String, Ingredient>ingredients) throws Exception{
-		Iterator<Entry<String, Integer>>it = this.required_ingredients.entrySet().iterator();
-		boolean isPossible = true;
-		while (it.hasNext()) {
-			Entry<String, Integer>ing = it.next();
-			if (!ingredients.containsKey(ing.getKey())) {
-				throw new IngredientNotAvailableException(this.name, ing.getKey());
-			} else if (!ingredients.get(ing.getKey()).isSufficient(ing.getValue())) {
-				throw new NotEnoughIngredientException(this.name, ing.getKey(), ing.getValue());
-			}
-		}
-		return isPossible;
+	
+	/*
+	 * This method takes care of checking and deducting the required amount of ingredients from their current quantity in the machine in a single pass.
+	 * Every ingredient is taken out with a compare-and-set, so the order is committed only if all of them could be taken. 
+	 * If any one of them is missing or not sufficient, the quantities already taken for this order are put back and the corresponding exception is thrown.
+	 * This keeps the guarantee that an order is never committed unless it can be fulfilled, without locking the machine for other orders.
+	 * The ingredients are looked up by their id in the table of the machine. A null entry means the ingredient is not present in the machine.
+	 */
+	void reserve(Ingredient[] table) throws Exception {
+		reserve(table, 1);
+	}
+	
+	//same as reserve, for 'count' beverages of this type at once. Either all of them are reserved or none.
+	//The quantity for 'count' beverages is worked out in long, and one larger than any container can hold is simply not enough.
+	void reserve(Ingredient[] table, int count) throws Exception {
+		for (int i=0; i<this.ingredient_ids.length; i++) {
+			int id = this.ingredient_ids[i];
+			Ingredient ingredient = id < table.length ? table[id] : null;
+			long needed = Math.multiplyExact((long)this.quantities[i], count);
+			if (ingredient == null) {
+				rollback(table, i, count);
+				throw new IngredientNotAvailableException(this.name, this.ingredient_names[i]);
+			} else if (needed > Integer.MAX_VALUE || (needed > 0 && !ingredient.tryUse((int)needed))) {
+				rollback(table, i, count);
+				throw new NotEnoughIngredientException(this.name, this.ingredient_names[i], (int)Math.min(needed, Integer.MAX_VALUE));
+			}
+		}
+	}
+	
+	//puts back the ingredients of 'count' beverages which were reserved but will not be prepared.
+	void release(Ingredient[] table, int count) {
+		rollback(table, this.ingredient_ids.length, count);
+	}
+	
+	//puts back the first 'taken' ingredients of the recipe which were taken for 'count' beverages that could not be completely reserved.
+	private void rollback(Ingredient[] table, int taken, int count) {
+		for (int i=0; i<taken; i++) {
+			long taken_quantity = Math.multiplyExact((long)this.quantities[i], count);
+			if (taken_quantity > 0) {
+				table[this.ingredient_ids[i]].release((int)taken_quantity);
+			}
+		}
+	}
+	
+	//writes the ingredients taken (count > 0) or given back (count < 0) for 'count' beverages of this type to the journal.
+	void recordUse(OrderJournal journal, int count) {
+		journal.recordUse(this.ingredient_names, this.ingredient_ids, this.quantities, count);
+	}
+	
+	//throws if any ingredient of the recipe is not present in the machine.
+	void checkAvailable(Ingredient[] table) throws Exception {
+		for (int i=0; i<this.ingredient_ids.length; i++) {
+			int id = this.ingredient_ids[i];
+			if (id >= table.length || table[id] == null) {
+				throw new IngredientNotAvailableException(this.name, this.ingredient_names[i]);
+			}
+		}
+	}
+	
+	//throws the reason why the current stock can not make one of this beverage. Does nothing if it can. Nothing is taken from the stock.
+	void checkServable(Ingredient[] table) throws Exception {
+		for (int i=0; i<this.ingredient_ids.length; i++) {
+			int id = this.ingredient_ids[i];
+			if (id >= table.length || table[id] == null) {
+				throw new IngredientNotAvailableException(this.name, this.ingredient_names[i]);
+			} else if (!table[id].isSufficient(this.quantities[i])) {
+				throw new NotEnoughIngredientException(this.name, this.ingredient_names[i], this.quantities[i]);
+			}
+		}
+	}
+	
+	//gives the time the last refill of an ingredient of the recipe is over at, or 0 if none of them is being refilled at 'now'.
+	long getRefillingUntil(Ingredient[] table, long now) {
+		long latest = 0;
+		for (int id: this.ingredient_ids) {
+			long until = id < table.length && table[id] != null ? table[id].getRefillingUntil(now) : 0;
+			if (until != 0 && (latest == 0 || until - latest > 0)) {
+				latest = until;
+			}
+		}
+		return latest;
+	}
+	
+	//the reason 'count' more of this beverage can not be made: the ingredient which makes the fewest of them, with the quantity they would need.
+	NotEnoughIngredientException shortage(Ingredient[] table, int count) {
+		int scarcest = 0;
+		long fewest = Long.MAX_VALUE;
+		for (int i=0; i<this.ingredient_ids.length; i++) {
+			if (this.quantities[i] > 0) {
+				long makes = table[this.ingredient_ids[i]].getCurrent_quantity() / this.quantities[i];
+				if (makes < fewest) {
+					scarcest = i;
+					fewest = makes;
+				}
+			}
+		}
+		long needed = Math.multiplyExact((long)this.quantities[scarcest], count);
+		return new NotEnoughIngredientException(this.name, this.ingredient_names[scarcest], (int)Math.min(needed, Integer.MAX_VALUE));
+	}
+	
+	//adds the ingredient quantities of 'count' beverages to the demand array, which is indexed by ingredient id.
+	void addDemand(long[] demand, int count) {
+		for (int i=0; i<this.ingredient_ids.length; i++) {
+			demand[this.ingredient_ids[i]] += (long)this.quantities[i]*count;
+		}
+	}
+	
+	//how many of this beverage the current stock could make. Only a snapshot as other orders may take the stock at the same time.
+	int countServable(Ingredient[] table) {
+		int servable = Integer.MAX_VALUE;
+		for (int i=0; i<this.ingredient_ids.length; i++) {
+			int id = this.ingredient_ids[i];
+			if (id >= table.length || table[id] == null) {
+				return 0;
+			}
+			if (this.quantities[i] > 0) {
+				servable = Math.min(servable, table[id].getCurrent_quantity()/this.quantities[i]);
+			}
+		}
+		return servable;
+	}
+	
+	//fraction of max capacity left in the scarcest ingredient of the recipe once this beverage is made. Negative if the current stock can not make it.
+	double headroom(Ingredient[] table) {
+		double headroom = Double.MAX_VALUE;
+		for (int i=0; i<this.ingredient_ids.length; i++) {
+			int id = this.ingredient_ids[i];
+			if (id >= table.length || table[id] == null) {
+				return -1;
+			}
+			int left = table[id].getCurrent_quantity() - this.quantities[i];
+			if (left < 0) {
+				return -1;
+			}
+			headroom = Math.min(headroom, (double)left / Math.max(1, table[id].getMax_quantity()));
+		}
+		return headroom;
+	}
+	
+	boolean uses(int ingredient_id) {
+		for (int id: this.ingredient_ids) {
+			if (id == ingredient_id) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	String getName() {
+		return name;
+	}
+	
+	int getId() {
+		return id;
+	}
+	
+	String[] getIngredientNames() {
+		return ingredient_names;
+	}
+	
+	int[] getIngredientIds() {
+		return ingredient_ids;
+	}
+	
+	int[] getQuantities() {
+		return quantities;
+	}
+	
+	PreparationStage[] getStages() {
+		return stages;
+	}
+	
+	void setStages(PreparationStage[] _stages) {
+		this.stages = _stages;
+	}
+	
+	//provides a copy of the ingredient requirement of this beverage.
+	Map<String, Integer> getRequiredIngredients() {
+		return new HashMap<>(this.required_ingredients);
 	}
 	
 	
@@ -1,18 +1,131 @@
 package Machine;
 
+import java.util.concurrent.CompletableFuture;
+
 public class BeverageOrder implements Runnable {
 
 	private Machine machine;
 	private String beverage;
-	public BeverageOrder(Machine _machine, String _beverage) {
+	//the recipe the order was accepted with. It stays the same even if the menu of the machine is reloaded while the order is in flight.
+	private Beverage recipe;
+	private CompletableFuture<OrderResult> result;
+	private long submitted_at;
+	private long started_at;
+	//time of the machine clock after which the order should not be started anymore. 0 if the order can wait as long as it takes.
+	private long deadline;
+	//the outlet serving this order. It is taken when the order is dispatched and freed once the order is prepared or rejected.
+	private int outlet = OrderResult.NO_OUTLET;
+	//set for orders of a batch whose ingredients were reserved when the batch was placed. The outlet does not check ingredients again for them.
+	private boolean reserved;
+	//who placed the order and how urgent it is. The admission queue shares the outlets fairly among sources according to the weight of their priority.
+	private OrderPriority priority;
+	private String source;
+	//set by the FairQueue while the order waits in the admission queue.
+	private double finish_tag;
+	private long sequence;
+	private boolean queued;
+	public BeverageOrder(Machine _machine, Beverage _recipe, CompletableFuture<OrderResult> _result, long _submitted_at, long deadline_millis, OrderPriority _priority, String _source) {
 		machine = _machine;
-		beverage = _beverage;
+		recipe = _recipe;
+		beverage = _recipe.getName();
+		result = _result;
+		submitted_at = _submitted_at;
+		deadline = deadline_millis > 0 ? _submitted_at + deadline_millis*1000000 : 0;
+		priority = _priority;
+		source = _source;
 	}
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
-		System.out.println(machine.getBeverage(beverage));
-		
+		started_at = machine.nanoTime();
+		machine.getBeverage(this);
+	}
+	
+	void assignOutlet(int _outlet) {
+		outlet = _outlet;
+	}
+	
+	int getOutlet() {
+		return outlet;
+	}
+	
+	void markReserved() {
+		reserved = true;
+	}
+	
+	boolean isReserved() {
+		return reserved;
+	}
+	
+	//called by the outlet which prepares the order. Returns whether the ingredients were already reserved, and from then on they belong to the outlet.
+	boolean takeReservation() {
+		boolean was_reserved = reserved;
+		reserved = false;
+		return was_reserved;
+	}
+	
+	String getBeverage() {
+		return beverage;
+	}
+	
+	Beverage getRecipe() {
+		return recipe;
+	}
+	
+	OrderPriority getPriority() {
+		return priority;
+	}
+	
+	String getSource() {
+		return source;
+	}
+	
+	long getSubmittedAt() {
+		return submitted_at;
+	}
+	
+	void enqueued(double _finish_tag, long _sequence) {
+		finish_tag = _finish_tag;
+		sequence = _sequence;
+		queued = true;
+	}
+	
+	void dequeued() {
+		queued = false;
+	}
+	
+	boolean isQueued() {
+		return queued;
+	}
+	
+	double getFinishTag() {
+		return finish_tag;
+	}
+	
+	long getSequence() {
+		return sequence;
+	}
+	
+	boolean isExpired(long now) {
+		return deadline != 0 && now - deadline > 0;
+	}
+	
+	long getWaitedMillis() {
+		return (machine.nanoTime() - submitted_at)/1000000;
+	}
+	
+	void prepared() {
+		machine.complete(result, OrderResult.prepared(beverage, priority, outlet, submitted_at, started_at, machine.nanoTime()), recipe);
+	}
+	
+	//an order rejected before reaching an outlet has no start time of its own, so it is taken as the time of rejection.
+	//ingredients reserved up front for the order are given back to the machine.
+	void rejected(Exception e) {
+		if (reserved) {
+			reserved = false;
+			machine.releaseReservation(recipe);
+		}
+		long now = machine.nanoTime();
+		machine.complete(result, OrderResult.rejected(beverage, priority, e, outlet, submitted_at, started_at == 0 ? now : started_at, now), recipe);
 	}
 
 }
@@ -1,15 +1,35 @@
 package Machine;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface CoffeeMachine {
 
 	public void placeOrder(String beverage);
+	public CompletableFuture<OrderResult> submitOrder(String beverage);
+	public CompletableFuture<OrderResult> submitOrder(String beverage, long deadline_millis);
+	public CompletableFuture<OrderResult> submitOrder(String beverage, long deadline_millis, OrderPriority priority, String source);
+	public void placeOrders(Map<String, Integer> orders);
+	public List<CompletableFuture<OrderResult>> submitOrders(Map<String, Integer> orders, boolean all_or_nothing);
+	public List<CompletableFuture<OrderResult>> submitOrders(Map<String, Integer> orders, boolean all_or_nothing, OrderPriority priority, String source);
+	public boolean admitRequest(String source);
 	public void restockIngredientsByAmount(Map<String, Integer> ingredients);
 	public void fullRestockToInitialCapacity(String[] ingredients);
 	public void addUnavailableIngredientWithMaxCapacity(String ingredient, int max_capacity);
+	public void reloadMenu(String settings) throws IOException;
 	public Map<String, int[]> getIngredientsRunningLow();
+	public void addLowStockListener(LowStockListener listener);
+	public void removeLowStockListener(LowStockListener listener);
+	public Map<String, Long> getMillisToEmpty();
 	public String[] getBeverageOptions();
+	public String[] getServableBeverages();
 	public int getOutletCount();
+	public int getBusyOutletCount();
+	public boolean isOutletBusy(int outlet);
+	public int getQueuedOrderCount();
+	public long getLongestQueueWaitMillis();
 	public Map<String, Integer>getAvailableIngredients();
+	public MetricsSnapshot getMetrics();
 }
@@ -0,0 +1,110 @@
+package Machine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Picks which waiting order gets the next free outlet when stock is tight, so that the stock left serves as many drinks as possible before the next restock.
+ * Served first come first served, one hot_coffee taking 400 hot_milk can leave several hot_tea orders waiting behind it with nothing to be made from.
+ *
+ * The planner looks at a bounded window of the waiting orders, in the order the fair queue would hand them out, and packs them into the current stock greedily:
+ * each order costs the fraction of the current level of each of its ingredients it would take, summed over its recipe, and the orders with the most value for their cost go first.
+ * The value of an order is the weight of its priority, so with untagged orders this maximises the number of drinks. Orders whose ingredients are already reserved cost nothing.
+ * The next order dispatched is the first order of the window which made it into the plan, so among the orders which fit the fair order is kept.
+ * If nothing in the window fits, the head of the window is dispatched and rejected for its missing stock like before.
+ *
+ * Packing the window is a sort of at most window orders, so the plan is made again for every order sent to an outlet.
+ * Not thread safe, the admission queue calls it with its lock held and it reuses its scratch arrays.
+ */
+final class CommitPlanner {
+
+	private final int window;
+	private final int[] weights;
+	private final Integer[] by_ratio;
+	private final double[] ratios;
+	private final boolean[] planned;
+	//highest value for the cost first, then window order.
+	private final Comparator<Integer> by_value;
+	private long[] available = new long[0];
+
+	//weights are indexed by the ordinal of the OrderPriority.
+	CommitPlanner(int _window, int[] _weights) {
+		window = _window;
+		weights = _weights;
+		by_ratio = new Integer[_window];
+		ratios = new double[_window];
+		planned = new boolean[_window];
+		by_value = (a, b) -> ratios[a] != ratios[b] ? Double.compare(ratios[b], ratios[a]) : Integer.compare(a, b);
+	}
+
+	int getWindow() {
+		return window;
+	}
+
+	//the order of the window which should get the next free outlet. The window must not be empty.
+	BeverageOrder choose(List<BeverageOrder> orders, Ingredient[] table) {
+		int n = Math.min(window, orders.size());
+		if (available.length < table.length) {
+			available = new long[table.length];
+		}
+		for (int id=0; id<table.length; id++) {
+			available[id] = table[id] == null ? 0 : table[id].getCurrent_quantity();
+		}
+		for (int i=0; i<n; i++) {
+			by_ratio[i] = i;
+			planned[i] = false;
+			BeverageOrder order = orders.get(i);
+			double cost = order.isReserved() ? 0 : cost(order.getRecipe());
+			ratios[i] = cost < 0 ? -1 : weights[order.getPriority().ordinal()] / Math.max(cost, Double.MIN_VALUE);
+		}
+		Arrays.sort(by_ratio, 0, n, by_value);
+		for (int k=0; k<n; k++) {
+			int i = by_ratio[k];
+			if (ratios[i] < 0) {
+				break;
+			}
+			BeverageOrder order = orders.get(i);
+			planned[i] = order.isReserved() || take(order.getRecipe());
+		}
+		for (int i=0; i<n; i++) {
+			if (planned[i]) {
+				return orders.get(i);
+			}
+		}
+		return orders.get(0);
+	}
+
+	//fraction of the available stock the recipe takes, summed over its ingredients. -1 if the stock can not make it at all.
+	private double cost(Beverage recipe) {
+		int[] ids = recipe.getIngredientIds();
+		int[] quantities = recipe.getQuantities();
+		double cost = 0;
+		for (int j=0; j<ids.length; j++) {
+			if (quantities[j] == 0) {
+				continue;
+			}
+			long level = ids[j] < available.length ? available[ids[j]] : 0;
+			if (level < quantities[j]) {
+				return -1;
+			}
+			cost += (double)quantities[j] / level;
+		}
+		return cost;
+	}
+
+	//takes the recipe out of the stock left in the plan if all of it is there.
+	private boolean take(Beverage recipe) {
+		int[] ids = recipe.getIngredientIds();
+		int[] quantities = recipe.getQuantities();
+		for (int j=0; j<ids.length; j++) {
+			if (ids[j] >= available.length || available[ids[j]] < quantities[j]) {
+				return false;
+			}
+		}
+		for (int j=0; j<ids.length; j++) {
+			available[ids[j]] -= quantities[j];
+		}
+		return true;
+	}
+}
@@ -0,0 +1,143 @@
+package Machine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Carries the events of a machine to its subscribers through a ring buffer, without locks on the publishing side.
+ *
+ * Every published event gets the next sequence number, claimed with a compare-and-set on the cursor, and is written to the slot sequence % ring size.
+ * The slot is then marked with its sequence, which is what makes the event visible to the subscribers. Any thread of the machine can publish at the same time.
+ * Each subscriber has its own thread and its own sequence of the next event it will read. It reads every marked slot in a row as one batch and then moves its sequence past them.
+ * A publisher may only reuse a slot which every subscriber has read. If the slowest subscriber is a whole ring behind, the event is dropped and counted, so publishing never waits.
+ * With no subscribers publishing returns at once, so the machine pays nothing for the event stream unless someone listens.
+ */
+final class EventBus {
+
+	static final int DEFAULT_RING_SIZE = 4096;
+	//how long an idle subscriber thread sleeps before looking for new events.
+	private static final long IDLE_NANOS = 200000;
+
+	private final MachineEvent[] ring;
+	private final int mask;
+	private final AtomicLongArray published;
+	private final AtomicLong cursor = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private volatile Subscriber[] subscribers = new Subscriber[0];
+	//lowest sequence any subscriber still has to read, as of the last time it was worked out. Subscribers only move forward, so an old value is still a safe bound.
+	private volatile long gate;
+
+	EventBus(int ring_size) {
+		int size = Integer.highestOneBit(Math.max(2, ring_size - 1)) << 1;
+		ring = new MachineEvent[size];
+		mask = size - 1;
+		published = new AtomicLongArray(size);
+		for (int i=0; i<size; i++) {
+			published.set(i, -1);
+		}
+	}
+
+	boolean hasSubscribers() {
+		return subscribers.length != 0;
+	}
+
+	long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	void publish(MachineEvent event) {
+		Subscriber[] current = subscribers;
+		if (current.length == 0) {
+			return;
+		}
+		long sequence;
+		do {
+			sequence = cursor.get();
+			if (sequence - gate >= ring.length) {
+				//read the subscribers again, so a subscriber added since this publish started is not overrun.
+				gate = lowestSequence(subscribers, sequence);
+				if (sequence - gate >= ring.length) {
+					dropped.increment();
+					return;
+				}
+			}
+		} while (!cursor.compareAndSet(sequence, sequence + 1));
+		int slot = (int)sequence & mask;
+		ring[slot] = event;
+		published.set(slot, sequence);
+	}
+
+	private static long lowestSequence(Subscriber[] current, long upto) {
+		long lowest = upto;
+		for (Subscriber subscriber: current) {
+			lowest = Math.min(lowest, subscriber.next);
+		}
+		return lowest;
+	}
+
+	//starts a thread handing the listener every event published from now on.
+	synchronized void subscribe(MachineEventListener listener) {
+		Subscriber subscriber = new Subscriber(listener, cursor.get());
+		Subscriber[] current = Arrays.copyOf(subscribers, subscribers.length + 1);
+		current[current.length - 1] = subscriber;
+		subscribers = current;
+		subscriber.thread.start();
+	}
+
+	//stops handing events to the listener. Events already published may still reach it while its thread finishes the current batch.
+	synchronized void unsubscribe(MachineEventListener listener) {
+		Subscriber[] current = subscribers;
+		for (int i=0; i<current.length; i++) {
+			if (current[i].listener == listener) {
+				Subscriber[] remaining = new Subscriber[current.length - 1];
+				System.arraycopy(current, 0, remaining, 0, i);
+				System.arraycopy(current, i + 1, remaining, i, current.length - i - 1);
+				subscribers = remaining;
+				current[i].running = false;
+				LockSupport.unpark(current[i].thread);
+				return;
+			}
+		}
+	}
+
+	private final class Subscriber implements Runnable {
+		private final MachineEventListener listener;
+		private final Thread thread;
+		private volatile long next;
+		private volatile boolean running = true;
+
+		Subscriber(MachineEventListener _listener, long _next) {
+			listener = _listener;
+			next = _next;
+			thread = new Thread(this, "event-subscriber");
+			thread.setDaemon(true);
+		}
+
+		public void run() {
+			long read = next;
+			while (running) {
+				long last = read - 1;
+				while (last + 1 - read < ring.length && published.get((int)(last + 1) & mask) == last + 1) {
+					last++;
+				}
+				if (last < read) {
+					LockSupport.parkNanos(IDLE_NANOS);
+					continue;
+				}
+				for (long sequence=read; sequence<=last; sequence++) {
+					try {
+						listener.onEvent(ring[(int)sequence & mask], sequence == last);
+					} catch (RuntimeException e) {
+						//a failing subscriber must not stop its thread.
+						e.printStackTrace();
+					}
+				}
+				read = last + 1;
+				next = read;
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package Machine;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * The orders waiting in the admission queue, handed out by self-clocked weighted fair queuing.
+ * Every source placing orders is a flow. When an order of a flow is queued it is stamped with a finish tag: the later of the virtual time and the tag of the previous order of the flow,
+ * plus 1/weight of the priority of the order. The order with the lowest tag goes to the next free outlet, and the virtual time moves up to its tag.
+ * So a source with a long backlog only gets its share of the outlets, a source which just arrived is served next to it right away, and a higher weight gets a bigger share.
+ * Orders of a single source and priority get increasing tags, so with untagged orders the queue is first in first out like before.
+ * With aging, an order which waited longer than the aging time is handed out before any other, oldest first, so low priority orders finish in bounded time even under heavy load.
+ *
+ * Orders are kept both by tag and by arrival. An order taken through one of them is only marked as no longer queued, and skipped when it reaches the head of the other.
+ * Not thread safe, the admission queue guards it with its own lock.
+ */
+final class FairQueue {
+
+	private static final class Flow {
+		double last_finish;
+		int queued;
+	}
+
+	private static final Comparator<BeverageOrder> BY_TAG = Comparator.comparingDouble(BeverageOrder::getFinishTag).thenComparingLong(BeverageOrder::getSequence);
+
+	//cost of one order of each priority, by ordinal. The inverse of its weight.
+	private final double[] costs;
+	//0 turns aging off.
+	private final long aging_nanos;
+	private final PriorityQueue<BeverageOrder> by_tag;
+	private final ArrayDeque<BeverageOrder> by_arrival;
+	private final HashMap<String, Flow> flows = new HashMap<>();
+	private double virtual_time;
+	private long sequence;
+	//changed under the lock of the admission queue, but read without it by the AdmissionControl.
+	private volatile int size;
+
+	FairQueue(int[] weights, long aging_millis, int expected_size) {
+		costs = new double[weights.length];
+		for (int i=0; i<weights.length; i++) {
+			costs[i] = 1.0 / weights[i];
+		}
+		aging_nanos = aging_millis * 1000000;
+		by_tag = new PriorityQueue<>(Math.max(1, expected_size), BY_TAG);
+		by_arrival = new ArrayDeque<>(Math.max(1, expected_size));
+	}
+
+	void add(BeverageOrder order) {
+		Flow flow = flows.get(order.getSource());
+		if (flow == null) {
+			forgetIdleFlows();
+			flow = new Flow();
+			flows.put(order.getSource(), flow);
+		}
+		flow.last_finish = Math.max(virtual_time, flow.last_finish) + costs[order.getPriority().ordinal()];
+		flow.queued++;
+		order.enqueued(flow.last_finish, sequence++);
+		by_tag.add(order);
+		by_arrival.add(order);
+		size++;
+	}
+
+	//the order which should get the next free outlet, or null if nothing is waiting.
+	BeverageOrder peek(long now) {
+		BeverageOrder oldest = peekOldest();
+		if (oldest != null && aging_nanos > 0 && now - oldest.getSubmittedAt() >= aging_nanos) {
+			return oldest;
+		}
+		while (!by_tag.isEmpty() && !by_tag.peek().isQueued()) {
+			by_tag.poll();
+		}
+		return by_tag.peek();
+	}
+
+	//fills the list with the first orders to be handed out, at most count of them, in the order peek would give them if none were taken.
+	void window(long now, int count, List<BeverageOrder> orders) {
+		orders.clear();
+		BeverageOrder first = peek(now);
+		if (first == null) {
+			return;
+		}
+		orders.add(first);
+		//an aged first order may be anywhere in by_tag, and is put back only if it was taken out here.
+		boolean first_taken = false;
+		while (orders.size() < count && !by_tag.isEmpty()) {
+			BeverageOrder next = by_tag.poll();
+			if (next == first) {
+				first_taken = true;
+			} else if (next.isQueued()) {
+				orders.add(next);
+			}
+		}
+		for (int i=1; i<orders.size(); i++) {
+			by_tag.add(orders.get(i));
+		}
+		if (first_taken) {
+			by_tag.add(first);
+		}
+	}
+	
+	BeverageOrder peekOldest() {
+		while (!by_arrival.isEmpty() && !by_arrival.peek().isQueued()) {
+			by_arrival.poll();
+		}
+		return by_arrival.peek();
+	}
+
+	//takes a waiting order out of the queue. The virtual time only moves on for orders which were sent to an outlet.
+	void remove(BeverageOrder order, boolean served) {
+		order.dequeued();
+		size--;
+		flows.get(order.getSource()).queued--;
+		if (served) {
+			virtual_time = Math.max(virtual_time, order.getFinishTag());
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	//a flow with nothing queued whose last tag the virtual time has passed would start from the virtual time anyway, so it does not need to be kept.
+	private void forgetIdleFlows() {
+		if (flows.size() < 64) {
+			return;
+		}
+		Iterator<Flow> it = flows.values().iterator();
+		while (it.hasNext()) {
+			Flow flow = it.next();
+			if (flow.queued == 0 && flow.last_finish <= virtual_time) {
+				it.remove();
+			}
+		}
+	}
+}
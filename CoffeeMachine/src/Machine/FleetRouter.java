@@ -0,0 +1,342 @@
+package Machine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Drives a fleet of independent machines as if they were one CoffeeMachine.
+ * Each order is routed to the machine which can take it right now (beverage served, not restocking, an outlet free or room to wait, enough stock for the recipe)
+ * and which is left with the most headroom in the scarcest ingredient of the recipe after the order. 
+ * If the chosen machine still rejects the order because things changed in between, like a restock starting or another order taking the stock, 
+ * the order fails over to the next best machine. Orders rejected for reasons no other machine would change, like an unsupported beverage, are returned as they are.
+ * 
+ * The router keeps only an array of its machines. Every routing decision asks each machine for its headroom, which reads a few counters and the recipe of the beverage,
+ * so routing stays in microseconds across hundreds of machines.
+ * 
+ * Outlets of the fleet are numbered across machines: outlets of the first machine come first, then the outlets of the second one and so on.
+ * Restocks and new ingredients are applied to every machine. Ingredient levels and metrics are the totals of the fleet, 
+ * while ingredients running low are reported per machine with the index of the machine before the ingredient name, like "2:hot_milk".
+ */
+public class FleetRouter implements CoffeeMachine {
+	
+	private final Machine[] machines;
+	//the listener added to each machine for a listener of the fleet, so it can be removed again.
+	private final ConcurrentHashMap<LowStockListener, LowStockListener[]> low_stock_listeners = new ConcurrentHashMap<>();
+	
+	public FleetRouter(List<Machine> _machines) {
+		if (_machines.isEmpty()) {
+			throw new IllegalArgumentException("A fleet needs at least one machine.");
+		}
+		machines = _machines.toArray(new Machine[0]);
+	}
+	
+	//creates a fleet with a new machine for each settings file.
+	public static FleetRouter CreateFleet(String... settings) {
+		List<Machine> created = new ArrayList<>();
+		for (String s: settings) {
+			created.add(Machine.CreateMachine(s));
+		}
+		return new FleetRouter(created);
+	}
+	
+	public Machine getMachine(int index) {
+		return machines[index];
+	}
+	
+	public int getMachineCount() {
+		return machines.length;
+	}
+	
+	//index of the machine with the most headroom for the beverage among the machines not tried yet. -1 if none of them can take it.
+	private int route(String beverage, boolean[] tried) {
+		int best = -1;
+		double best_headroom = -1;
+		for (int i=0; i<machines.length; i++) {
+			if (tried != null && tried[i]) {
+				continue;
+			}
+			double headroom = machines[i].headroomFor(beverage);
+			if (headroom >= 0 && headroom > best_headroom) {
+				best = i;
+				best_headroom = headroom;
+			}
+		}
+		return best;
+	}
+	
+	private static boolean canFailOver(OrderResult result) {
+		switch (result.getFailureReason()) {
+		case NOT_ENOUGH_INGREDIENT:
+		case INGREDIENT_NOT_AVAILABLE:
+		case OUTLET_NOT_FREE:
+		case RESTOCKING:
+		case QUEUE_FULL:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public void placeOrder(String beverage) {
+		submitOrder(beverage).thenAccept(result -> System.out.println(result.getMessage()));
+	}
+
+	public CompletableFuture<OrderResult> submitOrder(String beverage) {
+		return submitOrder(beverage, -1);
+	}
+
+	//a deadline of -1 leaves the default deadline of the chosen machine.
+	public CompletableFuture<OrderResult> submitOrder(String beverage, long deadline_millis) {
+		return submitOrder(beverage, deadline_millis, OrderPriority.NORMAL, "");
+	}
+	
+	//the order keeps its priority and source on whichever machine it is routed to.
+	public CompletableFuture<OrderResult> submitOrder(String beverage, long deadline_millis, OrderPriority priority, String source) {
+		return submitOrder(beverage, deadline_millis, priority, source, new boolean[machines.length], null);
+	}
+	
+	private CompletableFuture<OrderResult> submitOrder(String beverage, long deadline_millis, OrderPriority priority, String source, boolean[] tried, OrderResult last) {
+		int chosen = route(beverage, tried);
+		if (chosen < 0) {
+			if (last != null) {
+				return CompletableFuture.completedFuture(last);
+			}
+			//no machine looks able to take it. Let the first one reject it with its own reason.
+			chosen = 0;
+			for (int i=0; i<tried.length; i++) {
+				tried[i] = true;
+			}
+		}
+		tried[chosen] = true;
+		Machine machine = machines[chosen];
+		CompletableFuture<OrderResult> placed = machine.submitOrder(beverage, deadline_millis, priority, source);
+		return placed.thenCompose(result -> result.isPrepared() || !canFailOver(result) ? CompletableFuture.completedFuture(result) 
+				: submitOrder(beverage, deadline_millis, priority, source, tried, result));
+	}
+
+	public void placeOrders(Map<String, Integer> orders) {
+		for (CompletableFuture<OrderResult> result: submitOrders(orders, false)) {
+			result.thenAccept(r -> System.out.println(r.getMessage()));
+		}
+	}
+
+	/*
+	 * An all-or-nothing batch is sent whole to the machine with the most headroom for all of its beverages, so its reservation stays a single pass on one machine.
+	 * Otherwise every beverage of the batch is routed on its own.
+	 */
+	public List<CompletableFuture<OrderResult>> submitOrders(Map<String, Integer> orders, boolean all_or_nothing) {
+		return submitOrders(orders, all_or_nothing, OrderPriority.NORMAL, "");
+	}
+	
+	public List<CompletableFuture<OrderResult>> submitOrders(Map<String, Integer> orders, boolean all_or_nothing, OrderPriority priority, String source) {
+		Machine.checkBatch(orders);
+		if (all_or_nothing) {
+			int best = 0;
+			double best_headroom = -1;
+			for (int i=0; i<machines.length; i++) {
+				double headroom = Double.MAX_VALUE;
+				for (String beverage: orders.keySet()) {
+					headroom = Math.min(headroom, machines[i].headroomFor(beverage));
+				}
+				if (headroom > best_headroom) {
+					best = i;
+					best_headroom = headroom;
+				}
+			}
+			return machines[best].submitOrders(orders, true, priority, source);
+		}
+		List<CompletableFuture<OrderResult>> results = new ArrayList<>();
+		for (Entry<String, Integer> e: orders.entrySet()) {
+			for (int i=0; i<e.getValue(); i++) {
+				results.add(submitOrder(e.getKey(), -1, priority, source));
+			}
+		}
+		return results;
+	}
+
+	//a request to the fleet, like a restock, goes to every machine, so it takes a token from the rate limit of each of them. If one machine refuses it, the others get theirs back.
+	public boolean admitRequest(String source) {
+		for (int i=0; i<machines.length; i++) {
+			if (!machines[i].admitRequest(source)) {
+				for (int j=0; j<i; j++) {
+					machines[j].refundRequest(source);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//restocks every machine or, if any of them refuses the amounts, none of them.
+	public void restockIngredientsByAmount(Map<String, Integer> ingredients) {
+		restockAll(0, ingredients);
+	}
+
+	//holds the lock of every machine, taken in fleet order, while all of them are checked and then restocked, so no restock in between can make a later one refuse.
+	private void restockAll(int index, Map<String, Integer> ingredients) {
+		if (index < machines.length) {
+			synchronized (machines[index]) {
+				restockAll(index + 1, ingredients);
+			}
+			return;
+		}
+		for (Machine machine: machines) {
+			machine.checkRestock(ingredients);
+		}
+		for (Machine machine: machines) {
+			machine.restockIngredientsByAmount(ingredients);
+		}
+	}
+
+	public void fullRestockToInitialCapacity(String[] ingredients) {
+		for (Machine machine: machines) {
+			machine.fullRestockToInitialCapacity(ingredients);
+		}
+	}
+
+	public void addUnavailableIngredientWithMaxCapacity(String ingredient, int max_capacity) {
+		for (Machine machine: machines) {
+			machine.addUnavailableIngredientWithMaxCapacity(ingredient, max_capacity);
+		}
+	}
+
+	//reloads the menu of every machine from the same file.
+	public void reloadMenu(String settings) throws IOException {
+		for (Machine machine: machines) {
+			machine.reloadMenu(settings);
+		}
+	}
+
+	public Map<String, int[]> getIngredientsRunningLow() {
+		Map<String, int[]> running_low = new HashMap<>();
+		for (int i=0; i<machines.length; i++) {
+			for (Entry<String, int[]> e: machines[i].getIngredientsRunningLow().entrySet()) {
+				running_low.put(i + ":" + e.getKey(), e.getValue());
+			}
+		}
+		return running_low;
+	}
+
+	//ingredients are told to the listener as <machine index>:<ingredient>, like in getIngredientsRunningLow.
+	public void addLowStockListener(LowStockListener listener) {
+		LowStockListener[] added = new LowStockListener[machines.length];
+		for (int i=0; i<machines.length; i++) {
+			String prefix = i + ":";
+			added[i] = (ingredient, current_quantity, used_per_second, millis_to_empty) -> 
+					listener.runningOut(prefix + ingredient, current_quantity, used_per_second, millis_to_empty);
+		}
+		if (low_stock_listeners.putIfAbsent(listener, added) != null) {
+			return;
+		}
+		for (int i=0; i<machines.length; i++) {
+			machines[i].addLowStockListener(added[i]);
+		}
+	}
+	
+	public void removeLowStockListener(LowStockListener listener) {
+		LowStockListener[] added = low_stock_listeners.remove(listener);
+		if (added == null) {
+			return;
+		}
+		for (int i=0; i<machines.length; i++) {
+			machines[i].removeLowStockListener(added[i]);
+		}
+	}
+
+	public Map<String, Long> getMillisToEmpty() {
+		Map<String, Long> millis_to_empty = new HashMap<>();
+		for (int i=0; i<machines.length; i++) {
+			for (Entry<String, Long> e: machines[i].getMillisToEmpty().entrySet()) {
+				millis_to_empty.put(i + ":" + e.getKey(), e.getValue());
+			}
+		}
+		return millis_to_empty;
+	}
+
+	public String[] getBeverageOptions() {
+		Set<String> options = new LinkedHashSet<>();
+		for (Machine machine: machines) {
+			for (String beverage: machine.getBeverageOptions()) {
+				options.add(beverage);
+			}
+		}
+		return options.toArray(new String[0]);
+	}
+
+	//a beverage is servable by the fleet if any of its machines can make it.
+	public String[] getServableBeverages() {
+		Set<String> servable = new LinkedHashSet<>();
+		for (Machine machine: machines) {
+			for (String beverage: machine.getServableBeverages()) {
+				servable.add(beverage);
+			}
+		}
+		return servable.toArray(new String[0]);
+	}
+
+	public int getOutletCount() {
+		int count = 0;
+		for (Machine machine: machines) {
+			count += machine.getOutletCount();
+		}
+		return count;
+	}
+
+	public int getBusyOutletCount() {
+		int count = 0;
+		for (Machine machine: machines) {
+			count += machine.getBusyOutletCount();
+		}
+		return count;
+	}
+
+	public boolean isOutletBusy(int outlet) {
+		for (Machine machine: machines) {
+			if (outlet <= machine.getOutletCount()) {
+				return machine.isOutletBusy(outlet);
+			}
+			outlet -= machine.getOutletCount();
+		}
+		throw new IllegalArgumentException("Outlet does not exist. Outlets are named 1 to " + getOutletCount());
+	}
+
+	public int getQueuedOrderCount() {
+		int count = 0;
+		for (Machine machine: machines) {
+			count += machine.getQueuedOrderCount();
+		}
+		return count;
+	}
+
+	public long getLongestQueueWaitMillis() {
+		long longest = 0;
+		for (Machine machine: machines) {
+			longest = Math.max(longest, machine.getLongestQueueWaitMillis());
+		}
+		return longest;
+	}
+
+	public Map<String, Integer> getAvailableIngredients() {
+		Map<String, Integer> available = new HashMap<>();
+		for (Machine machine: machines) {
+			machine.getAvailableIngredients().forEach((k, v) -> available.merge(k, v, Integer::sum));
+		}
+		return available;
+	}
+
+	public MetricsSnapshot getMetrics() {
+		List<MetricsSnapshot> snapshots = new ArrayList<>();
+		for (Machine machine: machines) {
+			snapshots.add(machine.getMetrics());
+		}
+		return MetricsSnapshot.combine(snapshots);
+	}
+}
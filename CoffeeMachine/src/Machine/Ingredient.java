@@ -1,17 +1,28 @@
 package Machine;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 public class Ingredient {
 
 	private String name;
 	private int max_quantity;
 
-	private int current_quantity;
+	//current quantity is shared by all the outlets. It is only ever changed by atomic operations so that orders never need to lock the machine.
+	private final AtomicInteger current_quantity;
 	private int low_threshold_value;
+	//total quantity used by orders since the machine started. Used for the consumption rate metrics.
+	private final LongAdder consumed = new LongAdder();
+	//id of the ingredient in the machine and the listener told about every change of the current quantity. Set by the machine when the ingredient is installed.
+	private int id = -1;
+	private volatile IngredientListener listener;
+	//time of the machine clock at which the refill of this container is over. Beverages using it are not prepared until then.
+	private volatile long refilling_until;
 	
 	public Ingredient(String _name, int _max_quantity) {
 		name = _name;
 		max_quantity = _max_quantity;
-		current_quantity = _max_quantity;
+		current_quantity = new AtomicInteger(_max_quantity);
 		low_threshold_value = max_quantity/5;
 	}
 	
@@ -19,6 +30,15 @@ public class Ingredient {
 		return name;
 	}
 	
+	int getId() {
+		return id;
+	}
+	
+	void attach(int _id, IngredientListener _listener) {
+		this.id = _id;
+		this.listener = _listener;
+	}
+	
 	int getLow_threshold_value() {
 		return low_threshold_value;
 	}
@@ -32,27 +52,78 @@ public class Ingredient {
 	}
 
 	int getCurrent_quantity() {
-		return current_quantity;
+		return current_quantity.get();
+	}
+	
+	//takes the quantity out of the container only if that much is left. The check and the deduction happen in a single compare-and-set, so two outlets can never take the same stock.
+	boolean tryUse(int quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("Can not take " + quantity + " of " + name + ". Only a positive quantity can be taken.");
+		}
+		int current;
+		do {
+			current = current_quantity.get();
+			if (current < quantity) {
+				return false;
+			}
+		} while (!current_quantity.compareAndSet(current, current - quantity));
+		consumed.add(quantity);
+		changed(current, current - quantity);
+		return true;
+	}
+	
+	//puts back a quantity taken by tryUse when the rest of the order could not be reserved.
+	void release(int quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("Can not put back " + quantity + " of " + name + ". Only a positive quantity can be put back.");
+		}
+		int after = current_quantity.addAndGet(quantity);
+		consumed.add(-quantity);
+		changed(after - quantity, after);
 	}
 	
-	void use (int quantity) {
-		this.current_quantity -= quantity;
+	long getConsumed() {
+		return consumed.sum();
 	}
 	
 	boolean isSufficient(int quantity) {
-		return this.current_quantity >= quantity;
+		return this.current_quantity.get() >= quantity;
 	}
 	
-	void restockToFullCapacity(){
-		current_quantity = max_quantity;
+	//returns the quantity added, so the change can be journaled as an amount regardless of orders running at the same time.
+	int restockToFullCapacity(){
+		int before = current_quantity.getAndSet(max_quantity);
+		changed(before, max_quantity);
+		return max_quantity - before;
 	}
 	
 	void restockByAmount(int amount) {
-		current_quantity+=amount;
+		int after = current_quantity.addAndGet(amount);
+		changed(after - amount, after);
+	}
+	
+	//returns the quantity added, which is negative if the new quantity is lower.
+	int setNewCurrentCapacity(int amount) {
+		int before = current_quantity.getAndSet(amount);
+		changed(before, amount);
+		return amount - before;
+	}
+	
+	private void changed(int before, int after) {
+		IngredientListener listener = this.listener;
+		if (listener != null) {
+			listener.levelChanged(this, before, after);
+		}
+	}
+	
+	void startRefill(long until) {
+		refilling_until = until;
 	}
 	
-	void setNewCurrentCapacity(int amount) {
-		current_quantity = amount;
+	//gives the time the refill is over at, or 0 if the container is not being refilled at 'now'.
+	long getRefillingUntil(long now) {
+		long until = refilling_until;
+		return until != 0 && until - now > 0 ? until : 0;
 	}
 	
 	void adjustThreshold(int amount) {
@@ -62,6 +133,6 @@ public class Ingredient {
 	}
 	
 	boolean isRunningLow() {
-		return this.current_quantity < this.low_threshold_value;
+		return this.current_quantity.get() < this.low_threshold_value;
 	}
 }
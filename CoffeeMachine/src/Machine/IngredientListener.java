@@ -0,0 +1,11 @@
+package Machine;
+
+/*
+ * Told by an ingredient every time its current quantity changes, with the quantity before and after the change.
+ * It is called on the thread which made the change, which is often an outlet in the middle of an order, so it must be quick and must not block.
+ * Changes made at the same time by different threads may be reported in any order.
+ */
+interface IngredientListener {
+
+	void levelChanged(Ingredient ingredient, int before, int after);
+}
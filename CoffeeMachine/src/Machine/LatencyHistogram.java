@@ -0,0 +1,94 @@
+package Machine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A lock-free latency histogram in the style of HdrHistogram. Values are in nanoseconds and fall into buckets which are a power of two wide, 
+ * each split into 32 linear sub-buckets, so any recorded value is known within about 3%. Recording is a single atomic increment and never allocates.
+ * Percentiles are reported as the middle of the bucket they fall in, which is within about 1.6% of the recorded values.
+ */
+class LatencyHistogram {
+	
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//number of buckets, for callers counting values into a plain array of their own with index and percentile.
+	static final int BUCKETS = 64 * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	
+	void record(long nanos) {
+		counts.incrementAndGet(index(Math.max(0, nanos)));
+		total.add(Math.max(0, nanos));
+	}
+	
+	long getCount() {
+		long count = 0;
+		for (int i=0; i<counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+	
+	long getTotalNanos() {
+		return total.sum();
+	}
+	
+	//value in nanoseconds at or below which the given fraction of recorded values fall. 0 if nothing was recorded.
+	long getPercentile(double fraction) {
+		long[] snapshot = new long[counts.length()];
+		for (int i=0; i<snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return percentile(snapshot, fraction);
+	}
+	
+	//same as getPercentile, over counts indexed by bucket.
+	static long percentile(long[] snapshot, double fraction) {
+		long count = 0;
+		for (int i=0; i<snapshot.length; i++) {
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i=0; i<snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return middle(i);
+			}
+		}
+		return middle(snapshot.length - 1);
+	}
+	
+	//bucket of a value in nanoseconds.
+	static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+	
+	private static long lowerBound(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		return (long)(SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << (exponent - SUB_BUCKET_BITS);
+	}
+	
+	//the bucket after the one holding the largest values would start past Long.MAX_VALUE, which wraps around.
+	private static long upperBound(int index) {
+		long next = index + 1 < BUCKETS ? lowerBound(index + 1) : 0;
+		return next > 0 ? next - 1 : Long.MAX_VALUE;
+	}
+	
+	private static long middle(int index) {
+		long lower = lowerBound(index);
+		return lower + (upperBound(index) - lower) / 2;
+	}
+}
@@ -0,0 +1,256 @@
+package Machine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/*
+ * Drives a real CoffeeMachine, a single machine or a whole FleetRouter, with orders on real time. For reproducing a morning rush on a laptop.
+ * The orders come from a recorded trace, from rush profiles of Poisson arrivals like the ones of a Simulation, or both.
+ *
+ * The load is open loop: every order has the time it was meant to be placed, and it is placed then whether the orders before it are done or not,
+ * just like customers walking up to the machine do not wait for each other. When the machine holds the caller, with the block admission policy or a busy
+ * FleetRouter, the orders after it are placed late. Timing them from when they were actually placed would leave out the wait they spent behind the stalled order,
+ * which is the coordinated omission of closed loop tests like runLargeParallelOrdersTest. So the latency of an order is taken from when it was meant to be placed
+ * to when its result came back, and the latency from when it was actually placed is reported next to it along with how late the orders were placed.
+ *
+ * A trace is a CSV or JSON lines file with one order per line, in any order:
+ *     at_ms,beverage[,priority[,source]]          like 1200,hot_tea,interactive,kiosk-2. Lines starting with # and a header as the first line are skipped
+ *     {"at_ms": 1200, "beverage": "hot_tea", "priority": "interactive", "source": "kiosk-2"}
+ * where at_ms is the time of the order from the start of the trace. Orders without a priority are normal and orders without a source are placed as "load".
+ * Files ending in .jsonl or .json are read as JSON lines, any other file as CSV.
+ */
+public final class LoadGenerator {
+
+	private static final String DEFAULT_SOURCE = "load";
+
+	//one order of the load, placed at the given time from the start.
+	private static final class Arrival implements Comparable<Arrival> {
+		final long at_nanos;
+		final String beverage;
+		final OrderPriority priority;
+		final String source;
+
+		Arrival(long _at_nanos, String _beverage, OrderPriority _priority, String _source) {
+			at_nanos = _at_nanos;
+			beverage = _beverage;
+			priority = _priority;
+			source = _source;
+		}
+
+		public int compareTo(Arrival other) {
+			return Long.compare(at_nanos, other.at_nanos);
+		}
+	}
+
+	private final CoffeeMachine machine;
+	private final List<Arrival> arrivals = new ArrayList<>();
+	private final Random random;
+	private long profile_end;
+	private double speed = 1;
+
+	//the seed draws the arrivals and beverages of the rush profiles, so the same profiles and seed always place the same orders at the same times.
+	public LoadGenerator(CoffeeMachine _machine, long seed) {
+		machine = _machine;
+		random = new Random(seed);
+	}
+
+	//adds the orders of a trace file. Can be called more than once to merge traces.
+	public void loadTrace(String path) throws IOException {
+		boolean json = path.endsWith(".jsonl") || path.endsWith(".json");
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
+			String line;
+			int number = 0;
+			boolean first = true;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					Arrival arrival = json ? jsonArrival(line) : csvArrival(line, first);
+					if (arrival != null) {
+						arrivals.add(arrival);
+					}
+					first = false;
+				} catch (IllegalArgumentException | IOException | IllegalStateException e) {
+					throw new IOException("Invalid order in " + path + " at line " + number + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	//orders arrive as a Poisson process at the given average rate for the given time, after the profiles added before.
+	//The beverage of each order is drawn from the mix by weight, like hot_tea 3 and hot_coffee 1 for three times as many teas as coffees.
+	public void addProfile(long duration_millis, double orders_per_second, Map<String, Double> mix, OrderPriority priority) {
+		if (duration_millis <= 0 || orders_per_second < 0) {
+			throw new IllegalArgumentException("A profile needs a positive duration and a rate of at least 0, not " + duration_millis + " ms at " + orders_per_second + " per second.");
+		}
+		Map<String, Double> weights = new TreeMap<>(mix);
+		String[] names = new String[weights.size()];
+		double[] cumulative = new double[weights.size()];
+		double total = 0;
+		int i = 0;
+		for (Map.Entry<String, Double> e: weights.entrySet()) {
+			if (e.getValue() < 0) {
+				throw new IllegalArgumentException("The weight of " + e.getKey() + " in the mix can not be negative.");
+			}
+			total += e.getValue();
+			names[i] = e.getKey();
+			cumulative[i++] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("The mix of the profile has no beverage with a positive weight.");
+		}
+		long end = profile_end + duration_millis*1000000;
+		long at = profile_end;
+		while (orders_per_second > 0) {
+			at += (long)(-Math.log(1 - random.nextDouble()) / orders_per_second * 1e9);
+			if (at >= end) {
+				break;
+			}
+			double pick = random.nextDouble() * total;
+			int b = 0;
+			while (b < cumulative.length - 1 && pick >= cumulative[b]) {
+				b++;
+			}
+			arrivals.add(new Arrival(at, names[b], priority, DEFAULT_SOURCE));
+		}
+		profile_end = end;
+	}
+
+	//plays the load faster than it was recorded, like 10 for an hour of trace in 6 minutes. 1, the default, is real time.
+	public void setSpeed(double _speed) {
+		if (_speed <= 0) {
+			throw new IllegalArgumentException("The speed of the load must be positive, not " + _speed);
+		}
+		speed = _speed;
+	}
+
+	public int getOrderCount() {
+		return arrivals.size();
+	}
+
+	//places every order at its time and returns once all of them have a result.
+	public LoadReport run() throws InterruptedException {
+		List<Arrival> schedule = new ArrayList<>(arrivals);
+		Collections.sort(schedule);
+		LatencyHistogram corrected = new LatencyHistogram();
+		LatencyHistogram uncorrected = new LatencyHistogram();
+		LatencyHistogram lag = new LatencyHistogram();
+		AtomicLongArray by_reason = new AtomicLongArray(OrderResult.FailureReason.values().length);
+		AtomicLong last_completed = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(schedule.size());
+		long start = System.nanoTime();
+		long max_lag = 0;
+		for (Arrival arrival: schedule) {
+			long intended = start + (long)(arrival.at_nanos / speed);
+			long now;
+			while ((now = System.nanoTime()) < intended) {
+				LockSupport.parkNanos(intended - now);
+			}
+			lag.record(now - intended);
+			max_lag = Math.max(max_lag, now - intended);
+			long placed = now;
+			machine.submitOrder(arrival.beverage, -1, arrival.priority, arrival.source).whenComplete((result, e) -> {
+				long completed = System.nanoTime();
+				corrected.record(completed - intended);
+				uncorrected.record(completed - placed);
+				by_reason.incrementAndGet(result == null ? OrderResult.FailureReason.INTERNAL_ERROR.ordinal() : result.getFailureReason().ordinal());
+				last_completed.accumulateAndGet(completed, Math::max);
+				done.countDown();
+			});
+		}
+		long placed_all = System.nanoTime();
+		done.await();
+		long[] reasons = new long[by_reason.length()];
+		for (int i=0; i<reasons.length; i++) {
+			reasons[i] = by_reason.get(i);
+		}
+		long scheduled = (long)(Math.max(profile_end, schedule.isEmpty() ? 0 : schedule.get(schedule.size() - 1).at_nanos) / speed);
+		return new LoadReport(schedule.size(), reasons, scheduled, placed_all - start, Math.max(last_completed.get(), placed_all) - start, max_lag, corrected, uncorrected, lag);
+	}
+
+	//null for the header, which only the first line may be. Anywhere else a time which is not a number is a mistake and throws.
+	private static Arrival csvArrival(String line, boolean first) {
+		String[] fields = line.split(",", -1);
+		long at_millis;
+		try {
+			at_millis = Long.parseLong(fields[0].trim());
+		} catch (NumberFormatException e) {
+			if (first) {
+				return null;
+			}
+			throw new IllegalArgumentException("the time " + fields[0].trim() + " is not a whole number of milliseconds");
+		}
+		if (fields.length < 2 || fields.length > 4 || fields[1].isBlank()) {
+			throw new IllegalArgumentException("expected at_ms,beverage[,priority[,source]]");
+		}
+		return arrival(at_millis, fields[1].trim(), fields.length > 2 ? fields[2].trim() : null, fields.length > 3 ? fields[3].trim() : null);
+	}
+
+	private static Arrival jsonArrival(String line) throws IOException {
+		long at_millis = -1;
+		String beverage = null;
+		String priority = null;
+		String source = null;
+		try (JsonReader reader = new JsonReader(new StringReader(line))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "at_ms":
+					at_millis = reader.nextLong();
+					break;
+				case "beverage":
+					beverage = reader.nextString();
+					break;
+				case "priority":
+					priority = reader.nextString();
+					break;
+				case "source":
+					source = reader.nextString();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		if (at_millis < 0 || beverage == null) {
+			throw new IllegalArgumentException("an order needs at_ms and beverage");
+		}
+		return arrival(at_millis, beverage, priority, source);
+	}
+
+	private static Arrival arrival(long at_millis, String beverage, String priority, String source) {
+		if (at_millis < 0) {
+			throw new IllegalArgumentException("at_ms can not be negative");
+		}
+		OrderPriority parsed = OrderPriority.NORMAL;
+		if (priority != null && !priority.isEmpty()) {
+			parsed = OrderPriority.valueOf(priority.toUpperCase());
+		}
+		return new Arrival(at_millis*1000000, beverage, parsed, source == null || source.isEmpty() ? DEFAULT_SOURCE : source);
+	}
+}
@@ -0,0 +1,114 @@
+package Machine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * What came out of a LoadGenerator run. Times are on real time from the start of the run.
+ * Corrected latencies run from when an order was meant to be placed to when its result came back, the ones a customer would see.
+ * Uncorrected latencies run from when it was actually placed, the ones a closed loop test would report. A large gap between the two means the machine held its callers.
+ */
+public final class LoadReport {
+
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 1};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999", "max"};
+
+	private final long orders;
+	private final long[] by_reason;
+	private final long scheduled_nanos;
+	private final long placing_nanos;
+	private final long total_nanos;
+	private final long max_lag_nanos;
+	private final Map<String, Long> corrected;
+	private final Map<String, Long> uncorrected;
+	private final Map<String, Long> lag;
+
+	LoadReport(long _orders, long[] _by_reason, long _scheduled_nanos, long _placing_nanos, long _total_nanos, long _max_lag_nanos,
+			LatencyHistogram _corrected, LatencyHistogram _uncorrected, LatencyHistogram _lag) {
+		orders = _orders;
+		by_reason = _by_reason;
+		scheduled_nanos = _scheduled_nanos;
+		placing_nanos = _placing_nanos;
+		total_nanos = _total_nanos;
+		max_lag_nanos = _max_lag_nanos;
+		corrected = percentiles(_corrected);
+		uncorrected = percentiles(_uncorrected);
+		lag = percentiles(_lag);
+	}
+
+	public long getOrderCount() {
+		return orders;
+	}
+
+	public long getPreparedCount() {
+		return by_reason[OrderResult.FailureReason.NONE.ordinal()];
+	}
+
+	public long getRejectedCount() {
+		return orders - getPreparedCount();
+	}
+
+	public Map<String, Long> getRejectionsByReason() {
+		Map<String, Long> rejections = new LinkedHashMap<>();
+		for (OrderResult.FailureReason reason: OrderResult.FailureReason.values()) {
+			if (reason != OrderResult.FailureReason.NONE && by_reason[reason.ordinal()] > 0) {
+				rejections.put(reason.name(), by_reason[reason.ordinal()]);
+			}
+		}
+		return rejections;
+	}
+
+	//orders per second the load was meant to place.
+	public double getOfferedPerSecond() {
+		return orders * 1e9 / Math.max(1, scheduled_nanos);
+	}
+
+	//prepared orders per second from the start of the run until the last result came back.
+	public double getPreparedPerSecond() {
+		return getPreparedCount() * 1e9 / Math.max(1, total_nanos);
+	}
+
+	//real time it took to place every order, longer than the load itself when the machine held its callers.
+	public long getPlacingMillis() {
+		return placing_nanos / 1000000;
+	}
+
+	public long getTotalMillis() {
+		return total_nanos / 1000000;
+	}
+
+	//the latest an order was placed after its time.
+	public long getMaxLagMillis() {
+		return max_lag_nanos / 1000000;
+	}
+
+	public Map<String, Long> getCorrectedLatencyMillis() {
+		return corrected;
+	}
+
+	public Map<String, Long> getUncorrectedLatencyMillis() {
+		return uncorrected;
+	}
+
+	public Map<String, Long> getLagMillis() {
+		return lag;
+	}
+
+	private static Map<String, Long> percentiles(LatencyHistogram histogram) {
+		Map<String, Long> percentiles = new LinkedHashMap<>();
+		for (int i=0; i<PERCENTILES.length; i++) {
+			percentiles.put(PERCENTILE_NAMES[i], histogram.getPercentile(PERCENTILES[i]) / 1000000);
+		}
+		return percentiles;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d orders offered at %.2f per second, placed over %.1f s (%.1f s scheduled), done after %.1f s. prepared %d (%.2f per second), rejected %d %s%n"
+				+ "latency ms from the intended time %s%n"
+				+ "latency ms from the actual time   %s%n"
+				+ "placed late by ms %s",
+				orders, getOfferedPerSecond(), placing_nanos / 1e9, scheduled_nanos / 1e9, total_nanos / 1e9, getPreparedCount(), getPreparedPerSecond(), getRejectedCount(),
+				getRejectionsByReason(), corrected, uncorrected, lag);
+	}
+}
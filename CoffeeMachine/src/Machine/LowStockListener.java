@@ -0,0 +1,11 @@
+package Machine;
+
+/*
+ * Told by the machine when an ingredient is forecast to run out within the horizon set in the "forecast" block of the settings file.
+ * It is told once each time the ingredient goes below the horizon, and again only after a restock or a slower consumption has taken it back above.
+ * It is called on the forecaster thread of the machine, so it should hand any long work to another thread.
+ */
+public interface LowStockListener {
+
+	void runningOut(String ingredient, int current_quantity, double used_per_second, long millis_to_empty);
+}
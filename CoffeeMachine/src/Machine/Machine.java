@@ -1,46 +1,72 @@
 package Machine;
 
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.time.Duration;
-import java.time.Instant;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.gson.Gson;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import CustomExceptions.BeverageNotSupportedException;
+import CustomExceptions.NotEnoughIngredientException;
+import CustomExceptions.OrderDeadlineExceededException;
 import CustomExceptions.OrderWhileRestockingException;
-import CustomExceptions.OutletNotFreeException;
 
 /*
  * This class simulates a coffee machine. It has 'n' outlets (named 1 to n) and supports a single use on each outlet in parallel. Hence it can handle 'n' orders in parallel.
+ * Which outlets are busy is tracked by a lock-free OutletPool. An order takes a free outlet when it is dispatched and frees it once it is prepared or rejected.
  * Each of the outlet is independent of other and can serve any beverage supported by the machine. A user can order a beverage by providing its name.
  * On start, the machine class is instantiated by a json file which contains info about beverages served and the different ingredients used by beverages. 
  * Each ingredient is an instance of Ingredient class and is held by its name in a map in machine instance. As ingredient is shared among all the beverages, only one instance of it should be created. 
- * Each supported beverage is an instance of Beverage class and is held by the machine in a map by its name as key. 
- * It handles parallel order processing by using an ExecutorService which hold a fixed size thread pool of n threads;
+ * Each supported beverage is an instance of Beverage class and is held by the machine in a map by its name as key. The map is part of an immutable Menu,
+ * which can be replaced while the machine runs by reloading the settings file, either on request or whenever the file changes. Orders in flight finish on the recipe they were accepted with.
+ * It handles parallel order processing by using an OutletExecutor. By default it holds a fixed size thread pool of n threads, each sleeping through the preparation of its beverage.
+ * With "execution": {"mode": "timer"} in the settings file, a few threads check the orders and the completion of each beverage is scheduled on a timer, so no thread is held during preparation.
  * 
  * The flow for executing a order for beverage is as follows: 
- * 1. Once a user places an order of beverage by its name, its first checked for sanity(supported beverage name, all outlets busy). 
- * 2. A runnable job is created and is submit to executor to process. The running orders count is incremented.
- * 3. Then it is checked whether the machine is not restocking at the time. This is checked by a boolean and time flag which is set when the machine starts restocking.
- *    If sufficient time has elapsed after it started restocking, the boolean sanity checker method will unset the boolean flag and allow the order to proceed, otherwise reject it.
- *    Sufficient time above is specified by a constant. I am using it as 2 seconds.
+ * 1. Once a user places an order of beverage by its name, its first checked for sanity(supported beverage name, stock to make it). 
+ * 2. A runnable job is created and handed to the admission queue. If an outlet is free, the job takes it from the outlet pool and is submit to executor to process.
+ *    Otherwise the job waits in a bounded queue until an outlet is free or its deadline passes. What happens when the queue is full is set by the "admission" block of the settings file.
+ * 3. Before that, it is checked whether any ingredient of the beverage is being refilled. Each ingredient keeps the time its refill is over, set when it is restocked.
+ *    Orders for beverages using an ingredient being refilled are held back and handed to the admission queue once the refill is over. Other beverages keep being served meanwhile.
+ *    The refill time is specified by a constant. I am using it as 2 seconds. Without an admission queue there is no room to hold orders back, so they are rejected like before.
  * 4. the next check will be that all the required ingredients for the beverage are present in sufficient quantity. If any one of them is lacking, the order will be rejected. 
  *    In case if any of the required ingredient is currently not present in machine then also the order will be rejected. 
- * 5. If everything is favorable, the order is placed and appropriate amount of ingredients are deducted from their current quantity in machine. The thread goes to sleep for a fixed amount of time to simulate preparation time.
- * 6. The flow from ingredient sufficiency check to blocking outlet to deducting ingredients is done in a synchronous way to avoid inconsistency.  
- * 7. In case of any failure, appropriate custom exceptions are thrown which is then returned to user as a string message. In case of success, appropriate success message is returned to user.
- * 8. At the end of processing the order, the running order count is decremented. It marks the completion of the job.
+ * 5. If everything is favorable, the order is placed and appropriate amount of ingredients are deducted from their current quantity in machine. The outlet stays busy for a fixed amount of time to simulate preparation time.
+ *    Beverages given stages in the "preparation" block of the settings file are instead prepared by the PreparationPipeline, stage by stage on the shared boilers and steamers of the machine.
+ * 6. The flow from ingredient sufficiency check to deducting ingredients is done as an all-or-nothing reservation. Each ingredient quantity is an atomic counter which is taken with compare-and-set
+ *    and put back if any other ingredient of the beverage runs short. Hence orders never lock the machine, orders which share no ingredients commit in parallel, and an order is never committed unless it can be fulfilled.
+ * 7. In case of any failure, appropriate custom exceptions are thrown which are mapped to a typed failure reason in the OrderResult of the order. In case of success, a prepared OrderResult is returned to user.
+ *    submitOrder hands the OrderResult back through a CompletableFuture, so callers can compose many orders in flight without waiting on them. placeOrder simply prints the result message once it completes.
+ * 8. At the end of processing the order, its outlet is given back to the pool and the next waiting order is sent to the freed outlet. It marks the completion of the job.
+ *    Orders can be tagged with an OrderPriority and the source placing them. The waiting orders are shared out by weighted fair queuing, so a bulk order of one source
+ *    does not hold up an interactive customer, and orders waiting too long go first so bulk orders still complete.
+ * 
+ * Which beverages the current stock can make is kept by an AvailabilityIndex, updated by the ingredients whenever their level crosses the quantity a recipe needs.
+ * Orders for a beverage the stock can not make are rejected by the sanity checks in constant time, before they wait for an outlet.
+ * In front of everything, an AdmissionControl set up by the "throttle" block of the settings file limits how fast each source may order and sheds low priority orders
+ * while the outlets are busy and the queue fills up. Those orders are turned away before any check, without building an exception.
+ * 
+ * Anyone can subscribe to the events of the machine: orders accepted, started, completed and rejected, ingredient levels changing or crossing their low threshold, restocks starting and finishing.
+ * The events go through a lock-free EventBus, so subscribers see every change as it happens instead of polling, without slowing down the orders.
+ * 
+ * A StockForecaster follows how fast each ingredient is being used and tells the LowStockListeners added to the machine when one is forecast to run out soon.
  * 
  * At any time user can check if any ingredient is running low. this if found out by comparing their current quantity with their low threshold value. 
  * low threshold value is the higher of either 20% of their max_capacity or the maximum amount required by any kind of beverage. 
@@ -49,12 +75,17 @@ import CustomExceptions.OutletNotFreeException;
  * User can either specify which ingredients they want to restock or they can restock all of them at once.
  * 
  * User can also add an previously unavailable ingredient by specifying its name and max_capacity. 
+ * 
+ * All the timing of the machine goes through a MachineClock. A Simulation runs the same machine on a virtual clock to play a day of orders in seconds.
+ * 
+ * If the settings file has a "journal" block, every change to the ingredient levels is also appended to an OrderJournal. 
+ * When the machine starts again, it restores the levels from the journal instead of taking every container as full.
  * At any time user can check the current quantity of ingredients and the supported beverage names
  *
  */
 public final class Machine implements CoffeeMachine {
 	
-	//We need only one instance of a machine. Implementing CoffeeMachine as a singleton 
+	//The default machine of the program is a singleton. Independent machines, like the members of a FleetRouter, are created with CreateMachine.
 	private static Machine currentMachine = null;
 	
 	//It keeps track of the outlets which are in process of preparing and serving beverage and cant take new order untill it finishes its current order.
@@ -63,40 +94,80 @@ public final class Machine implements CoffeeMachine {
 	//It keeps track of current ingredients. Each ingredient is an object and its name is used as a key to hold it.
 	private ConcurrentHashMap<String, Ingredient>ingredients;
 	
-	//Constant Preparation time for all beverages. using 5 seconds so as to simulate the machine busy flow.
-	private static final int PREPARATION_TIME =5; // in seconds . 
+	//Every ingredient name known to the machine, either stocked or used by a recipe, is interned to a dense id. 
+	//ingredient_table holds the ingredient object at the index of its id, or null if the ingredient is not present in the machine. Beverages reserve through this table on the order path.
+	private ConcurrentHashMap<String, Integer>ingredient_ids;
+	private volatile Ingredient[] ingredient_table;
 	
-	//This is the time taken for machine to restock. No order will be served while machine is restocking. 
+	//Preparation time for all beverages. using 5 seconds so as to simulate the machine busy flow. It is only changed by test code to run orders without waiting.
+	//Beverages prepared in stages take the times of their stages instead, scaled by the preparation time over the default, so setting it to 0 runs them without waiting as well.
+	private static final int DEFAULT_PREPARATION_TIME = 5;
+	private volatile int PREPARATION_TIME = DEFAULT_PREPARATION_TIME; // in seconds . 
+	
+	//This is the time taken to refill an ingredient container. Beverages using the container are not prepared while it is being refilled. 
 	private static final int STOCKING_TIME = 2; // in seconds
 	
+	//The most beverages a single batch may order, over all its beverage types.
+	public static final int MAX_BATCH_SIZE = 10000;
+	
 	//The total outlets in the machine. Set while creating the machine. Its setter is not implemented so it cannot be changed from outside.
 	private int TOTAL_OUTLETS;
 	
-	//This map contains a beverage object for each beverage type. It keeps track of ingredient requirement of each beverage type. 
-	private Map<String, Beverage>beverages_types;
+	//The menu contains a beverage object for each beverage type. It keeps track of ingredient requirement of each beverage type, and tells which of them the current stock can make.
+	//It is replaced as a whole when the menu is reloaded, so it is read once per operation.
+	private volatile Menu menu;
+	//forecasts when the ingredients run out and tells the low stock listeners.
+	private StockForecaster forecaster;
+	//carries the events of the machine to its subscribers.
+	private EventBus events;
+	//every ingredient of the machine reports its level changes here.
+	private final IngredientListener level_listener = this::ingredientLevelChanged;
 	
-	private static ExecutorService executor; 
-	private static volatile int running_order_count;
+	private OutletExecutor executor; 
+	//runs the stages of the beverages prepared in stages. Its resources are set when the machine is created and do not change on a menu reload.
+	private PreparationPipeline pipeline;
+	private AdmissionQueue admission;
+	private MachineMetrics metrics;
+	//null if the settings do not ask for a journal, or once it is closed. Read once into a local by every writer, as it can be closed while orders run.
+	private volatile OrderJournal journal;
+	//every completed order, for queries after the fact. null if the settings keep no history.
+	private OrderHistory history;
+	//rate limits the sources and sheds low priority orders under load. null if the settings do not ask for either.
+	private AdmissionControl throttle;
+	
+	//number of machines created in this process. Used to give each machine its own JMX name.
+	private static final AtomicInteger machines_created = new AtomicInteger();
+	private OutletPool outlets;
 
-	//fields to keep track of time lapsed in restocking. 
-	private Instant restocking_start_time;
-	boolean isRestocking = false;
+	//orders held back because an ingredient of their beverage is being refilled, and how many of them there are. At most as many as the admission queue can hold.
+	private final ConcurrentLinkedQueue<BeverageOrder> deferred = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger deferred_count = new AtomicInteger();
+	//time of the machine. Real time, unless the machine runs in a Simulation.
+	private MachineClock clock = MachineClock.SYSTEM;
+	//off in a simulation, where printing a message for every order would take longer than the simulation itself.
+	private boolean verbose = true;
 	
-	//Singleton Implementation of machine. Once the machine is created, it should not alter its settings like max outlets and adding new beverage.
-	public static Machine GetOrCreateMachine(String settings) {
+	//Singleton Implementation of machine. Once the machine is created, it should not alter its settings like max outlets. Beverages can only change by reloading the menu.
+	public static synchronized Machine GetOrCreateMachine(String settings) {
 		if (currentMachine == null) {
 			currentMachine = new Machine(settings);
 		}
 		return currentMachine;
 	}
 	
-	private Machine(String settings) {
-		Gson gson = new Gson();
-		try (FileReader reader = new FileReader(settings)){
-			Object obj = gson.fromJson(reader, Object.class);
-			createMachineFromParsedObject(obj);
-			executor = Executors.newFixedThreadPool(TOTAL_OUTLETS);
-			System.out.println(obj);
+	//creates a new machine independent of the singleton and of every other machine. Machines sharing a journal can not run at the same time, so each one needs its own settings file if a journal is used.
+	public static Machine CreateMachine(String settings) {
+		return new Machine(settings);
+	}
+	
+	//package private so that the benchmarks can create machines with their own settings besides the singleton.
+	//A settings file which does not describe a valid machine throws an InvalidSettingsException telling where the problem is.
+	Machine(String settings) {
+		try {
+			MachineSettings parsed = SettingsLoader.load(settings);
+			createMachineFromSettings(parsed);
+			registerMetrics();
+			openJournal(parsed);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -104,213 +175,877 @@ public final class Machine implements CoffeeMachine {
 		}
 	}
 	
+	//creates a machine running on the virtual clock of a simulation. It keeps no journal, is not registered over JMX and prints nothing for its orders.
+	Machine(MachineSettings settings, VirtualClock _clock) {
+		this.clock = _clock;
+		this.verbose = false;
+		createMachineFromSettings(settings);
+	}
+	
 	/*
-	 * Custom function to parse the json settings file. This function takes care of initializing all required fields of machine.
+	 * This function takes care of initializing all required fields of machine from the settings read by the SettingsLoader.
 	 * Sets the number of outlets of the machine. 
-	 * for each ingredient in the "total_items_quantity" map of settings json, it creates an instance of Ingredient class and takes the quantity given as max capacity of that ingredient
-	 * and also sets that as starting current quantity.
-	 * creates an object of each type of beverage serviced by machine and stores them in a map. These objects handle the ingredient info of that beverage.
+	 * Each ingredient of the "total_items_quantity" block of the settings was created as an instance of Ingredient class by the loader with the quantity given as max capacity of that ingredient
+	 * and also as starting current quantity. The machine gives it an id and puts it in its table.
+	 * An object of each type of beverage serviced by machine was created by the loader as well. The machine stores them in a map and compiles their recipes to ingredient ids.
 	 */
-	private <V> void createMachineFromParsedObject(Object obj) {
-		// TODO Auto-generated method stub
-		Map<String, V>map = (Map<String, V>)((Map<String, V>) obj).get("machine");
-		this.TOTAL_OUTLETS = ((Double)((Map<String, V>)map.get("outlets")).get("count_n")).intValue();
+	private void createMachineFromSettings(MachineSettings settings) {
+		this.TOTAL_OUTLETS = settings.outlet_count;
+		this.outlets = new OutletPool(this.TOTAL_OUTLETS);
+		
+		//Without an execution block every outlet gets its own thread like before.
+		this.executor = this.clock.createExecutor(settings.execution_mode, this.TOTAL_OUTLETS, settings.execution_threads);
+		this.events = new EventBus(settings.event_ring_size);
+		//Without an admission block there is no waiting queue and orders are rejected when all outlets are busy.
+		this.admission = new AdmissionQueue(this, settings.queue_capacity, settings.admission_policy, settings.timeout_ms, settings.deadline_ms, 
+				settings.priority_weights, settings.aging_ms, 
+				AdmissionQueue.MOST_SERVED.equals(settings.admission_ordering) ? new CommitPlanner(settings.reorder_window, settings.priority_weights) : null);
 		
-		Map<String, Double>ingredients_info = (Map<String, Double>)(map.get("total_items_quantity"));
-		Iterator<Entry<String, Double>> ingredients_it = ingredients_info.entrySet().iterator();
-//		this.ingredient_max_quantity = new HashMap<String, Integer>();
 		this.ingredients = new ConcurrentHashMap<String, Ingredient>();
-		while (ingredients_it.hasNext()) {
-			Entry<String, Double>e = ingredients_it.next();
-			Ingredient ingredient = new Ingredient(e.getKey(), e.getValue().intValue());
-//			this.ingredient_max_quantity.put(e.getKey(), e.getValue().intValue());
-			this.ingredients.put(e.getKey(), ingredient);
+		this.ingredient_ids = new ConcurrentHashMap<String, Integer>();
+		this.ingredient_table = new Ingredient[0];
+		for (Ingredient ingredient: settings.ingredients.values()) {
+			this.ingredients.put(ingredient.getName(), ingredient);
+			installIngredient(ingredient);
 		}
 		
-		HashMap<String, Integer>ingredient_low_threshold= new HashMap<>();
-		
-		this.beverages_types = new HashMap<String,Beverage>();
-		Map<String, Map<String, Double>>beverages = (Map<String, Map<String, Double>>)(map.get("beverages"));
-		Iterator<String>beverages_it = beverages.keySet().iterator();
-		while (beverages_it.hasNext()) {
-			String beverage_name = beverages_it.next();
-			Beverage bev = new Beverage(beverage_name);
-			Map<String, Double>bev_map = beverages.get(beverage_name);
-			Iterator<Entry<String, Double>> bev_it = bev_map.entrySet().iterator();
-			while (bev_it.hasNext()) {
-				Entry<String, Double>entry = bev_it.next();
-				bev.addIngredient(entry.getKey(), entry.getValue().intValue());
-				if (ingredient_low_threshold.containsKey(entry.getKey())) {
-					int ing_val = ingredient_low_threshold.get(entry.getKey());
-					ing_val = ing_val > entry.getValue().intValue()?ing_val:entry.getValue().intValue();
-					ingredient_low_threshold.put(entry.getKey(), ing_val);
-				}else {
-					ingredient_low_threshold.put(entry.getKey(), entry.getValue().intValue());
-				}
+		this.metrics = new MachineMetrics(this);
+		if (settings.history_max_segments > 0) {
+			this.history = new OrderHistory(this, settings.history_segment_ms, settings.history_segment_rows, settings.history_max_segments);
+		}
+		if (settings.client_rate > 0 || settings.shed_queue_fill < 1) {
+			this.throttle = new AdmissionControl(this, settings.client_rate, settings.client_burst, settings.max_clients, settings.shed_utilisation, settings.shed_queue_fill);
+		}
+		this.pipeline = new PreparationPipeline(this.clock, this.executor, settings.resources);
+		this.menu = buildMenu(settings.beverages.values(), settings.file);
+		Ingredient[] table = this.ingredient_table;
+		for (int id=0; id<table.length; id++) {
+			if (table[id] != null) {
+				table[id].attach(id, this.level_listener);
 			}
-			this.beverages_types.put(beverage_name, bev);
 		}
+		this.menu.getAvailability().refreshAll();
 		
 //		this.busyOutlets = new HashSet<Integer>();
 		
-		adjustLowThresholdForIngredients(ingredient_low_threshold);
+		adjustLowThresholdForIngredients(this.menu);
+		
+		//Without a forecast block the forecaster only starts when a low stock listener is added.
+		this.forecaster = new StockForecaster(this, settings.forecast_interval_ms, settings.forecast_half_life_ms, settings.forecast_horizon_ms);
+		if (settings.forecast_configured) {
+			this.forecaster.start();
+		}
 	}
 	
 	
-	//Low threshold of an ingredient is set to the either 20% of max_capacity or minimum amount required to be able to serve any kind of beverage, whichever is higher. 
-	private void adjustLowThresholdForIngredients(HashMap<String, Integer> ingredient_low_threshold) {
-		Iterator<Entry<String, Integer>>it = ingredient_low_threshold.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<String, Integer>e = it.next();
-			if (this.ingredients.containsKey(e.getKey())) {
-				this.ingredients.get(e.getKey()).adjustThreshold(e.getValue());
+	/*
+	 * Opens the journal given in the settings and restores the ingredient levels recorded in it. Ingredients added to the machine at runtime are added again with their max capacity.
+	 * The restored state, including ingredients the journal did not know about yet, then becomes the first snapshot of the journal.
+	 */
+	private void openJournal(MachineSettings settings) throws IOException {
+		if (settings.journal_path == null) {
+			return;
+		}
+		OrderJournal opened = new OrderJournal(settings.journal_path, settings.journal_capacity_kb*1024, settings.journal_sync_interval_ms);
+		Map<String, int[]> recovered;
+		try {
+			recovered = opened.recover();
+		} catch (IOException e) {
+			//a broken journal: the machine keeps the levels of the settings and runs without a journal.
+			opened.close();
+			throw e;
+		}
+		for (Entry<String, int[]>e: recovered.entrySet()) {
+			Ingredient ingredient = this.ingredients.get(e.getKey());
+			if (ingredient == null && e.getValue()[1] > 0) {
+				ingredient = new Ingredient(e.getKey(), e.getValue()[1]);
+				this.ingredients.put(e.getKey(), ingredient);
+				installIngredient(ingredient);
+			}
+			if (ingredient != null) {
+				ingredient.setNewCurrentCapacity(e.getValue()[0]);
+			}
+		}
+		Ingredient[] table = this.ingredient_table;
+		String[] names = new String[table.length];
+		long[] levels = new long[table.length];
+		int[] max_capacities = new int[table.length];
+		for (int id=0; id<table.length; id++) {
+			if (table[id] != null) {
+				names[id] = table[id].getName();
+				levels[id] = table[id].getCurrent_quantity();
+				max_capacities[id] = table[id].getMax_quantity();
+			}
+		}
+		opened.checkpoint(names, levels, max_capacities);
+		this.journal = opened;
+		System.out.println("Restored ingredient levels from journal: " + getAvailableIngredients());
+	}
+	
+	//writes a change in the level of an ingredient, made outside of an order, to the journal.
+	private void journalAdd(Ingredient ingredient, int amount) {
+		OrderJournal journal = this.journal;
+		if (journal != null && amount != 0) {
+			journal.recordAdd(this.ingredient_ids.get(ingredient.getName()), ingredient.getName(), amount);
+		}
+	}
+	
+	//makes the metrics of this machine available over JMX as CoffeeMachine:type=Machine,name=machine-<n>.
+	private void registerMetrics() {
+		try {
+			ObjectName name = new ObjectName("CoffeeMachine:type=Machine,name=machine-" + machines_created.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	//gives the id of an ingredient name, assigning the next free id if the name was never seen before.
+	private synchronized int internIngredient(String ingredient) {
+		Integer id = this.ingredient_ids.get(ingredient);
+		if (id == null) {
+			id = this.ingredient_ids.size();
+			this.ingredient_ids.put(ingredient, id);
+		}
+		return id;
+	}
+	
+	//puts the ingredient in the table at the index of its id. The table is copied and published as a new array so that orders always see a consistent table without locking.
+	private synchronized void installIngredient(Ingredient ingredient) {
+		int id = internIngredient(ingredient.getName());
+		Ingredient[] table = Arrays.copyOf(this.ingredient_table, Math.max(this.ingredient_table.length, this.ingredient_ids.size()));
+		table[id] = ingredient;
+		this.ingredient_table = table;
+		Menu current = this.menu;
+		if (current != null) {
+			ingredient.attach(id, this.level_listener);
+			current.getAvailability().ingredientInstalled(id);
+		}
+	}
+	
+	//the events of an order are only made when someone listens, so orders do not allocate them for nothing.
+	private void publishOrder(MachineEvent.Type type, String beverage, int outlet) {
+		if (events.hasSubscribers()) {
+			events.publish(MachineEvent.order(type, beverage, outlet));
+		}
+	}
+	
+	//tells the availability index about every change of an ingredient level, and publishes it when the event stream has subscribers.
+	private void ingredientLevelChanged(Ingredient ingredient, int before, int after) {
+		this.menu.getAvailability().levelChanged(ingredient, before, after);
+		if (this.events.hasSubscribers()) {
+			this.events.publish(MachineEvent.level(MachineEvent.Type.INGREDIENT_LEVEL_CHANGED, ingredient.getName(), before, after));
+			int threshold = ingredient.getLow_threshold_value();
+			if ((before < threshold) != (after < threshold)) {
+				this.events.publish(MachineEvent.level(MachineEvent.Type.THRESHOLD_CROSSED, ingredient.getName(), before, after));
 			}
 		}
 	}
 	
 	/*
-	 * This is the machine interface method to place an order. It first call the sanity checker method. 
-	 * Then increments the running order count and creates a new runnable object with the order to execute.
+	 * Builds a menu of the given beverages. Their recipes are compiled to ingredient ids, interning the ingredient names never seen before.
+	 * Ids of ingredients never change, so beverages of an older menu still reserve the right ingredients.
+	 */
+	private Menu buildMenu(Collection<Beverage> beverages, String settings) {
+		for (Beverage bev: beverages) {
+			this.pipeline.compile(bev, settings);
+		}
+		Beverage[] by_id = new Beverage[beverages.size()];
+		int id = 0;
+		for (Beverage bev: beverages) {
+			for (String ingredient: bev.getRequiredIngredients().keySet()) {
+				internIngredient(ingredient);
+			}
+			bev.compile(this.ingredient_ids, id);
+			this.metrics.addBeverage(bev.getName());
+			by_id[id++] = bev;
+		}
+		return new Menu(this, by_id, this.ingredient_ids.size());
+	}
+	
+	//Low threshold of an ingredient is set to the either 20% of max_capacity or minimum amount required to be able to serve any kind of beverage on the menu, whichever is higher. 
+	private void adjustLowThresholdForIngredients(Menu menu) {
+		Ingredient[] table = this.ingredient_table;
+		for (Ingredient ingredient: table) {
+			if (ingredient != null) {
+				ingredient.setLow_threshold_value(ingredient.getMax_quantity()/5);
+			}
+		}
+		for (Beverage beverage: menu.getBeverages().values()) {
+			int[] ids = beverage.getIngredientIds();
+			int[] quantities = beverage.getQuantities();
+			for (int i=0; i<ids.length; i++) {
+				if (ids[i] < table.length && table[ids[i]] != null) {
+					table[ids[i]].adjustThreshold(quantities[i]);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * This is the machine interface method to place an order. It prints the result of the order once it is prepared or rejected.
 	 */ 
 	public void placeOrder(String beverage) {
+		submitOrder(beverage).thenAccept(result -> System.out.println(result.getMessage()));
+	}
+	
+	/*
+	 * This is the machine interface method to place an order and get its result. Orders waiting for an outlet use the default deadline from the settings.
+	 */
+	public CompletableFuture<OrderResult> submitOrder(String beverage) {
+		return submitOrder(beverage, admission.getDefaultDeadlineMillis());
+	}
+	
+	/*
+	 * This is the machine interface method to place an order with its own deadline and get its result. The order is NORMAL and comes from no particular source.
+	 */
+	public CompletableFuture<OrderResult> submitOrder(String beverage, long deadline_millis) {
+		return submitOrder(beverage, deadline_millis, OrderPriority.NORMAL, "");
+	}
+	
+	/*
+	 * This is the machine interface method to place an order tagged with its priority and source, and get its result. It first call the sanity checker method. 
+	 * Then creates a new runnable object with the order to execute and hands it to the admission queue. The returned future is completed by the outlet with the result of the order.
+	 * While waiting for an outlet, the order gets a share of the outlets fair to its source, weighted by its priority.
+	 * If the order is still waiting for an outlet after deadline_millis, it is rejected. A deadline of 0 lets the order wait as long as it takes, and a negative one takes the default deadline.
+	 * If the sanity checks fail or the order can not be admitted, the future is already completed with the rejected result when this method returns.
+	 * The source is also the client the rate limit of the machine counts the orders of.
+	 */
+	public CompletableFuture<OrderResult> submitOrder(String beverage, long deadline_millis, OrderPriority priority, String source) {
+		CompletableFuture<OrderResult> result = new CompletableFuture<>();
+		long submitted_at = this.clock.nanoTime();
+		if (this.throttle != null && turnedAway(result, beverage, priority, source, submitted_at)) {
+			return result;
+		}
+		if (deadline_millis < 0) {
+			deadline_millis = admission.getDefaultDeadlineMillis();
+		}
 		try {
-			verifyValidity(beverage);
-			BeverageOrder order = new BeverageOrder(this, beverage);
-			running_order_count++;
-			executor.execute(order);
+			BeverageOrder order = new BeverageOrder(this, verifyValidity(this.menu, beverage), result, submitted_at, deadline_millis, priority, source);
+			publishOrder(MachineEvent.Type.ORDER_ACCEPTED, beverage, OrderResult.NO_OUTLET);
+			admitOrDefer(order);
 		} catch (Exception e){
-			System.out.println(e.getMessage());
+			complete(result, OrderResult.rejected(beverage, priority, e, OrderResult.NO_OUTLET, submitted_at, submitted_at, submitted_at));
 		}
+		return result;
 	}
 
+	/*
+	 * This is the machine interface method to place a batch of orders, like 12 hot_tea and 5 black_tea from one kiosk. It prints the result of each order once it completes.
+	 * Each beverage type gets as many of its orders as the stock allows.
+	 */
+	public void placeOrders(Map<String, Integer> orders) {
+		for (CompletableFuture<OrderResult> result: submitOrders(orders, false)) {
+			result.thenAccept(r -> System.out.println(r.getMessage()));
+		}
+	}
+	
+	/*
+	 * This is the machine interface method to place a batch of orders given as beverage name to number of beverages, and get their results.
+	 * The ingredients for the whole batch are reserved up front in one pass. The beverages are then handed to the admission queue like single orders, and the outlets do not check their ingredients again.
+	 * With all_or_nothing, the total demand of the batch for each ingredient is reserved at once. If any of it can not be reserved, every order of the batch is rejected and nothing is taken.
+	 * Otherwise each beverage type reserves as many of its orders as the stock allows and only the remaining ones are rejected.
+	 * Every count must be positive and the batch can order at most MAX_BATCH_SIZE beverages, or an IllegalArgumentException is thrown and nothing is ordered.
+	 * The returned futures follow the iteration order of the given map, one for each beverage ordered.
+	 */
+	public List<CompletableFuture<OrderResult>> submitOrders(Map<String, Integer> orders, boolean all_or_nothing) {
+		return submitOrders(orders, all_or_nothing, OrderPriority.NORMAL, "");
+	}
+	
+	/*
+	 * Same as above with every order of the batch tagged with the priority and source, like a BULK batch from a conference booking.
+	 * The orders of the batch wait as one source, so a large batch only gets the share of the outlets its weight allows while other sources keep being served.
+	 * The batch counts as one order for the rate limit and is shed as a whole, so it is turned away or taken up front like the reservation of its ingredients.
+	 */
+	public List<CompletableFuture<OrderResult>> submitOrders(Map<String, Integer> orders, boolean all_or_nothing, OrderPriority priority, String source) {
+		checkBatch(orders);
+		long submitted_at = this.clock.nanoTime();
+		OrderResult.FailureReason refused = this.throttle == null ? OrderResult.FailureReason.NONE : this.throttle.admit(source, priority, submitted_at);
+		if (refused != OrderResult.FailureReason.NONE) {
+			List<CompletableFuture<OrderResult>>results = new ArrayList<>();
+			for (Entry<String, Integer>e: orders.entrySet()) {
+				for (int j=0; j<e.getValue(); j++) {
+					CompletableFuture<OrderResult> result = new CompletableFuture<>();
+					results.add(result);
+					complete(result, refusal(e.getKey(), priority, refused, submitted_at));
+				}
+			}
+			return results;
+		}
+		int size = orders.size();
+		String[] names = new String[size];
+		int[] counts = new int[size];
+		Beverage[] batch = new Beverage[size];
+		Exception[] failures = new Exception[size];
+		int[] granted = new int[size];
+		Exception batch_failure = null;
+		Menu current = this.menu;
+		int i = 0;
+		for (Entry<String, Integer>e: orders.entrySet()) {
+			names[i] = e.getKey();
+			counts[i] = e.getValue();
+			try {
+				batch[i] = verifyValidity(current, names[i]);
+			} catch (Exception ex) {
+				failures[i] = ex;
+				batch_failure = batch_failure == null ? ex : batch_failure;
+			}
+			i++;
+		}
+		
+		Ingredient[] table = this.ingredient_table;
+		if (all_or_nothing) {
+			if (batch_failure == null) {
+				try {
+					reserveBatch(batch, counts, table);
+					granted = counts;
+				} catch (Exception ex) {
+					batch_failure = ex;
+				}
+			}
+		} else {
+			for (i=0; i<size; i++) {
+				if (batch[i] != null) {
+					granted[i] = reserveUpTo(batch[i], counts[i], table, failures, i);
+				}
+			}
+		}
+		
+		List<CompletableFuture<OrderResult>>results = new ArrayList<>();
+		for (i=0; i<size; i++) {
+			for (int j=0; j<counts[i]; j++) {
+				CompletableFuture<OrderResult> result = new CompletableFuture<>();
+				results.add(result);
+				if (j >= granted[i]) {
+					Exception e = failures[i] != null ? failures[i] : batch_failure;
+					complete(result, OrderResult.rejected(names[i], priority, e, OrderResult.NO_OUTLET, submitted_at, submitted_at, submitted_at));
+					continue;
+				}
+				BeverageOrder order = new BeverageOrder(this, batch[i], result, submitted_at, admission.getDefaultDeadlineMillis(), priority, source);
+				order.markReserved();
+				publishOrder(MachineEvent.Type.ORDER_ACCEPTED, names[i], OrderResult.NO_OUTLET);
+				try {
+					admitOrDefer(order);
+				} catch (Exception e) {
+					order.rejected(e);
+				}
+			}
+		}
+		return results;
+	}
+	
+	/*
+	 * Takes a token from the rate limit of the source for a request which is not an order, like a restock sent to the OrderServer. Returns whether the request may go ahead.
+	 * Such requests are never shed. Without a "throttle" block in the settings every request may.
+	 */
+	public boolean admitRequest(String source) {
+		return this.throttle == null || this.throttle.admit(source, OrderPriority.INTERACTIVE, this.clock.nanoTime()) == OrderResult.FailureReason.NONE;
+	}
+	
+	//gives back the token admitRequest took, for a request which did not go ahead after all.
+	void refundRequest(String source) {
+		if (this.throttle != null) {
+			this.throttle.refund(source);
+		}
+	}
+	
+	//asks the AdmissionControl about the order and completes it right away if it is turned away. Returns whether it was.
+	private boolean turnedAway(CompletableFuture<OrderResult> result, String beverage, OrderPriority priority, String source, long submitted_at) {
+		OrderResult.FailureReason refused = this.throttle.admit(source, priority, submitted_at);
+		if (refused == OrderResult.FailureReason.NONE) {
+			return false;
+		}
+		complete(result, refusal(beverage, priority, refused, submitted_at));
+		return true;
+	}
+	
+	private static OrderResult refusal(String beverage, OrderPriority priority, OrderResult.FailureReason reason, long submitted_at) {
+		String message = reason == OrderResult.FailureReason.RATE_LIMITED ? AdmissionControl.RATE_LIMITED_MESSAGE : AdmissionControl.SHED_MESSAGE;
+		return OrderResult.rejected(beverage, priority, reason, message, submitted_at);
+	}
+	
+	/*
+	 * Throws an IllegalArgumentException if a count of the batch is not positive or the batch orders more than MAX_BATCH_SIZE beverages, before anything is reserved.
+	 * A negative count would put stock back instead of taking it, and every beverage of a batch gets its own future, so a batch must stay a size the machine can hold.
+	 */
+	static void checkBatch(Map<String, Integer> orders) {
+		long total = 0;
+		for (Entry<String, Integer>e: orders.entrySet()) {
+			Integer count = e.getValue();
+			if (count == null || count <= 0) {
+				throw new IllegalArgumentException("The count of " + e.getKey() + " in a batch must be positive, not " + count);
+			}
+			total += count;
+		}
+		if (total > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("A batch can order at most " + MAX_BATCH_SIZE + " beverages, not " + total);
+		}
+	}
+	
+	//reserves the total demand of a batch for each ingredient, all or nothing.
+	private void reserveBatch(Beverage[] batch, int[] counts, Ingredient[] table) throws Exception {
+		long[] demand = new long[table.length];
+		for (int i=0; i<batch.length; i++) {
+			batch[i].checkAvailable(table);
+			batch[i].addDemand(demand, counts[i]);
+		}
+		reserveDemand(batch, demand, table);
+		OrderJournal journal = this.journal;
+		if (journal != null) {
+			for (int i=0; i<batch.length; i++) {
+				batch[i].recordUse(journal, counts[i]);
+			}
+		}
+	}
+	
+	private void reserveDemand(Beverage[] batch, long[] demand, Ingredient[] table) throws Exception {
+		for (int id=0; id<demand.length; id++) {
+			if (demand[id] == 0) {
+				continue;
+			}
+			if (demand[id] > Integer.MAX_VALUE || !table[id].tryUse((int)demand[id])) {
+				for (int taken=0; taken<id; taken++) {
+					if (demand[taken] != 0) {
+						table[taken].release((int)demand[taken]);
+					}
+				}
+				String beverage = null;
+				for (int i=0; i<batch.length && beverage == null; i++) {
+					beverage = batch[i].uses(id) ? batch[i].getName() : null;
+				}
+				throw new NotEnoughIngredientException(beverage, table[id].getName(), (int)Math.min(demand[id], Integer.MAX_VALUE));
+			}
+		}
+	}
+	
+	//reserves as many of 'count' beverages as the stock allows and returns how many were reserved. The reason for not reserving the rest is kept in failures.
+	//It never asks for more than the stock can make, but at least one so the reason is known when it can make none.
+	private int reserveUpTo(Beverage beverage, int count, Ingredient[] table, Exception[] failures, int index) {
+		int k = Math.min(count, Math.max(1, beverage.countServable(table)));
+		while (k > 0) {
+			try {
+				beverage.reserve(table, k);
+				OrderJournal journal = this.journal;
+				if (journal != null) {
+					beverage.recordUse(journal, k);
+				}
+				if (k < count && failures[index] == null) {
+					failures[index] = beverage.shortage(table, count - k);
+				}
+				return k;
+			} catch (NotEnoughIngredientException e) {
+				failures[index] = e;
+				k = Math.min(k - 1, beverage.countServable(table));
+			} catch (Exception e) {
+				failures[index] = e;
+				return 0;
+			}
+		}
+		return 0;
+	}
+	
+	//records the result of an order in the metrics and hands it to the caller. Every order of the machine is completed through here.
+	void complete(CompletableFuture<OrderResult> future, OrderResult result) {
+		complete(future, result, null);
+	}
+	
+	//the recipe is the one the order was accepted with, kept by the history to work out what the order used. null for orders rejected before they got one.
+	void complete(CompletableFuture<OrderResult> future, OrderResult result, Beverage recipe) {
+		metrics.record(result);
+		if (history != null) {
+			history.append(result, recipe);
+		}
+		if (events.hasSubscribers()) {
+			events.publish(MachineEvent.finished(result));
+		}
+		future.complete(result);
+	}
+	
+	//gives back the ingredients reserved or taken for an order which was rejected before being prepared.
+	void releaseReservation(Beverage beverage) {
+		beverage.release(this.ingredient_table, 1);
+		OrderJournal journal = this.journal;
+		if (journal != null) {
+			beverage.recordUse(journal, -1);
+		}
+	}
+	
 	/*
 	 * This is the main function of the machine. It first does some sanity checks like checking if any outlet is free, the machine is not restocking, the beverage is supported.
 	 * It then calls to verify availability of ingredients and if order can be placed, proceed to call the prepare method of requested beverage object
-	 * In case of any king of failure, it catches custom exceptions and return the error string to user.
-	 * if successful, it then sleeps for 5 second so as to simulate the preparation of beverage. after completion, it also frees the outlet to be used again.
+	 * In case of any king of failure, it catches custom exceptions and completes the order as rejected.
+	 * if successful, the outlet stays busy for 5 second so as to simulate the preparation of beverage. after completion, it also frees the outlet to be used again.
 	 */
-	 String getBeverage(String bev_name){
-		 String result;
-		 try {
-			verifyAndPrepareBeverage(bev_name);
-			System.out.println("machine is preparing to serve "+bev_name+". It will Take " + PREPARATION_TIME + " seconds\n");
-			Thread.sleep(PREPARATION_TIME*1000);
-			result = bev_name + " is prepared.";
+	void getBeverage(BeverageOrder order){
+		String bev_name = order.getBeverage();
+		boolean taken = false;
+		try {
+			taken = order.takeReservation();
+			if (!taken) {
+				long verify_start = System.nanoTime();
+				verifyAndPrepareBeverage(order.getRecipe());
+				taken = true;
+				metrics.recordVerify(System.nanoTime() - verify_start);
+			}
+			publishOrder(MachineEvent.Type.ORDER_STARTED, bev_name, order.getOutlet());
+			PreparationStage[] stages = order.getRecipe().getStages();
+			if (verbose) {
+				System.out.println("machine is preparing to serve "+bev_name+" on outlet " + order.getOutlet() + ". It will Take " + preparationSeconds(stages) + " seconds\n");
+			}
+			if (stages == null) {
+				executor.prepare(PREPARATION_TIME*1000L, () -> completeBeverage(order));
+			} else {
+				pipeline.prepare(stages, PREPARATION_TIME, DEFAULT_PREPARATION_TIME, () -> completeBeverage(order));
+			}
 		} catch(Exception e) {
-			result = e.getMessage();
+			//the ingredients belong to the outlet once taken, so the outlet gives them back when the preparation could not even start.
+			if (taken) {
+				releaseReservation(order.getRecipe());
+			}
+			freeOutlet(order);
+			order.rejected(e);
 		}
-		running_order_count--;
-		return result;
+	}
+	
+	//time a beverage takes when it does not wait for a shared resource.
+	private String preparationSeconds(PreparationStage[] stages) {
+		if (stages == null) {
+			return String.valueOf(PREPARATION_TIME);
+		}
+		long millis = 0;
+		for (PreparationStage stage: stages) {
+			millis += stage.getMillis();
+		}
+		return String.format("%.1f", millis * PREPARATION_TIME / (DEFAULT_PREPARATION_TIME * 1000.0));
+	}
+	
+	//called once the preparation time is over. An outlet thread interrupted while preparing reports the order as rejected and gives its ingredients back. 
+	private void completeBeverage(BeverageOrder order) {
+		freeOutlet(order);
+		if (Thread.interrupted()) {
+			releaseReservation(order.getRecipe());
+			order.rejected(new InterruptedException(order.getBeverage() + " preparation was interrupted."));
+		} else {
+			order.prepared();
+		}
+	}
+	
+	//takes a free outlet for the order and sends it to the executor. Returns false without doing anything if all the outlets are busy.
+	//With reserve, the ingredients are reserved right away, so the commit planner sees the stock the order takes when it plans the next one. 
+	//If they can not be reserved, the outlet checks them again and rejects the order.
+	boolean dispatch(BeverageOrder order, boolean reserve) {
+		int outlet = outlets.acquire();
+		if (outlet == OrderResult.NO_OUTLET) {
+			return false;
+		}
+		if (reserve && !order.isReserved()) {
+			try {
+				verifyAndPrepareBeverage(order.getRecipe());
+				order.markReserved();
+			} catch (Exception e) {
+				//the outlet finds the stock missing again and rejects the order with the reason.
+			}
+		}
+		order.assignOutlet(outlet);
+		executor.submit(order);
+		return true;
+	}
+	
+	//gives back the outlet of a finished order and lets the next waiting order have it.
+	private void freeOutlet(BeverageOrder order) {
+		outlets.release(order.getOutlet());
+		admission.drain();
 	}
 	
 	/*
 	 * Sanity checks: Rejects order if
 	 * 1. If the beverage is unsupported. 
-	 * 2. if the machine is currently restocking by giving the waiting time after which machine can be used again
-	 * 3. if the No outlet is available.
+	 * 2. if the availability index says the current stock can not make the beverage. The stock is read once more to give the exact reason,
+	 *    and in case the bit was stale the order goes ahead.
+	 * Outlet availability is checked by the admission queue.
+	 * Gives the beverage of the menu the order is accepted with.
 	 */
-	private void verifyValidity(String bev)throws Exception {
-		if (!this.beverages_types.containsKey(bev)) {
+	private Beverage verifyValidity(Menu menu, String bev)throws Exception {
+		Beverage beverage = menu.get(bev);
+		if (beverage == null) {
 			throw new BeverageNotSupportedException(bev);
 		}
-		if (isRestocking) {
-			Instant now = Instant.now();
-			Duration duration = Duration.between(restocking_start_time, now);
-			if ((int)duration.toSeconds() >= STOCKING_TIME) {
-				isRestocking = false;
-			} else {
-				int timeleft = (int) (STOCKING_TIME-duration.toSeconds());
-				throw new OrderWhileRestockingException(timeleft);
+		if (!menu.isServable(beverage)) {
+			beverage.checkServable(this.ingredient_table);
+			menu.getAvailability().refresh(beverage.getId());
+		}
+		return beverage;
+	}
+	
+	/*
+	 * Hands the order to the admission queue, unless an ingredient of its beverage is being refilled. Then the order is held back until the refill is over.
+	 * Throws if the order has to be held back but there is no room for it.
+	 */
+	private void admitOrDefer(BeverageOrder order) throws Exception {
+		Beverage beverage = order.getRecipe();
+		long until = beverage.getRefillingUntil(this.ingredient_table, this.clock.nanoTime());
+		if (until == 0) {
+			admission.admit(order);
+			return;
+		}
+		if (deferred_count.incrementAndGet() > admission.getCapacity()) {
+			deferred_count.decrementAndGet();
+			throw new OrderWhileRestockingException((int)Math.max(1, TimeUnit.NANOSECONDS.toSeconds(until - this.clock.nanoTime() + 999999999)));
+		}
+		deferred.add(order);
+		//the refill may have ended while the order was being held back, after the timer already let the held back orders go.
+		if (beverage.getRefillingUntil(this.ingredient_table, this.clock.nanoTime()) == 0) {
+			releaseDeferred();
+		}
+	}
+	
+	//hands the held back orders whose ingredients are no longer being refilled to the admission queue. The others stay held back for a later refill to be over.
+	private void releaseDeferred() {
+		int held = deferred.size();
+		for (int i=0; i<held; i++) {
+			BeverageOrder order = deferred.poll();
+			if (order == null) {
+				break;
+			}
+			long now = this.clock.nanoTime();
+			if (order.getRecipe().getRefillingUntil(this.ingredient_table, now) != 0) {
+				deferred.add(order);
+				continue;
+			}
+			deferred_count.decrementAndGet();
+			try {
+				if (order.isExpired(now)) {
+					throw new OrderDeadlineExceededException(order.getBeverage(), order.getWaitedMillis());
+				}
+				admission.admit(order);
+			} catch (Exception e) {
+				order.rejected(e);
 			}
 		}
-		if (running_order_count >= TOTAL_OUTLETS) {
-			throw new OutletNotFreeException();
+	}
+	
+	//marks the ingredient as being refilled for STOCKING_TIME and lets the held back orders go once it is over. Called with the machine lock held by the restocking methods.
+	private void startRefill(Ingredient ingredient) {
+		ingredient.startRefill(this.clock.nanoTime() + TimeUnit.SECONDS.toNanos(STOCKING_TIME));
+		int level = ingredient.getCurrent_quantity();
+		events.publish(MachineEvent.level(MachineEvent.Type.RESTOCK_STARTED, ingredient.getName(), level, level));
+		this.clock.schedule(() -> {
+			int refilled = ingredient.getCurrent_quantity();
+			events.publish(MachineEvent.level(MachineEvent.Type.RESTOCK_FINISHED, ingredient.getName(), refilled, refilled));
+			releaseDeferred();
+		}, TimeUnit.SECONDS.toMillis(STOCKING_TIME));
+	}
+	
+	long nanoTime() {
+		return this.clock.nanoTime();
+	}
+	
+	/*
+	 * Tells the fleet router how well this machine can take an order for the beverage right now. Negative if it can not take it at all:
+	 * the beverage is not served, one of its ingredients is being refilled, all outlets are busy with no room to wait, or there is not enough stock.
+	 * Otherwise it is the fraction of max capacity left in the scarcest ingredient of the recipe after the order, so higher means more headroom.
+	 */
+	double headroomFor(String bev) {
+		Menu current = this.menu;
+		Beverage beverage = current.get(bev);
+		if (beverage == null || !current.isServable(beverage) || beverage.getRefillingUntil(this.ingredient_table, this.clock.nanoTime()) != 0) {
+			return -1;
 		}
+		if (outlets.getBusyCount() >= TOTAL_OUTLETS && !admission.hasRoom()) {
+			return -1;
+		}
+		return beverage.headroom(this.ingredient_table);
 	}
 	
 	/*
 	 * the method which actually checks if the ingredients are sufficient and available and then place the order to the corresponding beverage object.
-	 *This is synchronized because we do not need multiple thread changing quantity of ingredients simultaneously. 
-	 *This can cause an error where there is not sufficient ingredient left for a beverage for which we have committed the order.
+	 *This is not synchronized. The beverage object reserves all of its ingredients atomically or none of them, so multiple threads can change quantity of ingredients simultaneously 
+	 *without ever committing an order for which there is not sufficient ingredient left.
 	 */
-	private synchronized void verifyAndPrepareBeverage(String bev_name) throws Exception {
-		Beverage beverage = this.beverages_types.get(bev_name);
-		if (beverage.verify(this.ingredients)) {
-			beverage.prepare(this.ingredients);
+	void verifyAndPrepareBeverage(String bev_name) throws Exception {
+		verifyAndPrepareBeverage(this.menu.get(bev_name));
+	}
+	
+	private void verifyAndPrepareBeverage(Beverage beverage) throws Exception {
+		beverage.reserve(this.ingredient_table);
+		OrderJournal journal = this.journal;
+		if (journal != null) {
+			beverage.recordUse(journal, 1);
 		}
 	}
 	
 	/*
-	 * the custom restocking method restocks the ingredients given in input map by adding the amount given as their values in the map. Also set the starting time of the restocking operation.
+	 * the custom restocking method restocks the ingredients given in input map by adding the amount given as their values in the map. Also starts the refill of each of them.
+	 * An ingredient which is still being refilled gets the amount without starting a new refill, so its orders wait out that refill and no more:
+	 * starting a new one on every restock would keep them waiting as long as restocks keep coming, and skipping the ingredient would leave it short.
+	 * Every ingredient must be one of the machine and every amount must be positive and fit in the room left in its container,
+	 * or an IllegalArgumentException is thrown and nothing is restocked.
 	 */
 	public synchronized void  restockIngredientsByAmount(Map<String, Integer> ingredients) {
-		if (isRestocking) {
-			System.out.println("Already restocking. Please wait for ingredients to run low again.");
-			return;
-		}
-		restocking_start_time = Instant.now();
-		isRestocking = true;
+		checkRestock(ingredients);
+		long now = this.clock.nanoTime();
 		Iterator<Entry<String, Integer>>it = ingredients.entrySet().iterator();
 		while (it.hasNext()) {
 			Entry<String, Integer>e = it.next();
-			if (this.ingredients.containsKey(e.getKey())) {
-				this.ingredients.get(e.getKey()).restockByAmount(e.getValue());		
+			Ingredient ingredient = this.ingredients.get(e.getKey());
+			if (ingredient.getRefillingUntil(now) == 0) {
+				startRefill(ingredient);
 			}
+			ingredient.restockByAmount(e.getValue());		
+			journalAdd(ingredient, e.getValue());
 		}
 	}
 	
-	//This method restocks the given ingredients to their initial capacity. if the input is null, it restocks all the ingredients. It also set the starting time of restocking operation
+	//throws the IllegalArgumentException of restockIngredientsByAmount if it would refuse the amounts. Holding the lock of the machine keeps the answer true until the restock.
+	synchronized void checkRestock(Map<String, Integer> ingredients) {
+		for (Entry<String, Integer>e: ingredients.entrySet()) {
+			Ingredient ingredient = this.ingredients.get(e.getKey());
+			Integer amount = e.getValue();
+			if (ingredient == null) {
+				throw new IllegalArgumentException("The machine has no ingredient " + e.getKey() + " to restock");
+			}
+			if (amount == null || amount <= 0) {
+				throw new IllegalArgumentException("The amount to restock " + e.getKey() + " by must be positive, not " + amount);
+			}
+			//orders taking from the container meanwhile only leave more room.
+			int room = Math.max(0, ingredient.getMax_quantity() - ingredient.getCurrent_quantity());
+			if (amount > room) {
+				throw new IllegalArgumentException(e.getKey() + " has room for " + room + " more, not " + amount);
+			}
+		}
+	}
+	
+	/*
+	 * This method restocks the given ingredients to their initial capacity. if the input is null, it restocks all the ingredients. It also starts the refill of each of them.
+	 * Like restockIngredientsByAmount, an ingredient which is still being refilled is filled up without starting a new refill.
+	 */
 	public synchronized void  fullRestockToInitialCapacity(String[] ingredients) {
-		restocking_start_time = Instant.now();
-		isRestocking = true;
 		if (ingredients == null || ingredients.length == 0) {
 			fullRestockForAll();
 		} else {
+			long now = this.clock.nanoTime();
 			for (String ingredient: ingredients) {
 				if (this.ingredients.containsKey(ingredient)) {
-					this.ingredients.get(ingredient).restockToFullCapacity();
+					fullRestock(this.ingredients.get(ingredient), now);
 				}
 			}
-			System.out.println("Restocked following ingredients to their full capacity: ");
-			System.out.println(ingredients+"\n");
+			if (verbose) {
+				System.out.println("Restocked following ingredients to their full capacity: ");
+				System.out.println(ingredients+"\n");
+			}
 		}
 	}
 	
 	private void fullRestockForAll() {
-		System.out.println("Restocking following ingredients to their max capacity: ");
-		System.out.println(this.ingredients.keySet()+"\n");
+		if (verbose) {
+			System.out.println("Restocking following ingredients to their max capacity: ");
+			System.out.println(this.ingredients.keySet()+"\n");
+		}
+		long now = this.clock.nanoTime();
 		for (String ing: this.ingredients.keySet()) {
-			this.ingredients.get(ing).restockToFullCapacity();
+			fullRestock(this.ingredients.get(ing), now);
+		}
+	}
+	
+	private void fullRestock(Ingredient ingredient, long now) {
+		if (ingredient.getRefillingUntil(now) == 0) {
+			startRefill(ingredient);
 		}
+		journalAdd(ingredient, ingredient.restockToFullCapacity());
+	}
+	
+	/*
+	 * Replaces the menu of the machine with the beverages of the given settings file, while orders keep flowing. 
+	 * The new menu is built completely aside and then swapped in at once. Orders accepted before the swap finish on their old recipe, orders accepted after it use the new one.
+	 * Ingredients of the file which the machine does not have yet are added with their max capacity. The levels of the ingredients already in the machine are not changed,
+	 * and neither are the outlets and the other blocks of the file, which only take effect on a restart. The low thresholds are worked out again from the new recipes.
+	 * If the file is not valid the machine keeps its current menu and the InvalidSettingsException is thrown.
+	 */
+	public synchronized void reloadMenu(String settings) throws IOException {
+		MachineSettings parsed = SettingsLoader.load(settings);
+		for (Ingredient ingredient: parsed.ingredients.values()) {
+			if (!this.ingredients.containsKey(ingredient.getName())) {
+				addUnavailableIngredientWithMaxCapacity(ingredient.getName(), ingredient.getMax_quantity());
+			}
+		}
+		Menu next = buildMenu(parsed.beverages.values(), settings);
+		this.menu = next;
+		next.getAvailability().refreshAll();
+		adjustLowThresholdForIngredients(next);
+		System.out.println("Reloaded menu from " + settings + ": " + next.getBeverages().keySet());
+	}
+	
+	//reloads the menu from the settings file whenever the file changes, until the program ends. A change which is not valid is reported and the current menu is kept.
+	public void watchSettings(String settings) throws IOException {
+		new SettingsWatcher(this, settings).start();
 	}
 	
 	//In case an ingredient is not added while setting the machine for the first time but is used for a beverage, this method can be used to add that ingredient. 
 	public void addUnavailableIngredientWithMaxCapacity(String ingredient, int max_capacity) {
 		Ingredient ing = new Ingredient(ingredient, max_capacity);
 		this.ingredients.put(ingredient, ing);
+		installIngredient(ing);
+		OrderJournal journal = this.journal;
+		if (journal != null) {
+			int id = this.ingredient_ids.get(ingredient);
+			journal.recordCapacity(id, ingredient, max_capacity);
+			journal.recordSet(id, ingredient, max_capacity);
+		}
 	}
 	
 	/*
 	 * This compares the current quantity of ingredients with their low threshold value.
 	 * and if the current quantity is less, adds that ingredient's name, its current quantity and max capacity in a map to be sent as a result. 
+	 * It walks the ingredient table, and when nothing is running low it returns a shared empty map, so polling it allocates nothing in the common case.
+	 * addLowStockListener is the way to be told before an ingredient runs low instead of polling.
 	 */
 	public Map<String, int[]> getIngredientsRunningLow() {
-		Map<String, int[]>ingredientsRunningLow = new HashMap<>();
-		Iterator<Entry<String, Ingredient>>itr = this.ingredients.entrySet().iterator();
-		while (itr.hasNext()) {
-			Entry<String, Ingredient>e = itr.next();
-			if (e.getValue().isRunningLow()) {
-				ingredientsRunningLow.put(e.getKey(), new int[] {e.getValue().getCurrent_quantity(), e.getValue().getMax_quantity()});
+		Map<String, int[]>ingredientsRunningLow = null;
+		for (Ingredient ingredient: this.ingredient_table) {
+			if (ingredient != null && ingredient.isRunningLow()) {
+				if (ingredientsRunningLow == null) {
+					ingredientsRunningLow = new HashMap<>();
+				}
+				ingredientsRunningLow.put(ingredient.getName(), new int[] {ingredient.getCurrent_quantity(), ingredient.getMax_quantity()});
 			}
 		}
-		return ingredientsRunningLow;
-		
+		return ingredientsRunningLow == null ? Collections.emptyMap() : ingredientsRunningLow;
+	}
+	
+	//adds a listener told when an ingredient is forecast to run out within the horizon of the forecaster. Starts the forecaster if it is not running yet.
+	public void addLowStockListener(LowStockListener listener) {
+		this.forecaster.addListener(listener);
+	}
+	
+	//stops telling the listener about the forecast. The forecaster keeps running for getMillisToEmpty.
+	public void removeLowStockListener(LowStockListener listener) {
+		this.forecaster.removeListener(listener);
+	}
+	
+	//starts handing every event of the machine from now on to the listener, on a thread of its own.
+	public void subscribe(MachineEventListener listener) {
+		this.events.subscribe(listener);
+	}
+	
+	public void unsubscribe(MachineEventListener listener) {
+		this.events.unsubscribe(listener);
+	}
+	
+	//provides the number of events which were not published because a subscriber was a whole ring buffer behind.
+	public long getDroppedEventCount() {
+		return this.events.getDroppedCount();
+	}
+	
+	//provides the forecast time in milliseconds until each ingredient in use runs out at its recent rate of use. Empty until the forecaster is running.
+	public Map<String, Long> getMillisToEmpty() {
+		return this.forecaster.getMillisToEmpty();
 	}
 	
 	//provides names of all the beverages this machine can serve.
 	public String[] getBeverageOptions() {
-		String[] result = new String[this.beverages_types.size()];
-		Iterator<String>it = this.beverages_types.keySet().iterator();
+		Map<String, Beverage>beverages = this.menu.getBeverages();
+		String[] result = new String[beverages.size()];
+		Iterator<String>it = beverages.keySet().iterator();
 		int i=0;
 		while (it.hasNext()) {
 			result[i++]=it.next();
@@ -318,6 +1053,69 @@ public final class Machine implements CoffeeMachine {
 		return result;
 	}
 
+	//provides names of the beverages the current stock can make at least one of. Answered from the availability index without reading the stock.
+	public String[] getServableBeverages() {
+		List<String>servable = new ArrayList<>();
+		Menu current = this.menu;
+		for (Beverage beverage: current.getBeverages().values()) {
+			if (current.isServable(beverage)) {
+				servable.add(beverage.getName());
+			}
+		}
+		return servable.toArray(new String[0]);
+	}
+	
+	//provides a snapshot of the order counters, latency percentiles, outlet use and ingredient consumption of this machine.
+	public MetricsSnapshot getMetrics() {
+		return metrics.snapshot();
+	}
+	
+	//the orders completed by the machine, for queries like the consumption of an ingredient by beverage over the last hour. null if the settings keep no history.
+	public OrderHistory getHistory() {
+		return this.history;
+	}
+	
+	Ingredient[] getIngredientTable() {
+		return this.ingredient_table;
+	}
+	
+	PreparationPipeline getPipeline() {
+		return this.pipeline;
+	}
+	
+	Collection<Ingredient> getIngredientObjects() {
+		return this.ingredients.values();
+	}
+	
+	//provides the number of outlets currently preparing a beverage.
+	public int getBusyOutletCount() {
+		return outlets.getBusyCount();
+	}
+	
+	//tells whether the given outlet (1 to n) is currently preparing a beverage.
+	public boolean isOutletBusy(int outlet) {
+		return outlets.isBusy(outlet);
+	}
+	
+	//provides the number of orders waiting for an outlet, including the ones held back by a refill.
+	public int getQueuedOrderCount() {
+		return admission.size() + deferred_count.get();
+	}
+	
+	//orders waiting in the admission queue and how many it can hold, read without its lock for the AdmissionControl.
+	int getWaitingOrderCount() {
+		return admission.depth();
+	}
+	
+	int getQueueCapacity() {
+		return admission.getCapacity();
+	}
+	
+	//provides how long the oldest waiting order has been waiting for an outlet, in milliseconds.
+	public long getLongestQueueWaitMillis() {
+		return admission.getLongestWaitMillis();
+	}
+	
 	//provide number of outlets in this machine.
 	public int getOutletCount() {
 		// TODO Auto-generated method stub
@@ -334,24 +1132,42 @@ public final class Machine implements CoffeeMachine {
 		return availableIngredients;
 	}
 	
+	//provides the ingredient requirement of a beverage served by this machine. Returns null if the beverage is not served.
+	public Map<String, Integer>getBeverageRecipe(String beverage){
+		Beverage bev = this.menu.get(beverage);
+		return bev == null ? null : bev.getRequiredIngredients();
+	}
+	
 	//this is a method used to test running multiple parallel orders. It sets current quantity to Int_max value for all ingredients. This should never be exposed to user in real scenario.
+	//These levels are not real stock, so the machine stops journaling instead of keeping them for the next start. The journal keeps the levels from before.
 	public void SetFullCapacityToInfinite() {
+		closeJournal();
 		for (Entry<String, Ingredient>e: this.ingredients.entrySet()) {
 			e.getValue().setNewCurrentCapacity(Integer.MAX_VALUE);
 		}
 	}
 	
-	//method to test different use cases which requires serial flow. Not required in production type implementation.
+	//stops journaling and releases the journal file, so another machine can open it. Changes to the levels from now on are not kept for the next start.
+	public void closeJournal() {
+		OrderJournal closing = this.journal;
+		this.journal = null;
+		if (closing != null) {
+			try {
+				closing.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//this is a method used to run orders without waiting for preparation. This should never be exposed to user in real scenario.
+	public void SetPreparationTime(int seconds) {
+		PREPARATION_TIME = seconds;
+	}
+	
+	//method to test different use cases which requires serial flow. It waits for the result of the order. Not required in production type implementation.
 	public String placeOrderSerially(String beverage) {
-		String result;
-		try {
-			verifyValidity(beverage);
-			running_order_count++;
-			result = this.getBeverage(beverage);
-		} catch (Exception e){
-			result = e.getMessage();
-		}	
-		return result;
+		return submitOrder(beverage).join().getMessage();
 	}
 	
 }
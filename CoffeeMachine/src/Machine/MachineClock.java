@@ -0,0 +1,50 @@
+package Machine;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Where a machine takes its time from and how it waits. Every timestamp on the order path, deadlines, refills and metrics read this clock instead of System.nanoTime,
+ * and outlets and refill timers wait through it, so the same machine logic can run on real time or on the virtual time of a Simulation.
+ * SYSTEM is real time. Its timer is a single daemon thread shared by all the machines of the process, created when it is first needed.
+ */
+abstract class MachineClock {
+
+	static final MachineClock SYSTEM = new SystemClock();
+
+	abstract long nanoTime();
+
+	//runs the task once the delay is over.
+	abstract void schedule(Runnable task, long delay_millis);
+
+	//the executor running the orders of a machine on this clock.
+	abstract OutletExecutor createExecutor(String mode, int outlets, int threads);
+
+	private static final class SystemClock extends MachineClock {
+		private ScheduledExecutorService timer;
+
+		long nanoTime() {
+			return System.nanoTime();
+		}
+
+		void schedule(Runnable task, long delay_millis) {
+			getTimer().schedule(task, delay_millis, TimeUnit.MILLISECONDS);
+		}
+
+		OutletExecutor createExecutor(String mode, int outlets, int threads) {
+			return OutletExecutor.create(mode, outlets, threads);
+		}
+
+		private synchronized ScheduledExecutorService getTimer() {
+			if (timer == null) {
+				timer = Executors.newSingleThreadScheduledExecutor(task -> {
+					Thread thread = new Thread(task, "machine-timer");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			return timer;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package Machine;
+
+/*
+ * Something that happened in the machine, as told to the subscribers of its event stream. Events are immutable so subscribers can keep them.
+ * Order events name the beverage, ingredient and restock events name the ingredient.
+ * Levels are the quantity of the ingredient before and after the change. They are 0 for order events.
+ */
+public final class MachineEvent {
+
+	public enum Type {
+		//the order passed the sanity checks and was handed to the admission queue. It is followed by ORDER_STARTED or ORDER_REJECTED.
+		ORDER_ACCEPTED,
+		//the ingredients of the order were taken and an outlet started preparing it.
+		ORDER_STARTED,
+		ORDER_COMPLETED,
+		ORDER_REJECTED,
+		INGREDIENT_LEVEL_CHANGED,
+		//the level of the ingredient went below or back above its low threshold.
+		THRESHOLD_CROSSED,
+		RESTOCK_STARTED,
+		RESTOCK_FINISHED
+	}
+
+	private final Type type;
+	private final long time_nanos;
+	private final String name;
+	private final int outlet;
+	private final int level_before;
+	private final int level_after;
+	private final OrderResult result;
+
+	private MachineEvent(Type _type, String _name, int _outlet, int _level_before, int _level_after, OrderResult _result) {
+		type = _type;
+		time_nanos = System.nanoTime();
+		name = _name;
+		outlet = _outlet;
+		level_before = _level_before;
+		level_after = _level_after;
+		result = _result;
+	}
+
+	static MachineEvent order(Type type, String beverage, int outlet) {
+		return new MachineEvent(type, beverage, outlet, 0, 0, null);
+	}
+
+	static MachineEvent finished(OrderResult result) {
+		return new MachineEvent(result.isPrepared() ? Type.ORDER_COMPLETED : Type.ORDER_REJECTED, result.getBeverage(), result.getOutlet(), 0, 0, result);
+	}
+
+	static MachineEvent level(Type type, String ingredient, int before, int after) {
+		return new MachineEvent(type, ingredient, OrderResult.NO_OUTLET, before, after, null);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	//System.nanoTime when the event happened.
+	public long getTimeNanos() {
+		return time_nanos;
+	}
+
+	//the beverage of an order event or the ingredient of the other events.
+	public String getName() {
+		return name;
+	}
+
+	public int getOutlet() {
+		return outlet;
+	}
+
+	public int getLevelBefore() {
+		return level_before;
+	}
+
+	public int getLevelAfter() {
+		return level_after;
+	}
+
+	//the result of the order for ORDER_COMPLETED and ORDER_REJECTED, null otherwise.
+	public OrderResult getResult() {
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		switch (type) {
+		case ORDER_COMPLETED:
+		case ORDER_REJECTED:
+			return type + " " + result;
+		case ORDER_ACCEPTED:
+		case ORDER_STARTED:
+			return type + " " + name + (outlet == OrderResult.NO_OUTLET ? "" : " on outlet " + outlet);
+		default:
+			return type + " " + name + " " + level_before + " -> " + level_after;
+		}
+	}
+}
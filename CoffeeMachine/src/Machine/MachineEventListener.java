@@ -0,0 +1,11 @@
+package Machine;
+
+/*
+ * Subscriber of the event stream of a machine. Each subscriber gets its own thread, which hands it the events in the order they were published,
+ * as many at a time as have been published since its last call. end_of_batch is true for the last event available for now, so work like flushing a dashboard can be done once per batch.
+ * A slow subscriber never slows down the orders. If it falls a whole ring behind, new events are dropped for everyone and counted instead.
+ */
+public interface MachineEventListener {
+
+	void onEvent(MachineEvent event, boolean end_of_batch);
+}
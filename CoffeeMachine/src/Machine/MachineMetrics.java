@@ -0,0 +1,244 @@
+package Machine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Instrumentation of the order path of a machine. Every order result is recorded once when it completes: 
+ * counters per beverage and per failure reason, and latency histograms for the time spent waiting for an outlet (queue), checking and reserving ingredients (verify) 
+ * and at the outlet (prepare), along with a histogram of the total latency of each beverage. 
+ * The time spent waiting for an outlet is also kept per OrderPriority, like "queue.interactive.p99", to show how each class of orders fares under load.
+ * For beverages prepared in stages, the PreparationPipeline keeps how busy each shared resource was and how long stages waited for it, like "wait.boiler.p99".
+ * Recording only touches LongAdders and lock-free histograms, so it adds next to nothing to the order path. 
+ * Gauges like outlet use and ingredient levels are read from the machine when a snapshot is taken.
+ * The same metrics are registered with the platform MBean server so they can be watched over JMX.
+ */
+class MachineMetrics implements MachineMetricsMXBean {
+	
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+	
+	private static class BeverageStats {
+		final LongAdder prepared = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LatencyHistogram latency = new LatencyHistogram();
+	}
+	
+	private final Machine machine;
+	private final long started_at;
+	private final LongAdder prepared = new LongAdder();
+	private final LongAdder[] rejections_by_reason;
+	private final ConcurrentHashMap<String, BeverageStats> beverages = new ConcurrentHashMap<>();
+	private final LatencyHistogram queue_latency = new LatencyHistogram();
+	private final LatencyHistogram[] queue_latency_by_priority;
+	private final LatencyHistogram verify_latency = new LatencyHistogram();
+	private final LatencyHistogram prepare_latency = new LatencyHistogram();
+	private final LongAdder outlet_busy_nanos = new LongAdder();
+	
+	MachineMetrics(Machine _machine) {
+		machine = _machine;
+		started_at = machine.nanoTime();
+		rejections_by_reason = new LongAdder[OrderResult.FailureReason.values().length];
+		for (int i=0; i<rejections_by_reason.length; i++) {
+			rejections_by_reason[i] = new LongAdder();
+		}
+		queue_latency_by_priority = new LatencyHistogram[OrderPriority.values().length];
+		for (int i=0; i<queue_latency_by_priority.length; i++) {
+			queue_latency_by_priority[i] = new LatencyHistogram();
+		}
+	}
+	
+	//starts keeping per beverage metrics for a beverage served by the machine.
+	void addBeverage(String beverage) {
+		beverages.putIfAbsent(beverage, new BeverageStats());
+	}
+	
+	void record(OrderResult result) {
+		BeverageStats stats = beverages.get(result.getBeverage());
+		if (result.isPrepared()) {
+			prepared.increment();
+			if (stats != null) {
+				stats.prepared.increment();
+				stats.latency.record(result.getCompletedAtNanos() - result.getSubmittedAtNanos());
+			}
+		} else {
+			rejections_by_reason[result.getFailureReason().ordinal()].increment();
+			if (stats != null) {
+				stats.rejected.increment();
+			}
+		}
+		if (result.getOutlet() != OrderResult.NO_OUTLET) {
+			long at_outlet = result.getCompletedAtNanos() - result.getStartedAtNanos();
+			long queued = result.getStartedAtNanos() - result.getSubmittedAtNanos();
+			queue_latency.record(queued);
+			queue_latency_by_priority[result.getPriority().ordinal()].record(queued);
+			prepare_latency.record(at_outlet);
+			outlet_busy_nanos.add(at_outlet);
+		}
+	}
+	
+	//time taken to check and reserve the ingredients of an order.
+	void recordVerify(long nanos) {
+		verify_latency.record(nanos);
+	}
+	
+	MetricsSnapshot snapshot() {
+		long uptime_nanos = uptimeNanos();
+		Map<String, Double> resources = machine.getPipeline().getUtilisation(uptime_nanos);
+		return new MetricsSnapshot(uptime_nanos / 1000000, prepared.sum(), rejectedCount(), rejectionsByReason(), beverageCounts(true), beverageCounts(false), latencyPercentiles(), 
+				machine.getOutletCount(), machine.getBusyOutletCount(), outletUtilisation(uptime_nanos), machine.getQueuedOrderCount(), ingredientLevels(), 
+				consumptionPerMinute(uptime_nanos), resources, bottleneck(uptime_nanos, resources));
+	}
+	
+	//the parts of a snapshot, so each getter of the MXBean reads only what it returns.
+	
+	private long uptimeNanos() {
+		return Math.max(1, machine.nanoTime() - started_at);
+	}
+	
+	//rejections of every reason, including NONE which is only counted for the total.
+	private long rejectedCount() {
+		long rejected = 0;
+		for (LongAdder count: rejections_by_reason) {
+			rejected += count.sum();
+		}
+		return rejected;
+	}
+	
+	private Map<String, Long> rejectionsByReason() {
+		Map<String, Long> by_reason = new LinkedHashMap<>();
+		for (OrderResult.FailureReason reason: OrderResult.FailureReason.values()) {
+			if (reason != OrderResult.FailureReason.NONE) {
+				by_reason.put(reason.name(), rejections_by_reason[reason.ordinal()].sum());
+			}
+		}
+		return by_reason;
+	}
+	
+	private Map<String, Long> beverageCounts(boolean prepared) {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<String, BeverageStats> e: beverages.entrySet()) {
+			counts.put(e.getKey(), (prepared ? e.getValue().prepared : e.getValue().rejected).sum());
+		}
+		return counts;
+	}
+	
+	private Map<String, Long> latencyPercentiles() {
+		Map<String, Long> latencies = new LinkedHashMap<>();
+		addPercentiles(latencies, "queue", queue_latency);
+		for (OrderPriority priority: OrderPriority.values()) {
+			addPercentiles(latencies, "queue." + priority.getKey(), queue_latency_by_priority[priority.ordinal()]);
+		}
+		addPercentiles(latencies, "verify", verify_latency);
+		addPercentiles(latencies, "prepare", prepare_latency);
+		machine.getPipeline().addWaitPercentiles(latencies, PERCENTILES, PERCENTILE_NAMES);
+		for (Map.Entry<String, BeverageStats> e: new TreeMap<>(beverages).entrySet()) {
+			addPercentiles(latencies, e.getKey(), e.getValue().latency);
+		}
+		return latencies;
+	}
+	
+	private Map<String, Integer> ingredientLevels() {
+		Map<String, Integer> levels = new TreeMap<>();
+		for (Ingredient ingredient: machine.getIngredientObjects()) {
+			levels.put(ingredient.getName(), ingredient.getCurrent_quantity());
+		}
+		return levels;
+	}
+	
+	private Map<String, Double> consumptionPerMinute(long uptime_nanos) {
+		double minutes = uptime_nanos / 60e9;
+		Map<String, Double> consumption = new TreeMap<>();
+		for (Ingredient ingredient: machine.getIngredientObjects()) {
+			consumption.put(ingredient.getName(), ingredient.getConsumed() / minutes);
+		}
+		return consumption;
+	}
+	
+	private double outletUtilisation(long uptime_nanos) {
+		return Math.min(1.0, outlet_busy_nanos.sum() / ((double)uptime_nanos * machine.getOutletCount()));
+	}
+	
+	//outlets waiting for a shared resource are held up by the resource, so only the rest of their time counts when looking for the bottleneck.
+	private String bottleneck(long uptime_nanos, Map<String, Double> resources) {
+		String bottleneck = "outlets";
+		double busiest = Math.max(0, outlet_busy_nanos.sum() - machine.getPipeline().getWaitNanos()) / ((double)uptime_nanos * machine.getOutletCount());
+		for (Map.Entry<String, Double> e: resources.entrySet()) {
+			if (e.getValue() > busiest) {
+				bottleneck = e.getKey();
+				busiest = e.getValue();
+			}
+		}
+		return bottleneck;
+	}
+	
+	private static void addPercentiles(Map<String, Long> latencies, String name, LatencyHistogram histogram) {
+		for (int i=0; i<PERCENTILES.length; i++) {
+			latencies.put(name + "." + PERCENTILE_NAMES[i], histogram.getPercentile(PERCENTILES[i]) / 1000);
+		}
+	}
+
+	public long getUptimeMillis() {
+		return uptimeNanos() / 1000000;
+	}
+
+	public long getPreparedCount() {
+		return prepared.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount();
+	}
+
+	public Map<String, Long> getRejectionsByReason() {
+		return rejectionsByReason();
+	}
+
+	public Map<String, Long> getPreparedByBeverage() {
+		return beverageCounts(true);
+	}
+
+	public Map<String, Long> getRejectedByBeverage() {
+		return beverageCounts(false);
+	}
+
+	public Map<String, Long> getLatencyPercentilesMicros() {
+		return latencyPercentiles();
+	}
+
+	public int getOutletCount() {
+		return machine.getOutletCount();
+	}
+
+	public int getBusyOutletCount() {
+		return machine.getBusyOutletCount();
+	}
+
+	public double getOutletUtilisation() {
+		return outletUtilisation(uptimeNanos());
+	}
+
+	public int getQueuedOrderCount() {
+		return machine.getQueuedOrderCount();
+	}
+
+	public Map<String, Integer> getIngredientLevels() {
+		return ingredientLevels();
+	}
+
+	public Map<String, Double> getConsumptionPerMinute() {
+		return consumptionPerMinute(uptimeNanos());
+	}
+
+	public Map<String, Double> getResourceUtilisation() {
+		return machine.getPipeline().getUtilisation(uptimeNanos());
+	}
+
+	public String getBottleneck() {
+		long uptime_nanos = uptimeNanos();
+		return bottleneck(uptime_nanos, machine.getPipeline().getUtilisation(uptime_nanos));
+	}
+}
@@ -0,0 +1,27 @@
+package Machine;
+
+import java.util.Map;
+
+/*
+ * The metrics of a machine as exposed through JMX. The same getters are available in process on a MetricsSnapshot.
+ * Latencies are in microseconds, keyed by stage (queue, verify, prepare) or beverage name followed by the percentile, like "queue.p99" or "hot_tea.p50".
+ * The queue latency is also given per priority, like "queue.bulk.p99", and the time stages waited for a shared resource per resource, like "wait.boiler.p99".
+ */
+public interface MachineMetricsMXBean {
+	
+	public long getUptimeMillis();
+	public long getPreparedCount();
+	public long getRejectedCount();
+	public Map<String, Long> getRejectionsByReason();
+	public Map<String, Long> getPreparedByBeverage();
+	public Map<String, Long> getRejectedByBeverage();
+	public Map<String, Long> getLatencyPercentilesMicros();
+	public int getOutletCount();
+	public int getBusyOutletCount();
+	public double getOutletUtilisation();
+	public int getQueuedOrderCount();
+	public Map<String, Integer> getIngredientLevels();
+	public Map<String, Double> getConsumptionPerMinute();
+	public Map<String, Double> getResourceUtilisation();
+	public String getBottleneck();
+}
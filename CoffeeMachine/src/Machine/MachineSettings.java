@@ -0,0 +1,71 @@
+package Machine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Typed content of a settings file, as read by the SettingsLoader. Ingredients and beverages are already built, in the order of the file.
+ * Optional blocks which are missing from the file keep the defaults below, which give the same machine as before the blocks existed.
+ */
+final class MachineSettings {
+
+	//the settings file, for the errors found once the settings are read.
+	String file;
+
+	int outlet_count;
+
+	String execution_mode;
+	int execution_threads;
+
+	int queue_capacity;
+	String admission_policy;
+	int timeout_ms;
+	int deadline_ms;
+	//weight of each priority in the fair sharing of the outlets, by the ordinal of the OrderPriority, and how long an order waits before it goes ahead of the others.
+	final int[] priority_weights = defaultWeights();
+	int aging_ms;
+	//fair, or most_served to plan the order of the waiting orders around the stock. The window is how many waiting orders the plan looks at.
+	String admission_ordering;
+	int reorder_window = 16;
+
+	//null if the settings do not ask for a journal.
+	String journal_path;
+	int journal_capacity_kb = 1024;
+	int journal_sync_interval_ms = 100;
+
+	boolean forecast_configured;
+	int forecast_interval_ms;
+	int forecast_half_life_ms;
+	int forecast_horizon_ms;
+
+	int event_ring_size = EventBus.DEFAULT_RING_SIZE;
+
+	//the order history keeps at most max_segments segments of segment_ms each, of at most segment_rows orders. 0 segments keeps no history.
+	int history_segment_ms = 60000;
+	int history_segment_rows = 65536;
+	int history_max_segments = 60;
+
+	//orders per second and burst of the token bucket of each source, and how many sources get their own bucket. A rate of 0 limits no one.
+	double client_rate;
+	int client_burst = 10;
+	int max_clients = 10000;
+	//low priority orders are shed once this share of the outlets is busy and the admission queue is fuller than the fill. A fill of 1 sheds nothing.
+	double shed_utilisation = 1;
+	double shed_queue_fill = 1;
+
+	final Map<String, Ingredient> ingredients = new LinkedHashMap<>();
+	final Map<String, Beverage> beverages = new LinkedHashMap<>();
+
+	//shared resources of the preparation pipeline with their number of units, and the stages of the beverages prepared in stages, by beverage name.
+	final Map<String, Integer> resources = new LinkedHashMap<>();
+	final Map<String, PreparationStage[]> stages = new LinkedHashMap<>();
+	
+	private static int[] defaultWeights() {
+		OrderPriority[] priorities = OrderPriority.values();
+		int[] weights = new int[priorities.length];
+		for (OrderPriority priority: priorities) {
+			weights[priority.ordinal()] = priority.getDefaultWeight();
+		}
+		return weights;
+	}
+}
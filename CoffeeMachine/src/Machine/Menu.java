@@ -0,0 +1,43 @@
+package Machine;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The beverages served by a machine at one point in time, with their compiled recipes and the availability index over them. A menu is never changed once built.
+ * The machine holds its current menu in a volatile field and replaces it as a whole when the menu is reloaded, so every order sees either the old menu or the new one, never a mix.
+ * An order keeps the Beverage it was accepted for, so orders in flight during a reload finish on the recipe they were accepted with.
+ */
+final class Menu {
+
+	private final Map<String, Beverage> beverages;
+	private final AvailabilityIndex availability;
+
+	//the beverages must already be compiled, with ids 0 to n-1 in the order given.
+	Menu(Machine machine, Beverage[] by_id, int ingredient_count) {
+		Map<String, Beverage> by_name = new HashMap<>();
+		for (Beverage beverage: by_id) {
+			by_name.put(beverage.getName(), beverage);
+		}
+		this.beverages = Collections.unmodifiableMap(by_name);
+		this.availability = new AvailabilityIndex(machine, by_id, ingredient_count);
+	}
+
+	//the beverage of that name, or null if it is not on the menu.
+	Beverage get(String name) {
+		return beverages.get(name);
+	}
+
+	Map<String, Beverage> getBeverages() {
+		return beverages;
+	}
+
+	AvailabilityIndex getAvailability() {
+		return availability;
+	}
+
+	boolean isServable(Beverage beverage) {
+		return availability.isServable(beverage.getId());
+	}
+}
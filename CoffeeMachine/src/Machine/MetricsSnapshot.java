@@ -0,0 +1,160 @@
+package Machine;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * An immutable copy of the metrics of a machine taken at one point in time. Created by MachineMetrics.snapshot.
+ */
+public final class MetricsSnapshot implements MachineMetricsMXBean {
+	
+	private final long uptime_millis;
+	private final long prepared;
+	private final long rejected;
+	private final Map<String, Long> rejections_by_reason;
+	private final Map<String, Long> prepared_by_beverage;
+	private final Map<String, Long> rejected_by_beverage;
+	private final Map<String, Long> latency_percentiles;
+	private final int outlets;
+	private final int busy_outlets;
+	private final double outlet_utilisation;
+	private final int queued_orders;
+	private final Map<String, Integer> ingredient_levels;
+	private final Map<String, Double> consumption_per_minute;
+	private final Map<String, Double> resource_utilisation;
+	private final String bottleneck;
+	
+	MetricsSnapshot(long _uptime_millis, long _prepared, long _rejected, Map<String, Long> _rejections_by_reason, Map<String, Long> _prepared_by_beverage, 
+			Map<String, Long> _rejected_by_beverage, Map<String, Long> _latency_percentiles, int _outlets, int _busy_outlets, double _outlet_utilisation, 
+			int _queued_orders, Map<String, Integer> _ingredient_levels, Map<String, Double> _consumption_per_minute, Map<String, Double> _resource_utilisation, String _bottleneck) {
+		uptime_millis = _uptime_millis;
+		prepared = _prepared;
+		rejected = _rejected;
+		rejections_by_reason = Collections.unmodifiableMap(_rejections_by_reason);
+		prepared_by_beverage = Collections.unmodifiableMap(_prepared_by_beverage);
+		rejected_by_beverage = Collections.unmodifiableMap(_rejected_by_beverage);
+		latency_percentiles = Collections.unmodifiableMap(_latency_percentiles);
+		outlets = _outlets;
+		busy_outlets = _busy_outlets;
+		outlet_utilisation = _outlet_utilisation;
+		queued_orders = _queued_orders;
+		ingredient_levels = Collections.unmodifiableMap(_ingredient_levels);
+		consumption_per_minute = Collections.unmodifiableMap(_consumption_per_minute);
+		resource_utilisation = Collections.unmodifiableMap(_resource_utilisation);
+		bottleneck = _bottleneck;
+	}
+
+	/*
+	 * Combines the snapshots of several machines into one, for a fleet. Counts, outlets and consumption add up, and utilisation is weighted by outlets.
+	 * Percentiles of different machines can not be merged exactly, so each latency percentile is the highest among the machines. So is the utilisation of each shared resource,
+	 * and the bottleneck is the one of the machine with the busiest outlets.
+	 */
+	static MetricsSnapshot combine(List<MetricsSnapshot> snapshots) {
+		long uptime = 0, prepared = 0, rejected = 0;
+		int outlets = 0, busy = 0, queued = 0;
+		double busy_outlets = 0, busiest = -1;
+		String bottleneck = "outlets";
+		Map<String, Long> by_reason = new TreeMap<>(), prepared_by_beverage = new TreeMap<>(), rejected_by_beverage = new TreeMap<>(), latencies = new TreeMap<>();
+		Map<String, Integer> levels = new TreeMap<>();
+		Map<String, Double> consumption = new TreeMap<>(), resources = new TreeMap<>();
+		for (MetricsSnapshot s: snapshots) {
+			uptime = Math.max(uptime, s.uptime_millis);
+			prepared += s.prepared;
+			rejected += s.rejected;
+			outlets += s.outlets;
+			busy += s.busy_outlets;
+			queued += s.queued_orders;
+			busy_outlets += s.outlet_utilisation * s.outlets;
+			s.rejections_by_reason.forEach((k, v) -> by_reason.merge(k, v, Long::sum));
+			s.prepared_by_beverage.forEach((k, v) -> prepared_by_beverage.merge(k, v, Long::sum));
+			s.rejected_by_beverage.forEach((k, v) -> rejected_by_beverage.merge(k, v, Long::sum));
+			s.latency_percentiles.forEach((k, v) -> latencies.merge(k, v, Math::max));
+			s.ingredient_levels.forEach((k, v) -> levels.merge(k, v, Integer::sum));
+			s.consumption_per_minute.forEach((k, v) -> consumption.merge(k, v, Double::sum));
+			s.resource_utilisation.forEach((k, v) -> resources.merge(k, v, Math::max));
+			if (s.outlet_utilisation > busiest) {
+				busiest = s.outlet_utilisation;
+				bottleneck = s.bottleneck;
+			}
+		}
+		return new MetricsSnapshot(uptime, prepared, rejected, by_reason, prepared_by_beverage, rejected_by_beverage, latencies, outlets, busy, 
+				outlets == 0 ? 0 : busy_outlets / outlets, queued, levels, consumption, resources, bottleneck);
+	}
+
+	public long getUptimeMillis() {
+		return uptime_millis;
+	}
+
+	public long getPreparedCount() {
+		return prepared;
+	}
+
+	public long getRejectedCount() {
+		return rejected;
+	}
+
+	public Map<String, Long> getRejectionsByReason() {
+		return rejections_by_reason;
+	}
+
+	public Map<String, Long> getPreparedByBeverage() {
+		return prepared_by_beverage;
+	}
+
+	public Map<String, Long> getRejectedByBeverage() {
+		return rejected_by_beverage;
+	}
+
+	public Map<String, Long> getLatencyPercentilesMicros() {
+		return latency_percentiles;
+	}
+
+	public int getOutletCount() {
+		return outlets;
+	}
+
+	public int getBusyOutletCount() {
+		return busy_outlets;
+	}
+
+	//fraction of the outlet time since start that was spent serving orders, between 0 and 1.
+	public double getOutletUtilisation() {
+		return outlet_utilisation;
+	}
+
+	public int getQueuedOrderCount() {
+		return queued_orders;
+	}
+
+	public Map<String, Integer> getIngredientLevels() {
+		return ingredient_levels;
+	}
+
+	//average quantity of each ingredient used per minute since start.
+	public Map<String, Double> getConsumptionPerMinute() {
+		return consumption_per_minute;
+	}
+
+	//fraction of the time since start each shared resource of the preparation pipeline spent busy, over all its units, between 0 and 1.
+	public Map<String, Double> getResourceUtilisation() {
+		return resource_utilisation;
+	}
+
+	//what limits how many beverages the machine makes: the shared resource busy the largest share of its time, or "outlets" if the outlets are busier than all of them
+	//once the time they spent waiting for a resource is left out.
+	public String getBottleneck() {
+		return bottleneck;
+	}
+	
+	@Override
+	public String toString() {
+		return "prepared: " + prepared + " rejected: " + rejected + " " + rejections_by_reason + "\n"
+				+ "prepared by beverage: " + prepared_by_beverage + " rejected by beverage: " + rejected_by_beverage + "\n"
+				+ "latency (us): " + latency_percentiles + "\n"
+				+ "outlets busy: " + busy_outlets + "/" + outlets + " utilisation: " + String.format("%.3f", outlet_utilisation) + " queued: " + queued_orders + "\n"
+				+ "ingredients: " + ingredient_levels + " consumption per minute: " + consumption_per_minute
+				+ (resource_utilisation.isEmpty() ? "" : "\nresource utilisation: " + resource_utilisation + " bottleneck: " + getBottleneck());
+	}
+}
@@ -0,0 +1,383 @@
+package Machine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Every order the machine completed or rejected, kept in memory so that questions like "which drinks drained hot_milk in the last hour" or
+ * "what was the peak of orders per minute" can be answered after the fact. Answers come from a scan of the orders in the window, so they are exact.
+ *
+ * The orders are kept in columns outside of the heap, one direct buffer per field, rather than as an object per order:
+ *     completed at (long nanos)  beverage (int code)  outcome (byte FailureReason ordinal, 0 when prepared)  priority (byte)  outlet (short)
+ *     queue time (int micros)  preparation time (int micros)
+ * which is 24 bytes an order and nothing for the garbage collector to trace. A query reads only the columns it needs, in tight loops over plain arrays of numbers.
+ *
+ * The columns are cut into segments by time, a new one every segment_ms or whenever the current one is full. Once there are max_segments the oldest is dropped,
+ * so the history keeps at most max_segments * segment_rows orders. A new segment is sized at twice the orders of the last one, within 1024 and segment_rows,
+ * so a quiet machine does not hold large empty buffers. Queries skip the segments which end before their window.
+ * Times are on the clock of the machine, so the history of a Simulation is on virtual time.
+ *
+ * The beverage code stands for the recipe an order was accepted with, not just its name, so the consumption of the orders placed before a menu reload is
+ * worked out from the recipe they were made with. Rejected orders did not use any ingredient.
+ * Appending takes a short lock. Queries take no lock and see every order appended before they started.
+ * Every query covers the orders completed in the last window_millis. A window of 0 covers the whole history kept.
+ */
+public final class OrderHistory {
+
+	private static final int MIN_SEGMENT_ROWS = 1024;
+	//beverage names which are not on the menu get a code each up to this many codes, and share one code after, so clients ordering made up names can not grow the history without bound.
+	private static final int MAX_CODES = 4096;
+	private static final String OTHER = "other";
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+	//bytes taken by one order over all the columns.
+	private static final int ROW_BYTES = 8 + 4 + 1 + 1 + 2 + 4 + 4;
+
+	//one stretch of time of the history. Rows are written under the lock of the history and published by the volatile row count.
+	private static final class Segment {
+		final int capacity;
+		final long started_at;
+		final LongBuffer completed_at;
+		final IntBuffer beverage;
+		final ByteBuffer outcome;
+		final ByteBuffer priority;
+		final ByteBuffer outlet;
+		final IntBuffer queue_micros;
+		final IntBuffer prepare_micros;
+		long min_at = Long.MAX_VALUE;
+		long max_at = Long.MIN_VALUE;
+		volatile int rows;
+
+		Segment(int _capacity, long _started_at) {
+			capacity = _capacity;
+			started_at = _started_at;
+			completed_at = column(_capacity * 8).asLongBuffer();
+			beverage = column(_capacity * 4).asIntBuffer();
+			outcome = column(_capacity);
+			priority = column(_capacity);
+			outlet = column(_capacity * 2);
+			queue_micros = column(_capacity * 4).asIntBuffer();
+			prepare_micros = column(_capacity * 4).asIntBuffer();
+		}
+
+		private static ByteBuffer column(int bytes) {
+			return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		}
+
+		//first row completed at or after the given time. The rows are in the order they were appended, which is their completion order
+		//up to the few microseconds between taking the time and taking the lock, so a binary search finds the start of a window closely enough.
+		int firstRowAtOrAfter(long from, int rows) {
+			if (min_at >= from) {
+				return 0;
+			}
+			int low = 0, high = rows;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (completed_at.get(mid) < from) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	private final Machine machine;
+	private final long segment_nanos;
+	private final int segment_rows;
+	private final int max_segments;
+	//the code of each recipe, and the recipe and name of each code. Beverages which are not on the menu have a code by name and no recipe.
+	private final ConcurrentHashMap<Object, Integer> codes = new ConcurrentHashMap<>();
+	private volatile Beverage[] recipes = new Beverage[0];
+	private volatile String[] names = new String[0];
+	//oldest first. Replaced as a whole when a segment is added or dropped, so queries can read it without the lock.
+	private volatile Segment[] segments = new Segment[0];
+	private Segment current;
+	private long dropped;
+
+	OrderHistory(Machine _machine, long segment_millis, int _segment_rows, int _max_segments) {
+		machine = _machine;
+		segment_nanos = segment_millis * 1000000;
+		segment_rows = _segment_rows;
+		max_segments = _max_segments;
+	}
+
+	//records a completed order. The recipe is the one the order was accepted with, or null if it never got one, like a beverage which is not on the menu.
+	void append(OrderResult result, Beverage recipe) {
+		int code = code(recipe, result.getBeverage());
+		long at = result.getCompletedAtNanos();
+		long queued = (result.getStartedAtNanos() - result.getSubmittedAtNanos()) / 1000;
+		long preparing = (result.getCompletedAtNanos() - result.getStartedAtNanos()) / 1000;
+		synchronized (this) {
+			Segment segment = current;
+			if (segment == null || segment.rows == segment.capacity || at - segment.started_at >= segment_nanos) {
+				segment = roll(at);
+			}
+			int row = segment.rows;
+			segment.completed_at.put(row, at);
+			segment.beverage.put(row, code);
+			segment.outcome.put(row, (byte)result.getFailureReason().ordinal());
+			segment.priority.put(row, (byte)result.getPriority().ordinal());
+			segment.outlet.putShort(row * 2, (short)result.getOutlet());
+			segment.queue_micros.put(row, (int)Math.min(Integer.MAX_VALUE, Math.max(0, queued)));
+			segment.prepare_micros.put(row, (int)Math.min(Integer.MAX_VALUE, Math.max(0, preparing)));
+			segment.min_at = Math.min(segment.min_at, at);
+			segment.max_at = Math.max(segment.max_at, at);
+			segment.rows = row + 1;
+		}
+	}
+
+	private Segment roll(long at) {
+		int capacity = current == null ? MIN_SEGMENT_ROWS : current.rows * 2;
+		current = new Segment(Math.max(Math.min(MIN_SEGMENT_ROWS, segment_rows), Math.min(segment_rows, capacity)), at);
+		Segment[] old = segments;
+		int keep = Math.min(old.length, max_segments - 1);
+		for (int i=0; i<old.length - keep; i++) {
+			dropped += old[i].rows;
+		}
+		Segment[] next = Arrays.copyOfRange(old, old.length - keep, old.length + 1);
+		next[keep] = current;
+		segments = next;
+		return current;
+	}
+
+	private int code(Beverage recipe, String name) {
+		Object key = recipe != null ? recipe : name;
+		if (recipe == null && codes.size() >= MAX_CODES && !codes.containsKey(key)) {
+			key = OTHER;
+			name = OTHER;
+		}
+		Integer code = codes.get(key);
+		if (code != null) {
+			return code;
+		}
+		synchronized (codes) {
+			code = codes.get(key);
+			if (code == null) {
+				code = names.length;
+				Beverage[] more_recipes = Arrays.copyOf(recipes, code + 1);
+				String[] more_names = Arrays.copyOf(names, code + 1);
+				more_recipes[code] = recipe;
+				more_names[code] = name;
+				recipes = more_recipes;
+				names = more_names;
+				codes.put(key, code);
+			}
+			return code;
+		}
+	}
+
+	//orders kept, which may be fewer than the orders completed once old segments are dropped.
+	public long getOrderCount() {
+		long rows = 0;
+		for (Segment segment: segments) {
+			rows += segment.rows;
+		}
+		return rows;
+	}
+
+	//orders dropped with the oldest segments to keep the history within its memory.
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	//memory taken outside of the heap by the segments kept.
+	public long getMemoryBytes() {
+		long bytes = 0;
+		for (Segment segment: segments) {
+			bytes += (long)segment.capacity * ROW_BYTES;
+		}
+		return bytes;
+	}
+
+	//orders completed in the last window_millis, prepared or not.
+	public long countOrders(long window_millis) {
+		long from = from(window_millis);
+		long count = 0;
+		for (Segment segment: segments) {
+			int rows = segment.rows;
+			if (segment.max_at >= from) {
+				count += rows - segment.firstRowAtOrAfter(from, rows);
+			}
+		}
+		return count;
+	}
+
+	//prepared orders of each beverage in the last window_millis.
+	public Map<String, Long> getPreparedByBeverage(long window_millis) {
+		long[] by_code = preparedByCode(from(window_millis));
+		String[] known = names;
+		Map<String, Long> prepared = new TreeMap<>();
+		for (int code=0; code<by_code.length; code++) {
+			if (by_code[code] > 0) {
+				prepared.merge(known[code], by_code[code], Long::sum);
+			}
+		}
+		return prepared;
+	}
+
+	//rejected orders of each failure reason in the last window_millis.
+	public Map<String, Long> getRejectionsByReason(long window_millis) {
+		long from = from(window_millis);
+		long[] by_reason = new long[256];
+		for (Segment segment: segments) {
+			int rows = segment.rows;
+			if (segment.max_at < from) {
+				continue;
+			}
+			ByteBuffer outcome = segment.outcome;
+			for (int row=segment.firstRowAtOrAfter(from, rows); row<rows; row++) {
+				by_reason[outcome.get(row)]++;
+			}
+		}
+		Map<String, Long> rejections = new LinkedHashMap<>();
+		for (OrderResult.FailureReason reason: OrderResult.FailureReason.values()) {
+			if (reason != OrderResult.FailureReason.NONE && by_reason[reason.ordinal()] > 0) {
+				rejections.put(reason.name(), by_reason[reason.ordinal()]);
+			}
+		}
+		return rejections;
+	}
+
+	//quantity of each ingredient used by the orders prepared in the last window_millis.
+	public Map<String, Long> getConsumption(long window_millis) {
+		long[] by_code = preparedByCode(from(window_millis));
+		Beverage[] known = recipes;
+		Map<String, Long> consumption = new TreeMap<>();
+		for (int code=0; code<by_code.length; code++) {
+			if (by_code[code] == 0 || known[code] == null) {
+				continue;
+			}
+			String[] ingredients = known[code].getIngredientNames();
+			int[] quantities = known[code].getQuantities();
+			for (int i=0; i<ingredients.length; i++) {
+				consumption.merge(ingredients[i], by_code[code] * quantities[i], Long::sum);
+			}
+		}
+		return consumption;
+	}
+
+	//quantity of the ingredient used by each beverage prepared in the last window_millis, for finding which drinks drained it.
+	public Map<String, Long> getConsumptionByBeverage(String ingredient, long window_millis) {
+		long[] by_code = preparedByCode(from(window_millis));
+		Beverage[] known = recipes;
+		Map<String, Long> consumption = new TreeMap<>();
+		for (int code=0; code<by_code.length; code++) {
+			if (by_code[code] == 0 || known[code] == null) {
+				continue;
+			}
+			String[] ingredients = known[code].getIngredientNames();
+			for (int i=0; i<ingredients.length; i++) {
+				if (ingredients[i].equals(ingredient)) {
+					consumption.merge(names[code], by_code[code] * known[code].getQuantities()[i], Long::sum);
+				}
+			}
+		}
+		return consumption;
+	}
+
+	//number of orders completed in each minute of the last window_millis, oldest first. The window starts no earlier than the oldest order kept.
+	public long[] getOrdersPerMinute(long window_millis) {
+		Segment[] kept = segments;
+		if (kept.length == 0 || kept[0].rows == 0) {
+			return new long[0];
+		}
+		long from = Math.max(from(window_millis), kept[0].min_at);
+		long now = machine.nanoTime();
+		long[] minutes = new long[(int)Math.min(Integer.MAX_VALUE - 8, Math.max(0, now - from) / 60000000000L + 1)];
+		for (Segment segment: kept) {
+			int rows = segment.rows;
+			if (segment.max_at < from) {
+				continue;
+			}
+			LongBuffer completed_at = segment.completed_at;
+			for (int row=segment.firstRowAtOrAfter(from, rows); row<rows; row++) {
+				int minute = (int)((completed_at.get(row) - from) / 60000000000L);
+				minutes[Math.max(0, Math.min(minutes.length - 1, minute))]++;
+			}
+		}
+		return minutes;
+	}
+
+	//the most orders completed in any minute of the last window_millis.
+	public long getPeakOrdersPerMinute(long window_millis) {
+		long peak = 0;
+		for (long count: getOrdersPerMinute(window_millis)) {
+			peak = Math.max(peak, count);
+		}
+		return peak;
+	}
+
+	/*
+	 * Percentiles of the time the orders prepared in the last window_millis spent waiting for an outlet (queue), at the outlet (prepare) and in total,
+	 * like "queue.p99", in microseconds. Read into bucket counts like the ones of the LatencyHistogram, so the result is just as close.
+	 */
+	public Map<String, Long> getLatencyPercentilesMicros(long window_millis) {
+		long from = from(window_millis);
+		long[] queue = new long[LatencyHistogram.BUCKETS];
+		long[] prepare = new long[LatencyHistogram.BUCKETS];
+		long[] total = new long[LatencyHistogram.BUCKETS];
+		for (Segment segment: segments) {
+			int rows = segment.rows;
+			if (segment.max_at < from) {
+				continue;
+			}
+			ByteBuffer outcome = segment.outcome;
+			IntBuffer queue_micros = segment.queue_micros;
+			IntBuffer prepare_micros = segment.prepare_micros;
+			for (int row=segment.firstRowAtOrAfter(from, rows); row<rows; row++) {
+				if (outcome.get(row) != 0) {
+					continue;
+				}
+				long queued = queue_micros.get(row) * 1000L;
+				long preparing = prepare_micros.get(row) * 1000L;
+				queue[LatencyHistogram.index(queued)]++;
+				prepare[LatencyHistogram.index(preparing)]++;
+				total[LatencyHistogram.index(queued + preparing)]++;
+			}
+		}
+		Map<String, Long> latencies = new LinkedHashMap<>();
+		addPercentiles(latencies, "queue", queue);
+		addPercentiles(latencies, "prepare", prepare);
+		addPercentiles(latencies, "total", total);
+		return latencies;
+	}
+
+	//prepared orders in the window counted by beverage code.
+	private long[] preparedByCode(long from) {
+		long[] by_code = new long[names.length];
+		for (Segment segment: segments) {
+			int rows = segment.rows;
+			if (segment.max_at < from) {
+				continue;
+			}
+			ByteBuffer outcome = segment.outcome;
+			IntBuffer beverage = segment.beverage;
+			for (int row=segment.firstRowAtOrAfter(from, rows); row<rows; row++) {
+				int code = beverage.get(row);
+				if (outcome.get(row) == 0 && code < by_code.length) {
+					by_code[code]++;
+				}
+			}
+		}
+		return by_code;
+	}
+
+	private long from(long window_millis) {
+		return window_millis <= 0 || window_millis >= Long.MAX_VALUE / 1000000 ? Long.MIN_VALUE : machine.nanoTime() - window_millis * 1000000;
+	}
+
+	private static void addPercentiles(Map<String, Long> latencies, String name, long[] counts) {
+		for (int i=0; i<PERCENTILES.length; i++) {
+			latencies.put(name + "." + PERCENTILE_NAMES[i], LatencyHistogram.percentile(counts, PERCENTILES[i]) / 1000);
+		}
+	}
+}
@@ -0,0 +1,540 @@
+package Machine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Append-only journal of every change to the ingredient levels of the machine, so the levels survive a restart of the JVM.
+ * The journal is a memory-mapped file. Each committed order, batch reservation, restock and new ingredient appends a small binary record to it.
+ * Appending is a copy into the mapped memory, which the OS keeps even if the JVM dies. A background thread forces the written records to disk
+ * every sync interval, so many orders share one fsync and no order waits for the disk.
+ *
+ * The file is split in two halves. Orders append to the active half without a lock: each writer moves the cursor of the half past its record with one getAndAdd,
+ * writes the record and writes its type byte last, so a record whose type byte is set is complete. The unused part of a half is always zero, which reads as the end.
+ * Once the active half is half full, the background thread makes the other half active and folds the old one into a snapshot file with the level and max capacity
+ * of every ingredient, then zeroes the old half for its next turn. The fsync and the move of the snapshot happen on that thread, never on an order.
+ * On startup the machine loads the snapshot and replays the halves newer than it, then writes the result as a new snapshot and starts from an empty journal.
+ * Both halves and the snapshot carry a generation number. A half no newer than the snapshot was already folded into it and is not replayed again,
+ * in case the JVM died between writing the snapshot and zeroing the half.
+ *
+ * Record layout, after a header of magic number and generation in each half:
+ * DEFINE id(int) length(int) name(bytes) - gives the name of an ingredient id the first time it is used since the last snapshot
+ * ADD id(int) amount(int) - amount added to the level, negative for consumption
+ * SET id(int) level(int) - new level, for full restocks
+ * CAPACITY id(int) max_capacity(int) - an ingredient added to the machine with its max capacity
+ * A zero byte marks the end of the records. A record of an unknown type, or of an id no DEFINE or snapshot gave a name to, is taken as corruption and the replay stops there.
+ *
+ * If a burst fills a whole half while the other one can not be folded, a record would have to be dropped and the journal could no longer rebuild the levels.
+ * The journal then switches itself off: it stops writing, prints an error and marks both halves as broken. The next start refuses to restore from a broken journal
+ * and keeps the levels of the settings file, until the journal and its snapshot are deleted.
+ */
+class OrderJournal {
+
+	private static final int MAGIC = 0x434d4a33;
+	private static final int SNAPSHOT_MAGIC = 0x434d5333;
+	//replaces the magic number of both halves once a record was lost.
+	private static final int BROKEN_MAGIC = 0x434d4a58;
+	private static final int HEADER_SIZE = 8;
+	private static final byte END = 0;
+	private static final byte DEFINE = 1;
+	private static final byte ADD = 2;
+	private static final byte SET = 3;
+	private static final byte CAPACITY = 4;
+	private static final int RECORD_SIZE = 9;
+	private static final int DEFINE_SIZE = 9;
+	//how long a writer waits for the background thread to free a full half before the journal is switched off. Short, as the order waits with it.
+	private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final byte[] ZEROS = new byte[4096];
+
+	//one of the two halves of the file. Writers reserve room in it by moving the cursor, and count themselves in writing until their record is complete.
+	private static final class Half {
+		final int base;
+		final int limit;
+		final AtomicInteger cursor = new AtomicInteger(HEADER_SIZE);
+		final AtomicInteger writing = new AtomicInteger();
+		int generation;
+
+		Half(int _base, int _limit) {
+			base = _base;
+			limit = _limit;
+		}
+	}
+
+	//level and max capacity of each ingredient by id, with its name. Built by replaying records on top of a snapshot.
+	private static final class Levels {
+		String[] names = new String[0];
+		long[] levels = new long[0];
+		int[] max_capacities = new int[0];
+
+		void grow(int id) {
+			if (id < names.length) {
+				return;
+			}
+			int size = Math.max(id + 1, names.length * 2);
+			names = Arrays.copyOf(names, size);
+			levels = Arrays.copyOf(levels, size);
+			max_capacities = Arrays.copyOf(max_capacities, size);
+		}
+
+		Levels copy() {
+			Levels copy = new Levels();
+			copy.names = Arrays.copyOf(names, names.length);
+			copy.levels = Arrays.copyOf(levels, levels.length);
+			copy.max_capacities = Arrays.copyOf(max_capacities, max_capacities.length);
+			return copy;
+		}
+	}
+
+	private final File journal_file;
+	private final File snapshot_file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final ScheduledExecutorService flusher;
+	private final Half[] halves = new Half[2];
+	private volatile Half active;
+	//names of the ids already defined since the last snapshot. Replaced as a whole when an id is added, which only happens for a new ingredient.
+	private volatile String[] defined = new String[0];
+	private final AtomicBoolean rotation_requested = new AtomicBoolean();
+	//set once a record could not be written. Nothing is written after it.
+	private final AtomicBoolean broken = new AtomicBoolean();
+	private volatile boolean dirty;
+	//set by close. Records written by orders which read the journal just before it was closed are ignored.
+	private volatile boolean closed;
+	//the state folded into the last snapshot, and its generation. Only touched by the background thread once the machine runs.
+	private Levels folded = new Levels();
+	private int generation;
+
+	OrderJournal(String path, int capacity_bytes, long sync_interval_millis) throws IOException {
+		journal_file = new File(path);
+		snapshot_file = new File(path + ".snapshot");
+		if (journal_file.getParentFile() != null) {
+			journal_file.getParentFile().mkdirs();
+		}
+		channel = FileChannel.open(journal_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (channel.tryLock() == null) {
+				throw new OverlappingFileLockException();
+			}
+		} catch (OverlappingFileLockException e) {
+			channel.close();
+			throw new IOException("Journal " + path + " is in use by another machine.");
+		}
+		int half_size = Math.max(capacity_bytes / 2, HEADER_SIZE + 64);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * half_size);
+		halves[0] = new Half(0, half_size);
+		halves[1] = new Half(half_size, half_size);
+		active = halves[0];
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "journal-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flush, sync_interval_millis, sync_interval_millis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Loads the snapshot and replays the halves newer than it, oldest first. Returns the level and max capacity of each ingredient by name.
+	 * Empty if there is nothing recorded yet, in which case the machine keeps the levels from the settings file.
+	 */
+	synchronized Map<String, int[]> recover() throws IOException {
+		Levels state = readSnapshot();
+		List<Half> newer = new ArrayList<>();
+		for (Half half: halves) {
+			if (buffer.getInt(half.base) == BROKEN_MAGIC) {
+				throw new IOException("Journal " + journal_file + " lost records when it could not keep up with the orders, so it can not restore the levels. "
+						+ "Delete it and " + snapshot_file + " to start a new journal.");
+			}
+			if (buffer.getInt(half.base) == MAGIC && buffer.getInt(half.base + 4) > generation) {
+				half.generation = buffer.getInt(half.base + 4);
+				newer.add(half);
+			}
+		}
+		newer.sort((a, b) -> Integer.compare(a.generation, b.generation));
+
+		//the names come first, as a record may be written before the DEFINE of its id by another writer. The scan also finds where the valid records end.
+		int[] ends = new int[newer.size()];
+		boolean corrupt = false;
+		for (int h=0; h<newer.size(); h++) {
+			Half half = newer.get(h);
+			int position = corrupt ? HEADER_SIZE : scanNames(half, state);
+			corrupt |= position < 0;
+			ends[h] = Math.abs(position);
+			generation = Math.max(generation, half.generation);
+		}
+		for (int h=0; h<newer.size(); h++) {
+			if (!replay(newer.get(h), ends[h], state)) {
+				System.out.println("Warning: " + journal_file + ": a record of an undefined ingredient, the replay stops there.");
+				break;
+			}
+		}
+		if (corrupt) {
+			System.out.println("Warning: " + journal_file + ": a record of an unknown type, the replay stops there.");
+		}
+
+		Map<String, int[]> recovered = new HashMap<>();
+		for (int id=0; id<state.names.length; id++) {
+			if (state.names[id] != null) {
+				recovered.put(state.names[id], new int[] {(int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, state.levels[id])), state.max_capacities[id]});
+			}
+		}
+		return recovered;
+	}
+
+	/*
+	 * Writes the given levels as a new snapshot and starts an empty journal. Called by the machine once it has applied the recovered levels,
+	 * with every ingredient it knows by id: names, levels and max capacities. Nothing is appended before this.
+	 */
+	synchronized void checkpoint(String[] _names, long[] _levels, int[] _max_capacities) throws IOException {
+		folded = new Levels();
+		folded.names = Arrays.copyOf(_names, _names.length);
+		folded.levels = Arrays.copyOf(_levels, _levels.length);
+		folded.max_capacities = Arrays.copyOf(_max_capacities, _max_capacities.length);
+		defined = Arrays.copyOf(_names, _names.length);
+		writeSnapshot(folded, generation + 1);
+		for (Half half: halves) {
+			zero(half, half.limit);
+		}
+		activate(halves[0], generation + 1);
+		buffer.force();
+	}
+
+	//records the ingredients taken (count > 0) or given back (count < 0) for 'count' beverages of the given recipe.
+	void recordUse(String[] recipe_names, int[] recipe_ids, int[] quantities, int count) {
+		for (int i=0; i<recipe_ids.length; i++) {
+			append(ADD, recipe_ids[i], recipe_names[i], Math.toIntExact(-Math.multiplyExact((long)quantities[i], count)));
+		}
+	}
+
+	void recordAdd(int id, String name, int amount) {
+		append(ADD, id, name, amount);
+	}
+
+	void recordSet(int id, String name, int level) {
+		append(SET, id, name, level);
+	}
+
+	void recordCapacity(int id, String name, int max_capacity) {
+		append(CAPACITY, id, name, max_capacity);
+	}
+
+	private void append(byte type, int id, String name, int value) {
+		String[] known = defined;
+		if (id >= known.length || known[id] == null) {
+			define(id, name);
+		}
+		write(type, id, null, value, RECORD_SIZE);
+	}
+
+	//writes the DEFINE of a new id before publishing the name, so every record of the id written after it has its name in this half, an older one or the snapshot.
+	private void define(int id, String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		write(DEFINE, id, bytes, 0, DEFINE_SIZE + bytes.length);
+		synchronized (this) {
+			String[] known = Arrays.copyOf(defined, Math.max(defined.length, id + 1));
+			known[id] = name;
+			defined = known;
+		}
+	}
+
+	private void write(byte type, int id, byte[] name, int value, int size) {
+		long waited_since = 0;
+		while (!closed && !broken.get()) {
+			Half half = active;
+			half.writing.incrementAndGet();
+			//the background thread switched halves meanwhile, and may already be folding this one.
+			if (half != active) {
+				half.writing.decrementAndGet();
+				continue;
+			}
+			int at = half.cursor.get() + size <= half.limit ? half.cursor.getAndAdd(size) : half.limit;
+			if (at + size <= half.limit) {
+				put(half.base + at, type, id, name, value);
+				half.writing.decrementAndGet();
+				if (!dirty) {
+					dirty = true;
+				}
+				if (at < half.limit / 2 && at + size >= half.limit / 2) {
+					requestRotation();
+				}
+				return;
+			}
+			half.writing.decrementAndGet();
+			//a burst filled the whole half while the other one was being folded. Only then does a writer wait, and only briefly.
+			requestRotation();
+			if (waited_since == 0) {
+				waited_since = System.nanoTime();
+			} else if (System.nanoTime() - waited_since > FULL_WAIT_NANOS) {
+				breakJournal();
+				return;
+			}
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	/*
+	 * Switches the journal off for good once a record was lost, as replaying the records around the gap would restore wrong levels.
+	 * Both halves are marked as broken, so the next start does not trust them either. Synchronized with the fold, which would otherwise zero the mark.
+	 */
+	private void breakJournal() {
+		if (!broken.compareAndSet(false, true)) {
+			return;
+		}
+		System.err.println("Error: " + journal_file + " is full and could not be folded in time, a record was lost. The journal is switched off "
+				+ "and the levels from now on are not kept for the next start. Give the journal more capacity_kb.");
+		synchronized (this) {
+			for (Half half: halves) {
+				buffer.putInt(half.base, BROKEN_MAGIC);
+			}
+			buffer.force();
+		}
+	}
+	
+	private void put(int position, byte type, int id, byte[] name, int value) {
+		buffer.putInt(position + 1, id);
+		if (name == null) {
+			buffer.putInt(position + 5, value);
+		} else {
+			buffer.putInt(position + 5, name.length);
+			for (int i=0; i<name.length; i++) {
+				buffer.put(position + DEFINE_SIZE + i, name[i]);
+			}
+		}
+		//the type byte publishes the record, so it must not be seen before the rest of it.
+		VarHandle.releaseFence();
+		buffer.put(position, type);
+	}
+
+	private void requestRotation() {
+		if (rotation_requested.compareAndSet(false, true) && !closed) {
+			try {
+				flusher.execute(this::rotate);
+			} catch (RejectedExecutionException e) {
+				//closed meanwhile.
+			}
+		}
+	}
+
+	/*
+	 * Runs on the background thread. Makes the other half active once the active one is half full, waits for the writers still in the old half,
+	 * folds its records into a new snapshot and zeroes it for its next turn. If the fold fails the old half is kept and folded again on the next rotation.
+	 */
+	private synchronized void rotate() {
+		rotation_requested.set(false);
+		if (broken.get()) {
+			return;
+		}
+		Half old = active;
+		Half next = halves[old == halves[0] ? 1 : 0];
+		try {
+			if (next.cursor.get() != HEADER_SIZE && !fold(next)) {
+				return;
+			}
+			if (old.cursor.get() < old.limit / 2) {
+				return;
+			}
+			activate(next, old.generation + 1);
+			while (old.writing.get() != 0) {
+				Thread.onSpinWait();
+			}
+			fold(old);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void activate(Half half, int _generation) {
+		half.generation = _generation;
+		half.cursor.set(HEADER_SIZE);
+		buffer.putInt(half.base + 4, _generation);
+		buffer.putInt(half.base, MAGIC);
+		active = half;
+	}
+
+	//replays the half on a copy of the folded state and writes it as the snapshot of the generation of the half, then zeroes the half.
+	//Returns false if the snapshot could not be written, in which case the folded state is left as it was so the half can be folded again.
+	private boolean fold(Half half) {
+		int written = Math.min(half.cursor.get(), half.limit);
+		Levels next = folded.copy();
+		int end = Math.min(written, Math.abs(scanNames(half, next)));
+		replay(half, end, next);
+		try {
+			writeSnapshot(next, half.generation);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		folded = next;
+		zero(half, written);
+		buffer.force();
+		return true;
+	}
+
+	/*
+	 * Reads the DEFINE records of the half into the state and returns where its records end. The end is negative if the half stops at a record of an unknown type.
+	 * A record whose type byte is not set yet ends the half, as nothing after it was written in order.
+	 */
+	private int scanNames(Half half, Levels state) {
+		int position = HEADER_SIZE;
+		while (position + RECORD_SIZE <= half.limit) {
+			byte type = buffer.get(half.base + position);
+			if (type == END) {
+				return position;
+			}
+			int id = buffer.getInt(half.base + position + 1);
+			if (type == DEFINE) {
+				int length = buffer.getInt(half.base + position + 5);
+				if (id < 0 || length < 0 || length > half.limit - position - DEFINE_SIZE) {
+					return -position;
+				}
+				byte[] name = new byte[length];
+				for (int i=0; i<length; i++) {
+					name[i] = buffer.get(half.base + position + DEFINE_SIZE + i);
+				}
+				state.grow(id);
+				state.names[id] = new String(name, StandardCharsets.UTF_8);
+				position += DEFINE_SIZE + length;
+			} else if (type == ADD || type == SET || type == CAPACITY) {
+				position += RECORD_SIZE;
+			} else {
+				return -position;
+			}
+		}
+		return position;
+	}
+
+	//applies the records of the half before end to the state. Returns false if it stopped at a record of an id with no name.
+	private boolean replay(Half half, int end, Levels state) {
+		int position = HEADER_SIZE;
+		while (position < end) {
+			byte type = buffer.get(half.base + position);
+			int id = buffer.getInt(half.base + position + 1);
+			if (type == DEFINE) {
+				position += DEFINE_SIZE + buffer.getInt(half.base + position + 5);
+				continue;
+			}
+			if (id < 0 || id >= state.names.length || state.names[id] == null) {
+				return false;
+			}
+			int value = buffer.getInt(half.base + position + 5);
+			if (type == ADD) {
+				state.levels[id] += value;
+			} else if (type == SET) {
+				state.levels[id] = value;
+			} else {
+				state.max_capacities[id] = value;
+			}
+			position += RECORD_SIZE;
+		}
+		return true;
+	}
+
+	private Levels readSnapshot() throws IOException {
+		Levels state = new Levels();
+		generation = 0;
+		if (!snapshot_file.exists()) {
+			return state;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(snapshot_file))) {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				System.out.println("Warning: " + snapshot_file + " is not a snapshot of this machine, it is ignored.");
+				return state;
+			}
+			int snapshot_generation = in.readInt();
+			int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				int id = in.readInt();
+				state.grow(id);
+				state.names[id] = in.readUTF();
+				state.levels[id] = in.readLong();
+				state.max_capacities[id] = in.readInt();
+			}
+			generation = snapshot_generation;
+		}
+		return state;
+	}
+
+	//writes the state as the snapshot of the given generation, to a temporary file first which then replaces the snapshot in one move.
+	private void writeSnapshot(Levels state, int _generation) throws IOException {
+		File temp = new File(snapshot_file.getPath() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temp); DataOutputStream out = new DataOutputStream(file)) {
+			int count = 0;
+			for (String name: state.names) {
+				count += name == null ? 0 : 1;
+			}
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(_generation);
+			out.writeInt(count);
+			for (int id=0; id<state.names.length; id++) {
+				if (state.names[id] != null) {
+					out.writeInt(id);
+					out.writeUTF(state.names[id]);
+					out.writeLong(state.levels[id]);
+					out.writeInt(state.max_capacities[id]);
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temp.toPath(), snapshot_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		generation = _generation;
+	}
+
+	//clears the header and the first 'end' bytes of the half, so its old records can never be read as new ones.
+	private void zero(Half half, int end) {
+		ByteBuffer region = buffer.duplicate();
+		region.position(half.base);
+		int left = Math.min(Math.max(end, HEADER_SIZE), half.limit);
+		while (left > 0) {
+			int chunk = Math.min(left, ZEROS.length);
+			region.put(ZEROS, 0, chunk);
+			left -= chunk;
+		}
+		half.cursor.set(HEADER_SIZE);
+	}
+
+	//group commit: forces everything appended since the last flush to disk in one go.
+	private void flush() {
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+		buffer.force();
+	}
+
+	void close() throws IOException {
+		closed = true;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		buffer.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,28 @@
+package Machine;
+
+/*
+ * How urgent an order is. Orders waiting for an outlet are shared out by weighted fair queuing: each source placing orders gets a share of the outlets
+ * in proportion to the weight of the priority of its orders, so a walk-up customer is not stuck behind a bulk conference order placed just before.
+ * The weights below are the defaults and can be changed by the "weights" of the "admission" block of the settings file.
+ * Orders placed without a priority are NORMAL.
+ */
+public enum OrderPriority {
+	INTERACTIVE(8),
+	NORMAL(4),
+	BULK(1);
+
+	private final int default_weight;
+
+	private OrderPriority(int _default_weight) {
+		default_weight = _default_weight;
+	}
+
+	int getDefaultWeight() {
+		return default_weight;
+	}
+
+	//name used for the priority in settings files and metrics, like "bulk".
+	String getKey() {
+		return name().toLowerCase();
+	}
+}
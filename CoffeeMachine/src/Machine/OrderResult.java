@@ -0,0 +1,162 @@
+package Machine;
+
+import CustomExceptions.BeverageNotSupportedException;
+import CustomExceptions.IngredientNotAvailableException;
+import CustomExceptions.NotEnoughIngredientException;
+import CustomExceptions.OrderDeadlineExceededException;
+import CustomExceptions.OrderDroppedException;
+import CustomExceptions.OrderQueueFullException;
+import CustomExceptions.OrderWhileRestockingException;
+import CustomExceptions.OutletNotFreeException;
+
+/*
+ * The outcome of a single order placed through CoffeeMachine.submitOrder. An instance is immutable and is created once the order is either prepared or rejected.
+ * A rejected order carries a typed failure reason mapped from the custom exception which rejected it, along with the exception message for display.
+ * Orders turned away by the rate limit or shed under load carry RATE_LIMITED or SHED and a fixed message instead, as no exception is built for them.
+ * It also carries the priority the order was placed with, so results can be told apart by class.
+ * Timings are taken from the clock of the machine, which is System.nanoTime unless the machine runs in a Simulation: submitted when the order was placed, started when an outlet picked it up and completed when it was prepared or rejected.
+ */
+public final class OrderResult {
+
+	public enum Status {
+		PREPARED,
+		REJECTED
+	}
+	
+	public enum FailureReason {
+		NONE,
+		BEVERAGE_NOT_SUPPORTED,
+		INGREDIENT_NOT_AVAILABLE,
+		NOT_ENOUGH_INGREDIENT,
+		OUTLET_NOT_FREE,
+		RESTOCKING,
+		QUEUE_FULL,
+		DEADLINE_EXCEEDED,
+		DROPPED,
+		RATE_LIMITED,
+		SHED,
+		INTERRUPTED,
+		INTERNAL_ERROR;
+		
+		static FailureReason of(Exception e) {
+			if (e instanceof BeverageNotSupportedException) {
+				return BEVERAGE_NOT_SUPPORTED;
+			} else if (e instanceof IngredientNotAvailableException) {
+				return INGREDIENT_NOT_AVAILABLE;
+			} else if (e instanceof NotEnoughIngredientException) {
+				return NOT_ENOUGH_INGREDIENT;
+			} else if (e instanceof OutletNotFreeException) {
+				return OUTLET_NOT_FREE;
+			} else if (e instanceof OrderWhileRestockingException) {
+				return RESTOCKING;
+			} else if (e instanceof OrderQueueFullException) {
+				return QUEUE_FULL;
+			} else if (e instanceof OrderDeadlineExceededException) {
+				return DEADLINE_EXCEEDED;
+			} else if (e instanceof OrderDroppedException) {
+				return DROPPED;
+			} else if (e instanceof InterruptedException) {
+				return INTERRUPTED;
+			}
+			return INTERNAL_ERROR;
+		}
+	}
+	
+	//outlet value for orders which were rejected before reaching an outlet.
+	public static final int NO_OUTLET = 0;
+	
+	private final String beverage;
+	private final OrderPriority priority;
+	private final Status status;
+	private final FailureReason failure_reason;
+	private final String message;
+	private final int outlet;
+	private final long submitted_at;
+	private final long started_at;
+	private final long completed_at;
+	
+	private OrderResult(String _beverage, OrderPriority _priority, Status _status, FailureReason _failure_reason, String _message, int _outlet, long _submitted_at, long _started_at, long _completed_at) {
+		beverage = _beverage;
+		priority = _priority;
+		status = _status;
+		failure_reason = _failure_reason;
+		message = _message;
+		outlet = _outlet;
+		submitted_at = _submitted_at;
+		started_at = _started_at;
+		completed_at = _completed_at;
+	}
+	
+	static OrderResult prepared(String beverage, OrderPriority priority, int outlet, long submitted_at, long started_at, long completed_at) {
+		return new OrderResult(beverage, priority, Status.PREPARED, FailureReason.NONE, beverage + " is prepared.", outlet, submitted_at, started_at, completed_at);
+	}
+	
+	static OrderResult rejected(String beverage, OrderPriority priority, Exception e, int outlet, long submitted_at, long started_at, long completed_at) {
+		return new OrderResult(beverage, priority, Status.REJECTED, FailureReason.of(e), e.getMessage(), outlet, submitted_at, started_at, completed_at);
+	}
+	
+	//for orders turned away by the AdmissionControl, which knows the reason up front and builds no exception for it.
+	static OrderResult rejected(String beverage, OrderPriority priority, FailureReason reason, String message, long submitted_at) {
+		return new OrderResult(beverage, priority, Status.REJECTED, reason, message, NO_OUTLET, submitted_at, submitted_at, submitted_at);
+	}
+	
+	public String getBeverage() {
+		return beverage;
+	}
+	
+	public OrderPriority getPriority() {
+		return priority;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	public boolean isPrepared() {
+		return status == Status.PREPARED;
+	}
+	
+	public FailureReason getFailureReason() {
+		return failure_reason;
+	}
+	
+	//the human readable outcome. Same text the machine used to print for the order.
+	public String getMessage() {
+		return message;
+	}
+	
+	public int getOutlet() {
+		return outlet;
+	}
+	
+	public long getSubmittedAtNanos() {
+		return submitted_at;
+	}
+	
+	public long getStartedAtNanos() {
+		return started_at;
+	}
+	
+	public long getCompletedAtNanos() {
+		return completed_at;
+	}
+	
+	//time spent waiting between placing the order and an outlet picking it up.
+	public long getQueueTimeMillis() {
+		return (started_at - submitted_at)/1000000;
+	}
+	
+	//time spent by the outlet checking ingredients and preparing the beverage.
+	public long getPreparationTimeMillis() {
+		return (completed_at - started_at)/1000000;
+	}
+	
+	public long getTotalTimeMillis() {
+		return (completed_at - submitted_at)/1000000;
+	}
+	
+	@Override
+	public String toString() {
+		return message;
+	}
+}
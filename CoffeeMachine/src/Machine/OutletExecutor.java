@@ -0,0 +1,121 @@
+package Machine;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decides which threads run the orders of the machine and how an outlet waits for the preparation time of a beverage.
+ * The mode is selected by the "execution" block of the settings file:
+ * 1. thread_per_outlet: a fixed pool with a thread for each outlet. The thread sleeps through the preparation time, so each busy outlet holds a thread. This is the default.
+ *    Beverages prepared in stages hold their outlet but no thread, so there is always a thread left to end their stages on.
+ * 2. timer: a small scheduled pool checks the ingredients of an order and then schedules its completion after the preparation time. No thread is held while a beverage is being prepared, 
+ *    so the outlet count is not tied to the number of threads.
+ * A machine running in a Simulation ignores the mode and runs its orders on the virtual clock instead.
+ */
+abstract class OutletExecutor {
+	
+	static final String THREAD_PER_OUTLET = "thread_per_outlet";
+	static final String TIMER = "timer";
+	
+	//runs the order on one of the threads of this executor.
+	abstract void submit(Runnable order);
+	
+	//keeps the outlet busy for the preparation time and then runs the completion of the order.
+	abstract void prepare(long preparation_millis, Runnable completion);
+	
+	//runs the task on one of the threads of this executor once the delay is over, without holding a thread while it waits. The PreparationPipeline ends its stages with it.
+	abstract void schedule(Runnable task, long delay_millis);
+	
+	abstract void shutdown();
+	
+	static OutletExecutor create(String mode, int outlets, int threads) {
+		if (TIMER.equals(mode)) {
+			return new TimerOutletExecutor(threads > 0 ? threads : Math.min(outlets, Runtime.getRuntime().availableProcessors()));
+		} else if (mode == null || THREAD_PER_OUTLET.equals(mode)) {
+			return new ThreadPerOutletExecutor(outlets);
+		}
+		throw new IllegalArgumentException("Unknown execution mode: " + mode);
+	}
+	
+	static OutletExecutor simulated(VirtualClock clock) {
+		return new SimulatedOutletExecutor(clock);
+	}
+	
+	private static class ThreadPerOutletExecutor extends OutletExecutor {
+		private final ScheduledExecutorService executor;
+		
+		ThreadPerOutletExecutor(int outlets) {
+			executor = Executors.newScheduledThreadPool(outlets);
+		}
+
+		void submit(Runnable order) {
+			executor.execute(order);
+		}
+
+		void prepare(long preparation_millis, Runnable completion) {
+			try {
+				Thread.sleep(preparation_millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			completion.run();
+		}
+
+		void schedule(Runnable task, long delay_millis) {
+			executor.schedule(task, delay_millis, TimeUnit.MILLISECONDS);
+		}
+
+		void shutdown() {
+			executor.shutdown();
+		}
+	}
+	
+	private static class TimerOutletExecutor extends OutletExecutor {
+		private final ScheduledExecutorService timer;
+		
+		TimerOutletExecutor(int threads) {
+			timer = Executors.newScheduledThreadPool(threads);
+		}
+
+		void submit(Runnable order) {
+			timer.execute(order);
+		}
+
+		void prepare(long preparation_millis, Runnable completion) {
+			timer.schedule(completion, preparation_millis, TimeUnit.MILLISECONDS);
+		}
+
+		void schedule(Runnable task, long delay_millis) {
+			timer.schedule(task, delay_millis, TimeUnit.MILLISECONDS);
+		}
+
+		void shutdown() {
+			timer.shutdown();
+		}
+	}
+	
+	//runs each order as a task of the virtual clock at the current virtual time, and its completion once the preparation time has passed on that clock.
+	private static class SimulatedOutletExecutor extends OutletExecutor {
+		private final VirtualClock clock;
+		
+		SimulatedOutletExecutor(VirtualClock _clock) {
+			clock = _clock;
+		}
+
+		void submit(Runnable order) {
+			clock.schedule(order, 0);
+		}
+
+		void prepare(long preparation_millis, Runnable completion) {
+			clock.schedule(completion, preparation_millis);
+		}
+
+		void schedule(Runnable task, long delay_millis) {
+			clock.schedule(task, delay_millis);
+		}
+
+		void shutdown() {
+		}
+	}
+}
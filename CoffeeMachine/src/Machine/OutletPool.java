@@ -0,0 +1,79 @@
+package Machine;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps track of which of the outlets (named 1 to n) are busy. This is the only place which decides whether the machine has capacity for another order.
+ * Each outlet is one bit in an array of words. An outlet is taken by setting its bit with compare-and-set and freed by clearing it, so no lock is needed 
+ * and no update is ever lost however many threads place orders at once. Bits past the last outlet in the last word are kept set so they are never handed out.
+ */
+class OutletPool {
+	
+	private static final long ALL_BUSY = -1L;
+	
+	private final int outlets;
+	private final AtomicLongArray busy;
+	
+	OutletPool(int _outlets) {
+		outlets = _outlets;
+		int words = (outlets + 63) / 64;
+		busy = new AtomicLongArray(words);
+		int used_in_last_word = outlets - (words - 1) * 64;
+		if (words > 0 && used_in_last_word < 64) {
+			busy.set(words - 1, ALL_BUSY << used_in_last_word);
+		}
+	}
+	
+	//takes any free outlet and returns its number. Returns OrderResult.NO_OUTLET if all of them are busy.
+	//threads start looking at a random word so they do not all fight over the first one when there are many outlets.
+	int acquire() {
+		int words = busy.length();
+		int start = words == 1 ? 0 : ThreadLocalRandom.current().nextInt(words);
+		for (int i=0; i<words; i++) {
+			int word = (start + i) % words;
+			long current = busy.get(word);
+			while (current != ALL_BUSY) {
+				long free_bit = Long.lowestOneBit(~current);
+				if (busy.compareAndSet(word, current, current | free_bit)) {
+					return word * 64 + Long.numberOfTrailingZeros(free_bit) + 1;
+				}
+				current = busy.get(word);
+			}
+		}
+		return OrderResult.NO_OUTLET;
+	}
+	
+	//frees an outlet taken by acquire.
+	void release(int outlet) {
+		int word = (outlet - 1) / 64;
+		long bit = 1L << ((outlet - 1) % 64);
+		long current;
+		do {
+			current = busy.get(word);
+			if ((current & bit) == 0) {
+				throw new IllegalStateException("Outlet " + outlet + " is already free.");
+			}
+		} while (!busy.compareAndSet(word, current, current & ~bit));
+	}
+	
+	boolean isBusy(int outlet) {
+		if (outlet < 1 || outlet > outlets) {
+			throw new IllegalArgumentException("Outlet " + outlet + " does not exist. Outlets are named 1 to " + outlets);
+		}
+		return (busy.get((outlet - 1) / 64) & (1L << ((outlet - 1) % 64))) != 0;
+	}
+	
+	int getBusyCount() {
+		int count = 0;
+		for (int i=0; i<busy.length(); i++) {
+			count += Long.bitCount(busy.get(i));
+		}
+		//the padding bits of the last word are always set.
+		return count - (busy.length() * 64 - outlets);
+	}
+	
+	int size() {
+		return outlets;
+	}
+}
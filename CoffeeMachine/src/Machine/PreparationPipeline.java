@@ -0,0 +1,182 @@
+package Machine;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import CustomExceptions.InvalidSettingsException;
+
+/*
+ * Prepares beverages in stages that share the few boilers and steamers of the machine, instead of a single wait at the outlet.
+ * The resources and their counts come from the "resources" of the "preparation" block of the settings file, and the stages of each beverage from its "stages":
+ *     "preparation": {"resources": {"boiler": 2, "steamer": 1},
+ *                     "stages": {"hot_coffee": [{"stage": "heat", "resource": "boiler", "ms": 2000}, {"stage": "steam", "resource": "steamer", "ms": 1500}, {"stage": "dispense", "ms": 1500}]}}
+ *
+ * An order holds its outlet from its first stage to its last and runs its stages one after the other. A stage needing a resource waits until one unit of it is free,
+ * and the units go to the waiting stages first come first served. So while one order steams its milk, the next one can already heat its water on a boiler,
+ * and the machine makes as many beverages as its busiest resource allows rather than one per outlet per preparation time.
+ * No thread is held while a stage runs or waits: every stage ends on a timer of the OutletExecutor of the machine, so the stages and the completions of the orders run on
+ * the threads the "execution" block gives the machine rather than on a timer shared by every machine of the process. In a Simulation they run on virtual time.
+ *
+ * Each resource keeps how long its units were busy and how long the stages waited for it. The resource busy the largest share of its time, or the outlets
+ * if they are busier, is the bottleneck reported in the metrics of the machine. An outlet holding an order which waits for a resource is not counted as busy for this,
+ * as it is the resource holding it up.
+ */
+final class PreparationPipeline {
+
+	//a shared resource with a number of units. Stages waiting for a unit are kept in arrival order.
+	private static final class Resource {
+		final String name;
+		final int capacity;
+		final ArrayDeque<Run> waiting = new ArrayDeque<>();
+		final LongAdder busy_nanos = new LongAdder();
+		final LatencyHistogram wait = new LatencyHistogram();
+		int in_use;
+
+		Resource(String _name, int _capacity) {
+			name = _name;
+			capacity = _capacity;
+		}
+
+		//takes a unit for the run if one is free, or queues the run until one is. Returns whether the unit was taken.
+		synchronized boolean acquire(Run run) {
+			if (in_use < capacity) {
+				in_use++;
+				return true;
+			}
+			waiting.add(run);
+			return false;
+		}
+
+		//gives the unit back, or hands it straight to the next waiting run, which is returned so that it can be started outside of the lock.
+		synchronized Run release() {
+			Run next = waiting.poll();
+			if (next == null) {
+				in_use--;
+			}
+			return next;
+		}
+	}
+
+	//the stages of one order on their way through the pipeline.
+	private final class Run {
+		final PreparationStage[] stages;
+		final long scale_num;
+		final long scale_den;
+		final Runnable completion;
+		int stage;
+		long requested_at;
+		long started_at;
+
+		Run(PreparationStage[] _stages, long _scale_num, long _scale_den, Runnable _completion) {
+			stages = _stages;
+			scale_num = _scale_num;
+			scale_den = _scale_den;
+			completion = _completion;
+		}
+
+		void next() {
+			if (stage == stages.length) {
+				completion.run();
+				return;
+			}
+			int id = stages[stage].getResourceId();
+			requested_at = clock.nanoTime();
+			if (id < 0 || resources[id].acquire(this)) {
+				start();
+			}
+		}
+
+		void start() {
+			started_at = clock.nanoTime();
+			int id = stages[stage].getResourceId();
+			if (id >= 0) {
+				resources[id].wait.record(started_at - requested_at);
+			}
+			executor.schedule(this::finish, stages[stage].getMillis() * scale_num / scale_den);
+		}
+
+		void finish() {
+			int id = stages[stage].getResourceId();
+			stage++;
+			if (id >= 0) {
+				Resource resource = resources[id];
+				resource.busy_nanos.add(clock.nanoTime() - started_at);
+				Run waiting = resource.release();
+				if (waiting != null) {
+					waiting.start();
+				}
+			}
+			next();
+		}
+	}
+
+	private final MachineClock clock;
+	private final OutletExecutor executor;
+	private final Resource[] resources;
+	private final Map<String, Integer> resource_ids = new LinkedHashMap<>();
+
+	PreparationPipeline(MachineClock _clock, OutletExecutor _executor, Map<String, Integer> capacities) {
+		clock = _clock;
+		executor = _executor;
+		resources = new Resource[capacities.size()];
+		int id = 0;
+		for (Map.Entry<String, Integer> e: capacities.entrySet()) {
+			resource_ids.put(e.getKey(), id);
+			resources[id++] = new Resource(e.getKey(), e.getValue());
+		}
+	}
+
+	//resolves the resources of the stages of the beverage. A stage needing a resource the machine does not have makes the settings invalid.
+	void compile(Beverage beverage, String settings) {
+		PreparationStage[] stages = beverage.getStages();
+		if (stages == null) {
+			return;
+		}
+		for (PreparationStage stage: stages) {
+			if (stage.getResource() == null) {
+				stage.setResourceId(-1);
+				continue;
+			}
+			Integer id = resource_ids.get(stage.getResource());
+			if (id == null) {
+				throw new InvalidSettingsException(settings, "$.machine.preparation.stages." + beverage.getName(),
+						"the stage " + stage.getName() + " needs " + stage.getResource() + " which the machine does not have");
+			}
+			stage.setResourceId(id);
+		}
+	}
+
+	//runs the stages one after the other and then the completion. Every stage time is multiplied by scale_num / scale_den.
+	void prepare(PreparationStage[] stages, long scale_num, long scale_den, Runnable completion) {
+		new Run(stages, scale_num, scale_den, completion).next();
+	}
+
+	//fraction of the time since start each resource spent busy, over all its units.
+	Map<String, Double> getUtilisation(long uptime_nanos) {
+		Map<String, Double> utilisation = new LinkedHashMap<>();
+		for (Resource resource: resources) {
+			utilisation.put(resource.name, Math.min(1.0, resource.busy_nanos.sum() / ((double)uptime_nanos * resource.capacity)));
+		}
+		return utilisation;
+	}
+
+	//time the stages spent waiting for a resource, summed over all the resources.
+	long getWaitNanos() {
+		long waited = 0;
+		for (Resource resource: resources) {
+			waited += resource.wait.getTotalNanos();
+		}
+		return waited;
+	}
+
+	//adds the percentiles of the time stages waited for each resource, like "wait.boiler.p99", in microseconds.
+	void addWaitPercentiles(Map<String, Long> latencies, double[] percentiles, String[] names) {
+		for (Resource resource: resources) {
+			for (int i=0; i<percentiles.length; i++) {
+				latencies.put("wait." + resource.name + "." + names[i], resource.wait.getPercentile(percentiles[i]) / 1000);
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package Machine;
+
+/*
+ * One step of preparing a beverage, like heating the water on a boiler for 2 seconds. Read from the "stages" of the "preparation" block of the settings file.
+ * A stage without a resource only needs the outlet the order already holds, like dispensing into the cup.
+ */
+final class PreparationStage {
+
+	private final String name;
+	//null if the stage only needs the outlet.
+	private final String resource;
+	private final int millis;
+	//index of the resource in the PreparationPipeline of the machine, or -1 for none. Set when the beverage is added to a menu.
+	private int resource_id = -1;
+
+	PreparationStage(String _name, String _resource, int _millis) {
+		name = _name;
+		resource = _resource;
+		millis = _millis;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getResource() {
+		return resource;
+	}
+
+	int getMillis() {
+		return millis;
+	}
+
+	int getResourceId() {
+		return resource_id;
+	}
+
+	void setResourceId(int _resource_id) {
+		resource_id = _resource_id;
+	}
+}
@@ -0,0 +1,450 @@
+package Machine;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import CustomExceptions.InvalidSettingsException;
+
+/*
+ * Reads a settings file straight into MachineSettings with a streaming JsonReader. The ingredients and beverages are built while their json is read,
+ * so no tree of the whole file is kept in memory, and every value is checked for its type as it is read instead of being cast later.
+ * Anything which does not describe a valid machine is reported with an InvalidSettingsException giving the path of the bad value in the file,
+ * like a quantity which is not a whole number, a block given twice or a missing outlet count.
+ * A recipe using an ingredient which is not stocked is only a warning, as the ingredient can be added later with addUnavailableIngredientWithMaxCapacity. So are blocks this machine does not know,
+ * and stages given for a beverage which is not on the menu. A stage needing a resource which is not in the resources of the preparation block is an error.
+ */
+final class SettingsLoader {
+
+	private final String file;
+	private final JsonReader in;
+	private final MachineSettings settings = new MachineSettings();
+
+	private SettingsLoader(String _file, JsonReader _in) {
+		file = _file;
+		in = _in;
+		settings.file = _file;
+	}
+
+	static MachineSettings load(String file) throws IOException {
+		try (JsonReader in = new JsonReader(new BufferedReader(new FileReader(file)))) {
+			SettingsLoader loader = new SettingsLoader(file, in);
+			try {
+				loader.readRoot();
+			} catch (MalformedJsonException e) {
+				throw new InvalidSettingsException(file, in.getPath(), "not valid json. " + e.getMessage());
+			}
+			loader.checkRecipes();
+			loader.attachStages();
+			return loader.settings;
+		}
+	}
+
+	private void readRoot() throws IOException {
+		expect(JsonToken.BEGIN_OBJECT, "an object");
+		in.beginObject();
+		boolean found = false;
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if ("machine".equals(name) && !found) {
+				found = true;
+				readMachine();
+			} else if ("machine".equals(name)) {
+				throw error("machine is given twice");
+			} else {
+				skip();
+			}
+		}
+		in.endObject();
+		if (!found) {
+			throw new InvalidSettingsException(file, "$", "no machine block");
+		}
+	}
+
+	private void readMachine() throws IOException {
+		expect(JsonToken.BEGIN_OBJECT, "an object");
+		in.beginObject();
+		Set<String> seen = new HashSet<>();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (!seen.add(name)) {
+				throw error(name + " is given twice");
+			}
+			switch (name) {
+			case "outlets":
+				readOutlets();
+				break;
+			case "execution":
+				readExecution();
+				break;
+			case "admission":
+				readAdmission();
+				break;
+			case "journal":
+				readJournal();
+				break;
+			case "forecast":
+				readForecast();
+				break;
+			case "events":
+				readEvents();
+				break;
+			case "history":
+				readHistory();
+				break;
+			case "throttle":
+				readThrottle();
+				break;
+			case "total_items_quantity":
+				readIngredients();
+				break;
+			case "beverages":
+				readBeverages();
+				break;
+			case "preparation":
+				readPreparation();
+				break;
+			default:
+				skip();
+			}
+		}
+		if (!seen.contains("outlets")) {
+			throw new InvalidSettingsException(file, "$.machine", "no outlets block with count_n");
+		}
+		if (!seen.contains("total_items_quantity")) {
+			throw new InvalidSettingsException(file, "$.machine", "no total_items_quantity block");
+		}
+		if (!seen.contains("beverages")) {
+			throw new InvalidSettingsException(file, "$.machine", "no beverages block");
+		}
+		in.endObject();
+	}
+
+	private void readOutlets() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("count_n".equals(key)) {
+				settings.outlet_count = readWholeNumber(1);
+			} else {
+				skip();
+			}
+		}
+		if (settings.outlet_count == 0) {
+			throw new InvalidSettingsException(file, "$.machine.outlets", "no count_n in the outlets block");
+		}
+	}
+
+	private void readExecution() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("mode".equals(key)) {
+				settings.execution_mode = readChoice(OutletExecutor.THREAD_PER_OUTLET, OutletExecutor.TIMER);
+			} else if ("threads".equals(key)) {
+				settings.execution_threads = readWholeNumber(0);
+			} else {
+				skip();
+			}
+		}
+	}
+
+	private void readAdmission() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("queue_capacity".equals(key)) {
+				settings.queue_capacity = readWholeNumber(0);
+			} else if ("policy".equals(key)) {
+				settings.admission_policy = readChoice(AdmissionQueue.REJECT, AdmissionQueue.BLOCK, AdmissionQueue.DROP_OLDEST);
+			} else if ("timeout_ms".equals(key)) {
+				settings.timeout_ms = readWholeNumber(0);
+			} else if ("deadline_ms".equals(key)) {
+				settings.deadline_ms = readWholeNumber(0);
+			} else if ("weights".equals(key)) {
+				readWeights();
+			} else if ("aging_ms".equals(key)) {
+				settings.aging_ms = readWholeNumber(0);
+			} else if ("ordering".equals(key)) {
+				settings.admission_ordering = readChoice(AdmissionQueue.FAIR, AdmissionQueue.MOST_SERVED);
+			} else if ("window".equals(key)) {
+				settings.reorder_window = readWholeNumber(1);
+			} else {
+				skip();
+			}
+		}
+	}
+	
+	//priorities left out keep their default weight.
+	private void readWeights() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			OrderPriority priority = null;
+			for (OrderPriority p: OrderPriority.values()) {
+				if (p.getKey().equals(key)) {
+					priority = p;
+				}
+			}
+			if (priority == null) {
+				skip();
+			} else {
+				settings.priority_weights[priority.ordinal()] = readWholeNumber(1);
+			}
+		}
+	}
+
+	private void readJournal() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("path".equals(key)) {
+				expect(JsonToken.STRING, "a file path");
+				settings.journal_path = in.nextString();
+			} else if ("capacity_kb".equals(key)) {
+				settings.journal_capacity_kb = readWholeNumber(1);
+			} else if ("sync_interval_ms".equals(key)) {
+				settings.journal_sync_interval_ms = readWholeNumber(1);
+			} else {
+				skip();
+			}
+		}
+		if (settings.journal_path == null) {
+			throw new InvalidSettingsException(file, "$.machine.journal", "no path in the journal block");
+		}
+	}
+
+	private void readForecast() throws IOException {
+		settings.forecast_configured = true;
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("interval_ms".equals(key)) {
+				settings.forecast_interval_ms = readWholeNumber(1);
+			} else if ("half_life_ms".equals(key)) {
+				settings.forecast_half_life_ms = readWholeNumber(1);
+			} else if ("horizon_ms".equals(key)) {
+				settings.forecast_horizon_ms = readWholeNumber(1);
+			} else {
+				skip();
+			}
+		}
+	}
+
+	private void readEvents() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("ring_size".equals(key)) {
+				settings.event_ring_size = readWholeNumber(2);
+			} else {
+				skip();
+			}
+		}
+	}
+
+	private void readHistory() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("segment_ms".equals(key)) {
+				settings.history_segment_ms = readWholeNumber(1);
+			} else if ("segment_rows".equals(key)) {
+				settings.history_segment_rows = readWholeNumber(1);
+			} else if ("max_segments".equals(key)) {
+				settings.history_max_segments = readWholeNumber(0);
+			} else {
+				skip();
+			}
+		}
+	}
+
+	private void readThrottle() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("client_rate".equals(key)) {
+				settings.client_rate = readNumber(0, Double.MAX_VALUE);
+			} else if ("client_burst".equals(key)) {
+				settings.client_burst = readWholeNumber(1);
+			} else if ("max_clients".equals(key)) {
+				settings.max_clients = readWholeNumber(1);
+			} else if ("shed_utilisation".equals(key)) {
+				settings.shed_utilisation = readNumber(0, 1);
+			} else if ("shed_queue_fill".equals(key)) {
+				settings.shed_queue_fill = readNumber(0, 1);
+			} else {
+				skip();
+			}
+		}
+	}
+
+	//each ingredient is built with the quantity given as its max capacity.
+	private void readIngredients() throws IOException {
+		for (String name = firstKey(); name != null; name = nextKey()) {
+			if (settings.ingredients.containsKey(name)) {
+				throw error("ingredient " + name + " is given twice");
+			}
+			settings.ingredients.put(name, new Ingredient(name, readWholeNumber(0)));
+		}
+	}
+
+	private void readBeverages() throws IOException {
+		for (String name = firstKey(); name != null; name = nextKey()) {
+			if (settings.beverages.containsKey(name)) {
+				throw error("beverage " + name + " is given twice");
+			}
+			Beverage beverage = new Beverage(name);
+			Set<String> recipe = new HashSet<>();
+			for (String ingredient = firstKey(); ingredient != null; ingredient = nextKey()) {
+				if (!recipe.add(ingredient)) {
+					throw error(ingredient + " is given twice in the recipe of " + name);
+				}
+				beverage.addIngredient(ingredient, readWholeNumber(0));
+			}
+			if (recipe.isEmpty()) {
+				throw new InvalidSettingsException(file, "$.machine.beverages." + name, "the recipe of " + name + " has no ingredients");
+			}
+			settings.beverages.put(name, beverage);
+		}
+	}
+
+	private void readPreparation() throws IOException {
+		for (String key = firstKey(); key != null; key = nextKey()) {
+			if ("resources".equals(key)) {
+				for (String name = firstKey(); name != null; name = nextKey()) {
+					if (settings.resources.containsKey(name)) {
+						throw error("resource " + name + " is given twice");
+					}
+					settings.resources.put(name, readWholeNumber(1));
+				}
+			} else if ("stages".equals(key)) {
+				for (String beverage = firstKey(); beverage != null; beverage = nextKey()) {
+					if (settings.stages.containsKey(beverage)) {
+						throw error("the stages of " + beverage + " are given twice");
+					}
+					settings.stages.put(beverage, readStages(beverage));
+				}
+			} else {
+				skip();
+			}
+		}
+	}
+
+	//an array of stages like {"stage": "heat", "resource": "boiler", "ms": 2000}. The resource is left out for a stage which only needs the outlet.
+	private PreparationStage[] readStages(String beverage) throws IOException {
+		expect(JsonToken.BEGIN_ARRAY, "an array of stages");
+		in.beginArray();
+		List<PreparationStage> stages = new ArrayList<>();
+		while (in.hasNext()) {
+			String location = in.getPath();
+			String name = null;
+			String resource = null;
+			int millis = -1;
+			for (String key = firstKey(); key != null; key = nextKey()) {
+				if ("stage".equals(key)) {
+					expect(JsonToken.STRING, "a stage name");
+					name = in.nextString();
+				} else if ("resource".equals(key)) {
+					expect(JsonToken.STRING, "a resource name");
+					resource = in.nextString();
+				} else if ("ms".equals(key)) {
+					millis = readWholeNumber(0);
+				} else {
+					skip();
+				}
+			}
+			if (millis < 0) {
+				throw new InvalidSettingsException(file, location, "a stage of " + beverage + " has no ms");
+			}
+			stages.add(new PreparationStage(name == null ? "stage " + (stages.size() + 1) : name, resource, millis));
+		}
+		in.endArray();
+		if (stages.isEmpty()) {
+			throw new InvalidSettingsException(file, "$.machine.preparation.stages." + beverage, beverage + " has no stages");
+		}
+		return stages.toArray(new PreparationStage[0]);
+	}
+
+	private void attachStages() {
+		for (Map.Entry<String, PreparationStage[]> e: settings.stages.entrySet()) {
+			for (PreparationStage stage: e.getValue()) {
+				if (stage.getResource() != null && !settings.resources.containsKey(stage.getResource())) {
+					throw new InvalidSettingsException(file, "$.machine.preparation.stages." + e.getKey(),
+							"the stage " + stage.getName() + " needs " + stage.getResource() + " which is not in the resources");
+				}
+			}
+			Beverage beverage = settings.beverages.get(e.getKey());
+			if (beverage == null) {
+				System.out.println("Warning: " + file + ": ignoring the stages of " + e.getKey() + " which is not in beverages.");
+			} else {
+				beverage.setStages(e.getValue());
+			}
+		}
+	}
+
+	private void checkRecipes() {
+		for (Beverage beverage: settings.beverages.values()) {
+			for (String ingredient: beverage.getRequiredIngredients().keySet()) {
+				if (!settings.ingredients.containsKey(ingredient)) {
+					System.out.println("Warning: " + file + ": the recipe of " + beverage.getName() + " uses " + ingredient
+							+ " which is not in total_items_quantity. It can not be served until the ingredient is added.");
+				}
+			}
+		}
+	}
+
+	//starts reading an object and gives its first key, or null if it is empty. nextKey gives the following keys and closes the object after the last one.
+	private String firstKey() throws IOException {
+		expect(JsonToken.BEGIN_OBJECT, "an object");
+		in.beginObject();
+		return nextKey();
+	}
+
+	private String nextKey() throws IOException {
+		if (in.hasNext()) {
+			return in.nextName();
+		}
+		in.endObject();
+		return null;
+	}
+
+	private int readWholeNumber(int min) throws IOException {
+		expect(JsonToken.NUMBER, "a whole number");
+		String location = in.getPath();
+		double value = in.nextDouble();
+		if (value != Math.floor(value) || value < min || value > Integer.MAX_VALUE) {
+			throw new InvalidSettingsException(file, location, "expected a whole number of at least " + min + " but was " + value);
+		}
+		return (int)value;
+	}
+
+	private double readNumber(double min, double max) throws IOException {
+		expect(JsonToken.NUMBER, "a number");
+		String location = in.getPath();
+		double value = in.nextDouble();
+		if (value < min || value > max) {
+			throw new InvalidSettingsException(file, location, "expected a number from " + min + " to " + max + " but was " + value);
+		}
+		return value;
+	}
+
+	private String readChoice(String... choices) throws IOException {
+		expect(JsonToken.STRING, "one of " + String.join(", ", choices));
+		String location = in.getPath();
+		String value = in.nextString();
+		for (String choice: choices) {
+			if (choice.equals(value)) {
+				return value;
+			}
+		}
+		throw new InvalidSettingsException(file, location, "expected one of " + String.join(", ", choices) + " but was " + value);
+	}
+
+	private void expect(JsonToken token, String what) throws IOException {
+		JsonToken found = in.peek();
+		if (found != token) {
+			throw error("expected " + what + " but found " + found.name().toLowerCase());
+		}
+	}
+
+	private void skip() throws IOException {
+		System.out.println("Warning: " + file + ": ignoring unknown setting " + in.getPath());
+		in.skipValue();
+	}
+
+	private InvalidSettingsException error(String problem) {
+		return new InvalidSettingsException(file, in.getPath(), problem);
+	}
+}
@@ -0,0 +1,76 @@
+package Machine;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Watches the directory of a settings file and reloads the menu of the machine whenever the file is written.
+ * Editors often write a file in a few steps, so after a change the watcher waits until the file has been quiet for a moment before reading it.
+ * A file which is not valid is reported and the machine keeps serving its current menu.
+ */
+final class SettingsWatcher implements Runnable {
+
+	//how long the file must stay unchanged before it is read.
+	private static final long QUIET_MILLIS = 200;
+
+	private final Machine machine;
+	private final String settings;
+	private final Path file;
+	private final WatchService watcher;
+
+	SettingsWatcher(Machine _machine, String _settings) throws IOException {
+		machine = _machine;
+		settings = _settings;
+		file = Paths.get(_settings).toAbsolutePath();
+		watcher = FileSystems.getDefault().newWatchService();
+		file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	void start() {
+		Thread thread = new Thread(this, "settings-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = takeChange(key);
+				while (changed) {
+					key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+					if (key == null) {
+						break;
+					}
+					takeChange(key);
+				}
+				if (changed) {
+					try {
+						machine.reloadMenu(settings);
+					} catch (IOException | RuntimeException e) {
+						System.out.println("Menu not reloaded: " + e.getMessage());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//tells whether the events of the key include the settings file, and makes the key ready for the next events.
+	private boolean takeChange(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event: key.pollEvents()) {
+			changed |= file.getFileName().equals(event.context());
+		}
+		key.reset();
+		return changed;
+	}
+}
@@ -0,0 +1,186 @@
+package Machine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*
+ * Runs a machine built from a settings file through a day of traffic, or any other stretch of time, in a few seconds. For sizing outlets and containers before buying hardware.
+ * The machine is the real one, with its beverages, ingredients, admission queue and refills, but it runs on a VirtualClock:
+ * preparing a beverage or refilling a container only moves the virtual time forward, so nothing ever sleeps.
+ *
+ * Orders arrive as a Poisson process whose rate is given in phases, like 2 orders per second for the morning rush and then 0.2 for the rest of the day.
+ * Each order is for a beverage drawn from the mix, by default every beverage of the menu equally. Containers can be restocked to full on a fixed interval.
+ * The inter-arrival times and the beverages are drawn from a Random seeded by the seed of the simulation, and the whole simulation runs on the calling thread,
+ * so the same settings, phases, mix and seed always give the same report.
+ *
+ * Callers of a simulated machine place their orders and never wait for room in the queue, so the block admission policy is taken as reject.
+ * The settings are read again for every run, so a simulation can be run as many times as needed.
+ */
+public final class Simulation {
+
+	private final String settings;
+	private final long seed;
+	private final List<Long> phase_nanos = new ArrayList<>();
+	private final List<Double> phase_rates = new ArrayList<>();
+	private final Map<String, Double> mix = new TreeMap<>();
+	private long restock_interval_millis;
+	private int preparation_seconds = -1;
+
+	//the settings file is checked right away, so an invalid file throws an InvalidSettingsException here rather than in run.
+	public Simulation(String _settings, long _seed) throws IOException {
+		settings = _settings;
+		seed = _seed;
+		SettingsLoader.load(_settings);
+	}
+
+	//orders arrive at the given average rate for the given time, after the phases added before.
+	public void addPhase(long duration_millis, double orders_per_second) {
+		if (duration_millis <= 0 || orders_per_second < 0) {
+			throw new IllegalArgumentException("A phase needs a positive duration and a rate of at least 0, not " + duration_millis + " ms at " + orders_per_second + " per second.");
+		}
+		phase_nanos.add(duration_millis*1000000);
+		phase_rates.add(orders_per_second);
+	}
+
+	//relative weights of the beverages ordered, like hot_tea 3 and hot_coffee 1 for three times as many teas as coffees.
+	public void setMix(Map<String, Double> weights) {
+		mix.clear();
+		mix.putAll(weights);
+	}
+
+	//restocks every container to full once every interval. 0, the default, never restocks.
+	public void restockEvery(long interval_millis) {
+		restock_interval_millis = interval_millis;
+	}
+
+	//preparation time of every beverage. By default it is the one of the machine.
+	public void setPreparationTime(int seconds) {
+		preparation_seconds = seconds;
+	}
+
+	public SimulationReport run() throws IOException {
+		long wall_start = System.nanoTime();
+		MachineSettings parsed = SettingsLoader.load(settings);
+		parsed.journal_path = null;
+		parsed.forecast_configured = false;
+		if (AdmissionQueue.BLOCK.equals(parsed.admission_policy)) {
+			parsed.admission_policy = AdmissionQueue.REJECT;
+		}
+		VirtualClock clock = new VirtualClock();
+		Machine machine = new Machine(parsed, clock);
+		if (preparation_seconds >= 0) {
+			machine.SetPreparationTime(preparation_seconds);
+		}
+		Run run = new Run(machine, clock, new Random(seed));
+		run.start();
+		clock.run();
+		return new SimulationReport(seed, run.orders, run.restocks, run.stockouts, run.first_stockout_nanos < 0 ? -1 : run.first_stockout_nanos/1000000,
+				(System.nanoTime() - wall_start)/1000000, machine.getMetrics(), machine.getHistory());
+	}
+
+	//the state of one run: the next arrival, the restocks and what came out of the orders.
+	private final class Run {
+		final Machine machine;
+		final VirtualClock clock;
+		final String[] names;
+		final double[] cumulative;
+		final Random random;
+		int phase = -1;
+		long phase_end;
+		boolean arriving = true;
+		long orders;
+		long restocks;
+		long stockouts;
+		long first_stockout_nanos = -1;
+
+		//the beverages of the mix are kept in name order with their cumulative weights.
+		Run(Machine _machine, VirtualClock _clock, Random _random) {
+			machine = _machine;
+			clock = _clock;
+			random = _random;
+			Map<String, Double> weights = new TreeMap<>(mix);
+			if (weights.isEmpty()) {
+				for (String beverage: machine.getBeverageOptions()) {
+					weights.put(beverage, 1.0);
+				}
+			}
+			names = new String[weights.size()];
+			cumulative = new double[weights.size()];
+			double total = 0;
+			int i = 0;
+			for (Map.Entry<String, Double> e: weights.entrySet()) {
+				if (e.getValue() < 0) {
+					throw new IllegalArgumentException("The weight of " + e.getKey() + " in the mix can not be negative.");
+				}
+				total += e.getValue();
+				names[i] = e.getKey();
+				cumulative[i++] = total;
+			}
+			if (total <= 0) {
+				throw new IllegalArgumentException("The mix of the simulation has no beverage with a positive weight.");
+			}
+		}
+
+		void start() {
+			scheduleArrival(0);
+			if (restock_interval_millis > 0) {
+				clock.schedule(this::restock, restock_interval_millis);
+			}
+		}
+
+		//schedules the next order after the given time. A phase is memoryless, so an arrival which would fall after its end is drawn again from the start of the next phase.
+		private void scheduleArrival(long after) {
+			long at = after;
+			while (true) {
+				if (phase >= 0 && phase_rates.get(phase) > 0) {
+					at += (long)(-Math.log(1 - random.nextDouble()) / phase_rates.get(phase) * 1e9);
+					if (at < phase_end) {
+						break;
+					}
+				}
+				if (phase + 1 >= phase_rates.size()) {
+					arriving = false;
+					return;
+				}
+				at = phase < 0 ? 0 : phase_end;
+				phase++;
+				phase_end = at + phase_nanos.get(phase);
+			}
+			clock.at(at, this::arrive);
+		}
+
+		private void arrive() {
+			orders++;
+			double pick = random.nextDouble() * cumulative[cumulative.length - 1];
+			int i = 0;
+			while (i < cumulative.length - 1 && pick >= cumulative[i]) {
+				i++;
+			}
+			machine.submitOrder(names[i]).thenAccept(this::completed);
+			scheduleArrival(clock.nanoTime());
+		}
+
+		private void completed(OrderResult result) {
+			OrderResult.FailureReason reason = result.getFailureReason();
+			if (reason == OrderResult.FailureReason.NOT_ENOUGH_INGREDIENT || reason == OrderResult.FailureReason.INGREDIENT_NOT_AVAILABLE) {
+				stockouts++;
+				if (first_stockout_nanos < 0) {
+					first_stockout_nanos = result.getCompletedAtNanos();
+				}
+			}
+		}
+
+		private void restock() {
+			if (!arriving) {
+				return;
+			}
+			machine.fullRestockToInitialCapacity(null);
+			restocks++;
+			clock.schedule(this::restock, restock_interval_millis);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package Machine;
+
+/*
+ * What came out of a Simulation. Times are on the virtual clock of the simulation, except the wall time the simulation took to run.
+ * The metrics of the simulated machine, with its rejections by reason, latencies and ingredient levels at the end, are kept as a MetricsSnapshot.
+ * Its OrderHistory is kept as well, on the virtual clock, for looking into any stretch of the simulated time.
+ * A stockout is an order rejected because an ingredient of its beverage had run out or was not stocked.
+ */
+public final class SimulationReport {
+
+	private final long seed;
+	private final long orders;
+	private final long restocks;
+	private final long stockouts;
+	private final long first_stockout_millis;
+	private final long wall_millis;
+	private final MetricsSnapshot metrics;
+	private final OrderHistory history;
+
+	SimulationReport(long _seed, long _orders, long _restocks, long _stockouts, long _first_stockout_millis, long _wall_millis, MetricsSnapshot _metrics, OrderHistory _history) {
+		seed = _seed;
+		orders = _orders;
+		restocks = _restocks;
+		stockouts = _stockouts;
+		first_stockout_millis = _first_stockout_millis;
+		wall_millis = _wall_millis;
+		metrics = _metrics;
+		history = _history;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public long getOrderCount() {
+		return orders;
+	}
+
+	public long getPreparedCount() {
+		return metrics.getPreparedCount();
+	}
+
+	public long getRejectedCount() {
+		return metrics.getRejectedCount();
+	}
+
+	//fraction of the orders which were rejected, between 0 and 1.
+	public double getRejectionRate() {
+		return orders == 0 ? 0 : (double)metrics.getRejectedCount() / orders;
+	}
+
+	//virtual time from the start of the simulation until the last order was done.
+	public long getSimulatedMillis() {
+		return metrics.getUptimeMillis();
+	}
+
+	public double getPreparedPerHour() {
+		return metrics.getPreparedCount() * 3600000.0 / Math.max(1, metrics.getUptimeMillis());
+	}
+
+	public double getOutletUtilisation() {
+		return metrics.getOutletUtilisation();
+	}
+
+	public long getRestockCount() {
+		return restocks;
+	}
+
+	public long getStockoutCount() {
+		return stockouts;
+	}
+
+	//virtual time of the first stockout. -1 if the stock never ran out.
+	public long getFirstStockoutMillis() {
+		return first_stockout_millis;
+	}
+
+	//real time the simulation took to run.
+	public long getWallMillis() {
+		return wall_millis;
+	}
+
+	public MetricsSnapshot getMetrics() {
+		return metrics;
+	}
+
+	//null if the settings keep no history. Windows of its queries end at the end of the simulation.
+	public OrderHistory getHistory() {
+		return history;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("seed %d: %d orders over %.1f simulated minutes in %d ms. prepared %d (%.0f per hour), rejected %d (%.1f%%) %s%n"
+				+ "outlet utilisation %.3f, bottleneck %s, %d restocks, %d stockouts%s%n"
+				+ "ingredients at the end: %s",
+				seed, orders, getSimulatedMillis() / 60000.0, wall_millis, getPreparedCount(), getPreparedPerHour(), getRejectedCount(), getRejectionRate()*100,
+				metrics.getRejectionsByReason(), getOutletUtilisation(), metrics.getBottleneck(), restocks, stockouts, first_stockout_millis < 0 ? "" : ", the first after " + first_stockout_millis/1000 + " s",
+				metrics.getIngredientLevels());
+	}
+}
@@ -0,0 +1,127 @@
+package Machine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Forecasts when each ingredient will run out at the rate it is being used, and tells the LowStockListeners of the machine before it happens.
+ * Orders already add what they take to the consumed counter of each ingredient. Every interval a background thread reads those counters and folds the amount used since the last reading
+ * into an exponentially decayed rate per ingredient, in which a reading half_life old counts half as much as the latest one. So the order path does no extra work for the forecast.
+ * Time to empty is the current quantity divided by that rate. When it falls below the horizon the listeners are told once, so refills can be planned before orders start being rejected.
+ *
+ * The settings file can tune it with an optional block like "forecast": {"interval_ms": 250, "half_life_ms": 30000, "horizon_ms": 60000}.
+ * The thread is started when the block is present or when the first listener is added.
+ */
+final class StockForecaster {
+
+	static final long DEFAULT_INTERVAL_MILLIS = 250;
+	static final long DEFAULT_HALF_LIFE_MILLIS = 30000;
+	static final long DEFAULT_HORIZON_MILLIS = 60000;
+
+	private final Machine machine;
+	private final long interval_millis;
+	private final long half_life_millis;
+	private final long horizon_millis;
+	private final CopyOnWriteArrayList<LowStockListener> listeners = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService sampler;
+
+	//state of each ingredient by its id. Only touched by the sampler thread. An ingredient replaced by a new container starts over from a rate of 0.
+	private Ingredient[] tracked = new Ingredient[0];
+	private long[] last_consumed = new long[0];
+	private double[] rates = new double[0];
+	private boolean[] warned = new boolean[0];
+	private long last_sample;
+	//time to empty of each ingredient in milliseconds as of the last reading, published for getMillisToEmpty. Ingredients not being used are left out.
+	private volatile Map<String, Long> millis_to_empty = Collections.emptyMap();
+
+	StockForecaster(Machine _machine, long _interval_millis, long _half_life_millis, long _horizon_millis) {
+		machine = _machine;
+		interval_millis = _interval_millis > 0 ? _interval_millis : DEFAULT_INTERVAL_MILLIS;
+		half_life_millis = _half_life_millis > 0 ? _half_life_millis : DEFAULT_HALF_LIFE_MILLIS;
+		horizon_millis = _horizon_millis > 0 ? _horizon_millis : DEFAULT_HORIZON_MILLIS;
+	}
+
+	synchronized void start() {
+		if (sampler != null) {
+			return;
+		}
+		last_sample = System.nanoTime();
+		sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "stock-forecaster");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sampler.scheduleAtFixedRate(this::sample, interval_millis, interval_millis, TimeUnit.MILLISECONDS);
+	}
+
+	void addListener(LowStockListener listener) {
+		listeners.add(listener);
+		start();
+	}
+
+	void removeListener(LowStockListener listener) {
+		listeners.remove(listener);
+	}
+
+	Map<String, Long> getMillisToEmpty() {
+		return millis_to_empty;
+	}
+
+	private void sample() {
+		Ingredient[] table = machine.getIngredientTable();
+		if (tracked.length < table.length) {
+			tracked = Arrays.copyOf(tracked, table.length);
+			last_consumed = Arrays.copyOf(last_consumed, table.length);
+			rates = Arrays.copyOf(rates, table.length);
+			warned = Arrays.copyOf(warned, table.length);
+		}
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - last_sample) / 1e9;
+		last_sample = now;
+		double weight = 1 - Math.pow(0.5, seconds * 1000 / half_life_millis);
+		Map<String, Long> forecast = new TreeMap<>();
+		for (int id=0; id<table.length; id++) {
+			Ingredient ingredient = table[id];
+			if (ingredient == null) {
+				continue;
+			}
+			long consumed = ingredient.getConsumed();
+			if (ingredient != tracked[id]) {
+				tracked[id] = ingredient;
+				last_consumed[id] = consumed;
+				rates[id] = 0;
+				warned[id] = false;
+				continue;
+			}
+			rates[id] += weight * ((consumed - last_consumed[id]) / seconds - rates[id]);
+			last_consumed[id] = consumed;
+			if (rates[id] <= 0) {
+				warned[id] = false;
+				continue;
+			}
+			int current = ingredient.getCurrent_quantity();
+			long to_empty = (long)(current / rates[id] * 1000);
+			forecast.put(ingredient.getName(), to_empty);
+			if (to_empty >= horizon_millis) {
+				warned[id] = false;
+			} else if (!warned[id]) {
+				warned[id] = true;
+				for (LowStockListener listener: listeners) {
+					//a failing listener must not stop the sampler thread.
+					try {
+						listener.runningOut(ingredient.getName(), current, rates[id], to_empty);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		millis_to_empty = Collections.unmodifiableMap(forecast);
+	}
+}
@@ -0,0 +1,57 @@
+package Machine;
+
+import java.util.PriorityQueue;
+
+/*
+ * The clock of a Simulation. Time only moves when the simulation runs the next scheduled task, jumping straight to the time of that task,
+ * so a preparation time of 5 seconds costs nothing to wait through. Tasks due at the same time run in the order they were scheduled.
+ * Everything runs on the thread calling run, so a simulation gives the same result every time it is run with the same input.
+ */
+final class VirtualClock extends MachineClock {
+
+	private static final class Task implements Comparable<Task> {
+		final long at;
+		final long sequence;
+		final Runnable task;
+
+		Task(long _at, long _sequence, Runnable _task) {
+			at = _at;
+			sequence = _sequence;
+			task = _task;
+		}
+
+		public int compareTo(Task other) {
+			return at != other.at ? Long.compare(at, other.at) : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+	private long now;
+	private long sequence;
+
+	long nanoTime() {
+		return now;
+	}
+
+	void schedule(Runnable task, long delay_millis) {
+		at(now + delay_millis*1000000, task);
+	}
+
+	//runs the task at the given virtual time. A time already past runs it next.
+	void at(long at_nanos, Runnable task) {
+		tasks.add(new Task(Math.max(now, at_nanos), sequence++, task));
+	}
+
+	OutletExecutor createExecutor(String mode, int outlets, int threads) {
+		return OutletExecutor.simulated(this);
+	}
+
+	//runs the scheduled tasks in time order, including the ones they schedule, until there are none left.
+	void run() {
+		Task next;
+		while ((next = tasks.poll()) != null) {
+			now = next.at;
+			next.task.run();
+		}
+	}
+}
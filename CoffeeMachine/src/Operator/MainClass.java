@@ -1,13 +1,32 @@
 package Operator;
 
 import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import Machine.FleetRouter;
+import Machine.MachineEvent;
+import Machine.MachineEventListener;
+import Machine.LoadGenerator;
+import Machine.LoadReport;
+import Machine.LowStockListener;
 import Machine.Machine;
+import Machine.OrderHistory;
+import Machine.OrderPriority;
+import Machine.OrderResult;
+import Machine.Simulation;
+import Machine.SimulationReport;
+import Server.OrderServer;
 
 /*
  * This class handles the testing and usage of the coffee machine. It starts with creating an instance of Machine class. Only one instance will ever be created in the lifetime of program.
@@ -48,6 +67,27 @@ public class MainClass {
 		outlet_count  = myCoffeeMachine.getOutletCount();
 		fullRandomCaseTest();
 //		runLargeParallelOrdersTest();
+//		stockNeverOversoldStressTest();
+//		submitOrderResultsTest();
+//		outletAccountingStressTest();
+//		batchOrderTest();
+//		fleetRoutingTest();
+//		servableBeveragesTest();
+//		partialRestockTest();
+//		journalRecoveryTest();
+//		lowStockForecastTest();
+//		eventStreamTest();
+//		settingsLoaderTest();
+//		menuReloadTest();
+//		admissionPoliciesTest();
+//		fairSchedulingTest();
+//		commitPlanningTest();
+//		simulationTest();
+//		orderServerTest();
+//		loadGeneratorTest();
+//		preparationPipelineTest();
+//		orderHistoryTest();
+//		admissionControlTest();
 //		ingredientsRunningLowTest();
 //		insufficientIngredientsTest();
 //		restockIngredientsByAmountTest();
@@ -92,7 +132,7 @@ public class MainClass {
 		}
 	}
 	
-	//Run more orders parallel than num_outlets. Result should be that orders placed after all the outlets are busy should be rejected;
+	//Run more orders parallel than num_outlets. Result should be that orders placed after all the outlets are busy wait in the admission queue, and are rejected only once the queue is full;
 	public static void runLargeParallelOrdersTest() throws InterruptedException {
 		System.out.println("\n\n\n Running runLargeParallelOrdersTest \n\n\n");
 		Thread.sleep(2000);
@@ -107,6 +147,992 @@ public class MainClass {
 		}
 	}
 	
+	/*
+	 * This test submits more orders than outlets without waiting on any of them, then waits for all the results together.
+	 * Orders beyond the outlet count should wait in the admission queue for an outlet (or come back rejected with OUTLET_NOT_FREE if the machine has no queue) 
+	 * and an unsupported beverage with BEVERAGE_NOT_SUPPORTED. Each result prints its outlet and timings.
+	 */
+	public static void submitOrderResultsTest() throws Exception {
+		System.out.println("\n\n\n Running submitOrderResultsTest \n\n\n");
+		Thread.sleep(2000);
+		myCoffeeMachine.SetFullCapacityToInfinite();
+		List<CompletableFuture<OrderResult>>results = new ArrayList<>();
+		for (int i=0; i<outlet_count+2; i++) {
+			results.add(myCoffeeMachine.submitOrder(beverages[i%beverages.length]));
+		}
+		results.add(myCoffeeMachine.submitOrder("masala_tea"));
+		CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get();
+		for (CompletableFuture<OrderResult>future: results) {
+			OrderResult result = future.get();
+			System.out.printf("%s %s (%s) outlet: %d queued: %dms preparing: %dms\n", result.getBeverage(), result.getStatus(), result.getFailureReason(), 
+					result.getOutlet(), result.getQueueTimeMillis(), result.getPreparationTimeMillis());
+		}
+		System.out.println(myCoffeeMachine.getMetrics());
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+	}
+	
+	/*
+	 * This test creates a fleet of three small machines and orders more hot_tea than one machine has stock or outlets for.
+	 * Orders should spread over the machines with the most stock left. One machine is restocking at first, so only the other two should serve until they run out.
+	 * Once the restocking is over, the remaining orders should all go to the restocked machine.
+	 * Then the last machine is filled up, so a restock of the fleet it has no room for must be refused without restocking the machines before it.
+	 */
+	public static void fleetRoutingTest() throws Exception {
+		System.out.println("\n\n\n Running fleetRoutingTest \n\n\n");
+		FleetRouter fleet = FleetRouter.CreateFleet("resources/fleet_machine.json", "resources/fleet_machine.json", "resources/fleet_machine.json");
+		for (int i=0; i<fleet.getMachineCount(); i++) {
+			fleet.getMachine(i).SetPreparationTime(0);
+		}
+		fleet.getMachine(1).fullRestockToInitialCapacity(null);
+		int prepared = 0;
+		for (int i=0; i<16; i++) {
+			prepared += fleet.submitOrder("hot_tea").join().isPrepared() ? 1 : 0;
+		}
+		System.out.printf("prepared %d of 16 hot_tea while machine 1 is restocking. Expected 14\n", prepared);
+		Thread.sleep(2000);
+		prepared = 0;
+		for (int i=0; i<8; i++) {
+			prepared += fleet.submitOrder("hot_tea").join().isPrepared() ? 1 : 0;
+		}
+		System.out.printf("prepared %d of 8 hot_tea after restocking. Expected 7\n", prepared);
+		for (int i=0; i<fleet.getMachineCount(); i++) {
+			System.out.println("machine " + i + " ingredients left: " + fleet.getMachine(i).getAvailableIngredients());
+		}
+		System.out.println(fleet.getMetrics());
+		
+		fleet.getMachine(2).fullRestockToInitialCapacity(null);
+		Map<String, Integer>before = fleet.getMachine(0).getAvailableIngredients();
+		try {
+			fleet.restockIngredientsByAmount(Map.of("hot_water", 100));
+			System.out.println("FAILED, the fleet was restocked past the room of machine 2");
+		} catch (IllegalArgumentException e) {
+			System.out.printf("%s. machine 0 ingredients %s. %s\n", e.getMessage(), fleet.getMachine(0).getAvailableIngredients(),
+					before.equals(fleet.getMachine(0).getAvailableIngredients()) ? "a refused fleet restock restocks no machine" : "FAILED");
+		}
+	}
+	
+	/*
+	 * This test places a batch of 12 hot_tea and 5 black_tea, which is more than the ingredients can make.
+	 * All-or-nothing should reject the whole batch and leave the stock untouched. Best-effort should prepare as many of the beverages as the stock allows and reject the rest.
+	 * Batches with a negative count or more than MAX_BATCH_SIZE beverages should be refused without touching the stock, and a best-effort batch whose recipe quantities
+	 * times its count overflow an int should still reserve only what the stock makes.
+	 */
+	public static void batchOrderTest() throws Exception {
+		System.out.println("\n\n\n Running batchOrderTest \n\n\n");
+		Thread.sleep(2000);
+		myCoffeeMachine.SetPreparationTime(0);
+		Map<String, Integer>batch = new HashMap<>();
+		batch.put("hot_tea", 12);
+		batch.put("black_tea", 5);
+		for (boolean all_or_nothing: new boolean[] {true, false}) {
+			Map<String, Integer>before = myCoffeeMachine.getAvailableIngredients();
+			int prepared = 0;
+			for (CompletableFuture<OrderResult>result: myCoffeeMachine.submitOrders(batch, all_or_nothing)) {
+				prepared += result.get().isPrepared() ? 1 : 0;
+			}
+			System.out.printf("%s: prepared %d of 17. Stock before %s after %s\n", all_or_nothing ? "all-or-nothing" : "best-effort", prepared, before, myCoffeeMachine.getAvailableIngredients());
+		}
+		//a negative count must not put stock back, and a batch too large to hold its futures must not be taken. Both are refused before anything is reserved.
+		Map<String, Integer>before = myCoffeeMachine.getAvailableIngredients();
+		List<String>refused = new ArrayList<>();
+		for (int count: new int[] {-1000, Machine.MAX_BATCH_SIZE + 1}) {
+			try {
+				myCoffeeMachine.submitOrders(Map.of("hot_tea", count), true);
+				refused.add("accepted " + count);
+			} catch (IllegalArgumentException e) {
+				refused.add(e.getMessage());
+			}
+		}
+		Map<String, Integer>after = myCoffeeMachine.getAvailableIngredients();
+		System.out.printf("%s. %s\n", refused, before.equals(after) && !refused.toString().contains("accepted") ? "bad counts are refused and the stock is untouched" : "FAILED");
+		
+		//a recipe taking a million of hot_water: 5000 of them need more than an int holds, and the stock of 2 billion makes exactly 2000.
+		java.io.File file = java.io.File.createTempFile("batch", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 8}, \"admission\": {\"queue_capacity\": 5000}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 2000000000}, \"beverages\": {\"urn\": {\"hot_water\": 1000000}}}}");
+		Machine urns = Machine.CreateMachine(file.getPath());
+		urns.SetPreparationTime(0);
+		int urns_prepared = 0;
+		for (CompletableFuture<OrderResult>result: urns.submitOrders(Map.of("urn", 5000), false)) {
+			urns_prepared += result.get().isPrepared() ? 1 : 0;
+		}
+		System.out.printf("best-effort 5000 urns: prepared %d, hot_water left %d. %s\n", urns_prepared, urns.getAvailableIngredients().get("hot_water"),
+				urns_prepared == 2000 && urns.getAvailableIngredients().get("hot_water") == 0 ? "large counts reserve what the stock makes" : "FAILED");
+		myCoffeeMachine.SetPreparationTime(5);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+	}
+	
+	/*
+	 * This test checks the servable beverages kept by the machine. green_tea needs green_mixture which the machine does not have, so it is not servable from the start.
+	 * After one hot_coffee there is not enough hot_milk for another, so the next hot_coffee is rejected straight away without waiting for an outlet.
+	 * Then outlets order random beverages in parallel until the stock runs out. The servable beverages must match what the remaining stock can make, worked out from the recipes.
+	 */
+	public static void servableBeveragesTest() throws Exception {
+		System.out.println("\n\n\n Running servableBeveragesTest \n\n\n");
+		Thread.sleep(2000);
+		myCoffeeMachine.SetPreparationTime(0);
+		System.out.println("servable at start: " + Arrays.toString(myCoffeeMachine.getServableBeverages()));
+		System.out.println(myCoffeeMachine.submitOrder("hot_coffee").get().getMessage());
+		OrderResult rejected = myCoffeeMachine.submitOrder("hot_coffee").get();
+		System.out.println(rejected.getMessage() + " reason " + rejected.getFailureReason() + ", servable now: " + Arrays.toString(myCoffeeMachine.getServableBeverages()));
+		myCoffeeMachine.addUnavailableIngredientWithMaxCapacity("green_mixture", 100);
+		System.out.println("servable with green_mixture: " + Arrays.toString(myCoffeeMachine.getServableBeverages()));
+		
+		ExecutorService orders = Executors.newFixedThreadPool(outlet_count);
+		for (int i=0; i<outlet_count; i++) {
+			orders.execute(() -> {
+				for (int j=0; j<20; j++) {
+					myCoffeeMachine.submitOrder(beverages[random.nextInt(beverages.length)]).join();
+				}
+			});
+		}
+		orders.shutdown();
+		orders.awaitTermination(1, TimeUnit.MINUTES);
+		Map<String, Integer>stock = myCoffeeMachine.getAvailableIngredients();
+		List<String>expected = new ArrayList<>();
+		for (String beverage: myCoffeeMachine.getBeverageOptions()) {
+			boolean can_make = true;
+			for (Entry<String, Integer>e: myCoffeeMachine.getBeverageRecipe(beverage).entrySet()) {
+				can_make &= stock.containsKey(e.getKey()) && stock.get(e.getKey()) >= e.getValue();
+			}
+			if (can_make) {
+				expected.add(beverage);
+			}
+		}
+		List<String>servable = Arrays.asList(myCoffeeMachine.getServableBeverages());
+		System.out.printf("stock %s, servable %s. %s\n", stock, servable, 
+				servable.containsAll(expected) && expected.containsAll(servable) ? "servable beverages are consistent" : "FAILED, expected " + expected);
+		myCoffeeMachine.SetPreparationTime(5);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+		Thread.sleep(2000);
+		System.out.println("servable after restock: " + Arrays.toString(myCoffeeMachine.getServableBeverages()));
+	}
+	
+	/*
+	 * This test checks that restocking one ingredient only holds back the beverages using it. hot_milk is refilled, so black_tea which does not use it is prepared straight away,
+	 * while hot_tea waits for the refill to be over and is prepared after about 2 seconds instead of being rejected.
+	 * hot_milk is restocked again half way through the refill, which must not make hot_tea wait any longer. Restocking an ingredient the machine does not have is refused.
+	 */
+	public static void partialRestockTest() throws Exception {
+		System.out.println("\n\n\n Running partialRestockTest \n\n\n");
+		Thread.sleep(2000);
+		myCoffeeMachine.SetPreparationTime(0);
+		myCoffeeMachine.fullRestockToInitialCapacity(new String[] {"hot_milk"});
+		CompletableFuture<OrderResult>hot_tea = myCoffeeMachine.submitOrder("hot_tea");
+		OrderResult black_tea = myCoffeeMachine.submitOrder("black_tea").get();
+		System.out.printf("black_tea during hot_milk refill: %s after %d ms. %d order held back\n", black_tea.getStatus(), black_tea.getTotalTimeMillis(), myCoffeeMachine.getQueuedOrderCount());
+		Thread.sleep(1000);
+		myCoffeeMachine.fullRestockToInitialCapacity(new String[] {"hot_milk"});
+		OrderResult held = hot_tea.get();
+		System.out.printf("hot_tea during hot_milk refill: %s after %d ms. %s\n", held.getStatus(), held.getTotalTimeMillis(), 
+				black_tea.isPrepared() && black_tea.getTotalTimeMillis() < 1000 && held.isPrepared() && held.getTotalTimeMillis() >= 1900 && held.getTotalTimeMillis() < 2900
+				? "only hot_milk beverages were held back, and only for one refill" : "FAILED");
+		try {
+			myCoffeeMachine.restockIngredientsByAmount(Map.of("hot_chocolate", 10));
+			System.out.println("FAILED, an unknown ingredient was restocked");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + ". unknown ingredients are refused");
+		}
+		myCoffeeMachine.SetPreparationTime(5);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+	}
+	
+	/*
+	 * This test checks the journal. A machine journaling to a 4 KB file serves 2000 orders from 8 threads, which fills and folds its halves many times over,
+	 * then restocks hot_water and gets ginger_syrup added. A second machine opening the same journal should start with exactly the levels the first one ended with.
+	 * Then a record of an ingredient the journal never named is written into the second half with a newer generation, as a torn or foreign write could leave it.
+	 * A third machine should take it as corruption, stop the replay there and still start with the same levels.
+	 */
+	public static void journalRecoveryTest() throws Exception {
+		System.out.println("\n\n\n Running journalRecoveryTest \n\n\n");
+		java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("journal");
+		java.nio.file.Path journal = directory.resolve("machine.journal");
+		java.io.File file = java.io.File.createTempFile("journal", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 8}, \"admission\": {\"queue_capacity\": 64, \"policy\": \"block\", \"timeout_ms\": 10000}, "
+				+ "\"journal\": {\"path\": \"" + journal.toString().replace("\\", "/") + "\", \"capacity_kb\": 4, \"sync_interval_ms\": 10}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 100000, \"hot_milk\": 100000, \"sugar_syrup\": 100000}, "
+				+ "\"beverages\": {\"hot_tea\": {\"hot_water\": 20, \"hot_milk\": 10, \"sugar_syrup\": 1}, \"hot_coffee\": {\"hot_water\": 10, \"hot_milk\": 40}}}}");
+		Machine first = Machine.CreateMachine(file.getPath());
+		first.SetPreparationTime(0);
+		AtomicInteger prepared = new AtomicInteger();
+		ExecutorService customers = Executors.newFixedThreadPool(8);
+		for (int i=0; i<8; i++) {
+			customers.execute(() -> {
+				for (int j=0; j<250; j++) {
+					prepared.addAndGet(first.submitOrder(j%2 == 0 ? "hot_tea" : "hot_coffee").join().isPrepared() ? 1 : 0);
+				}
+			});
+		}
+		customers.shutdown();
+		customers.awaitTermination(1, TimeUnit.MINUTES);
+		first.restockIngredientsByAmount(Map.of("hot_water", 500));
+		first.addUnavailableIngredientWithMaxCapacity("ginger_syrup", 300);
+		Map<String, Integer>ended = first.getAvailableIngredients();
+		first.closeJournal();
+		
+		Machine second = Machine.CreateMachine(file.getPath());
+		Map<String, Integer>restored = second.getAvailableIngredients();
+		second.closeJournal();
+		
+		//the second half starts at 2 KB: magic, generation, then an ADD of 1000 to ingredient 999.
+		try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(journal, java.nio.file.StandardOpenOption.WRITE)) {
+			java.nio.ByteBuffer record = java.nio.ByteBuffer.allocate(17);
+			record.putInt(0x434d4a33).putInt(1000000).put((byte)2).putInt(999).putInt(1000).flip();
+			channel.write(record, 2048);
+		}
+		Machine third = Machine.CreateMachine(file.getPath());
+		Map<String, Integer>after_corruption = third.getAvailableIngredients();
+		third.closeJournal();
+		
+		//a journal marked as broken after it lost a record is not restored from. The machine starts with the levels of the settings.
+		try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(journal, java.nio.file.StandardOpenOption.WRITE)) {
+			channel.write(java.nio.ByteBuffer.allocate(4).putInt(0x434d4a58).flip(), 0);
+		}
+		Machine fourth = Machine.CreateMachine(file.getPath());
+		Map<String, Integer>from_broken = fourth.getAvailableIngredients();
+		fourth.closeJournal();
+		
+		System.out.printf("prepared %d orders. levels at the end %s, restored %s, restored past a corrupt record %s, from a broken journal %s. %s\n", prepared.get(), ended, restored, after_corruption, from_broken,
+				ended.equals(restored) && ended.equals(after_corruption) && prepared.get() == 2000 && from_broken.get("hot_water") == 100000 ? "the journal restores the levels" : "FAILED");
+	}
+	
+	/*
+	 * This test checks the low stock forecast. A hot_tea is ordered every 200 ms until the machine can not make it anymore.
+	 * At that rate every ingredient of hot_tea runs out in seconds, well within the horizon of a minute, so the listener should be told about them before the first order is rejected.
+	 */
+	public static void lowStockForecastTest() throws Exception {
+		System.out.println("\n\n\n Running lowStockForecastTest \n\n\n");
+		Thread.sleep(2000);
+		myCoffeeMachine.SetPreparationTime(0);
+		List<String>warned = new java.util.concurrent.CopyOnWriteArrayList<>();
+		LowStockListener listener = (ingredient, current_quantity, used_per_second, millis_to_empty) -> {
+			warned.add(ingredient);
+			System.out.printf("forecast: %s runs out in %d ms. %d left, using %.1f per second\n", ingredient, millis_to_empty, current_quantity, used_per_second);
+		};
+		myCoffeeMachine.addLowStockListener(listener);
+		int warned_before_rejection = 0;
+		while (myCoffeeMachine.submitOrder("hot_tea").get().isPrepared()) {
+			warned_before_rejection = warned.size();
+			Thread.sleep(200);
+		}
+		System.out.println("forecast time to empty: " + myCoffeeMachine.getMillisToEmpty());
+		System.out.printf("%d ingredients forecast to run out before hot_tea was rejected. %s\n", warned_before_rejection, warned_before_rejection > 0 ? "forecast came before the outage" : "FAILED");
+		myCoffeeMachine.removeLowStockListener(listener);
+		myCoffeeMachine.SetPreparationTime(5);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+	}
+	
+	/*
+	 * This test checks the event stream of the machine. Two subscribers count the events by type while outlets order in parallel with unlimited ingredients.
+	 * Each of them should see every order accepted, started and completed, five level changes for each hot_tea, and then a level change, start and end of the restock of each ingredient.
+	 * Both see the same events, in batches, unless events were dropped because a subscriber fell a whole ring behind.
+	 */
+	public static void eventStreamTest() throws Exception {
+		System.out.println("\n\n\n Running eventStreamTest \n\n\n");
+		//longer than a refill, so the refills started by earlier tests are over before the subscribers start.
+		Thread.sleep(2500);
+		myCoffeeMachine.SetPreparationTime(0);
+		myCoffeeMachine.SetFullCapacityToInfinite();
+		List<Map<MachineEvent.Type, Integer>>counts = new ArrayList<>();
+		List<MachineEventListener>subscribers = new ArrayList<>();
+		AtomicInteger batches = new AtomicInteger();
+		//each subscriber starts where the ring is when it subscribes, so only the events after both subscribed are counted.
+		AtomicLong since = new AtomicLong(Long.MAX_VALUE);
+		for (int i=0; i<2; i++) {
+			Map<MachineEvent.Type, Integer>count = new java.util.concurrent.ConcurrentHashMap<>();
+			counts.add(count);
+			MachineEventListener subscriber = (event, end_of_batch) -> {
+				if (event.getTimeNanos() >= since.get()) {
+					count.merge(event.getType(), 1, Integer::sum);
+				}
+				if (end_of_batch) {
+					batches.incrementAndGet();
+				}
+			};
+			subscribers.add(subscriber);
+			myCoffeeMachine.subscribe(subscriber);
+		}
+		since.set(System.nanoTime());
+		int orders = outlet_count*250;
+		ExecutorService outlets = Executors.newFixedThreadPool(outlet_count);
+		for (int i=0; i<outlet_count; i++) {
+			outlets.execute(() -> {
+				for (int j=0; j<250; j++) {
+					myCoffeeMachine.submitOrder("hot_tea").join();
+				}
+			});
+		}
+		outlets.shutdown();
+		outlets.awaitTermination(1, TimeUnit.MINUTES);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+		Thread.sleep(2500);
+		System.out.printf("%d orders, %d events dropped, %d batches\n", orders, myCoffeeMachine.getDroppedEventCount(), batches.get());
+		for (Map<MachineEvent.Type, Integer>count: counts) {
+			System.out.println(new java.util.TreeMap<>(count));
+		}
+		Map<MachineEvent.Type, Integer>seen = counts.get(0);
+		int stocked = myCoffeeMachine.getAvailableIngredients().size();
+		boolean consistent = seen.equals(counts.get(1)) && seen.getOrDefault(MachineEvent.Type.ORDER_ACCEPTED, 0) == orders 
+				&& seen.getOrDefault(MachineEvent.Type.ORDER_COMPLETED, 0) == orders && seen.getOrDefault(MachineEvent.Type.INGREDIENT_LEVEL_CHANGED, 0) == orders*5 + stocked
+				&& seen.getOrDefault(MachineEvent.Type.RESTOCK_FINISHED, 0) == stocked;
+		System.out.println(consistent ? "every subscriber saw every event" : myCoffeeMachine.getDroppedEventCount() > 0 ? "events were dropped, try a larger ring_size" : "FAILED");
+		for (MachineEventListener subscriber: subscribers) {
+			myCoffeeMachine.unsubscribe(subscriber);
+		}
+		myCoffeeMachine.SetPreparationTime(5);
+	}
+	
+	/*
+	 * This test checks that settings files which do not describe a valid machine are rejected with the location of the problem, and that a large menu loads quickly.
+	 * Each broken file should fail with its own message. The large menu has 1000 beverages using 200 ingredients.
+	 */
+	public static void settingsLoaderTest() throws Exception {
+		System.out.println("\n\n\n Running settingsLoaderTest \n\n\n");
+		String outlets = "{\"machine\": {\"outlets\": {\"count_n\": 2}, ";
+		String[] broken = {
+				outlets + "\"total_items_quantity\": {\"hot_water\": 500}, \"beverages\": {\"hot_tea\": {\"hot_water\": 70.5}}}}",
+				"{\"machine\": {\"outlets\": {\"count_n\": \"two\"}, \"total_items_quantity\": {}, \"beverages\": {}}}",
+				outlets + "\"total_items_quantity\": {\"hot_water\": 500}, \"beverages\": {\"hot_tea\": {\"hot_water\": 70}, \"hot_tea\": {\"hot_water\": 10}}}}",
+				outlets + "\"total_items_quantity\": {\"hot_water\": 500}}}",
+				outlets + "\"admission\": {\"policy\": \"fifo\"}, \"total_items_quantity\": {\"hot_water\": 500}, \"beverages\": {}}}",
+				outlets + "\"total_items_quantity\": {\"hot_water\": 500}, \"beverages\": {\"hot_tea\": {\"hot_water\": -70}}}}"};
+		int rejected = 0;
+		for (String settings: broken) {
+			java.io.File file = java.io.File.createTempFile("settings", ".json");
+			file.deleteOnExit();
+			java.nio.file.Files.writeString(file.toPath(), settings);
+			try {
+				Machine.CreateMachine(file.getPath());
+				System.out.println("FAILED, loaded " + settings);
+			} catch (CustomExceptions.InvalidSettingsException e) {
+				System.out.println(e.getMessage().replace(file.getPath(), "settings.json"));
+				rejected++;
+			}
+		}
+		
+		StringBuilder menu = new StringBuilder(outlets + "\"total_items_quantity\": {");
+		for (int i=0; i<200; i++) {
+			menu.append(i == 0 ? "" : ", ").append("\"ingredient_").append(i).append("\": 1000");
+		}
+		menu.append("}, \"beverages\": {");
+		for (int b=0; b<1000; b++) {
+			menu.append(b == 0 ? "" : ", ").append("\"beverage_").append(b).append("\": {");
+			for (int k=0; k<8; k++) {
+				menu.append(k == 0 ? "" : ", ").append("\"ingredient_").append((b*7 + k*31)%200).append("\": 10");
+			}
+			menu.append("}");
+		}
+		menu.append("}}}");
+		java.io.File file = java.io.File.createTempFile("settings", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), menu);
+		long start = System.nanoTime();
+		Machine large = Machine.CreateMachine(file.getPath());
+		System.out.printf("loaded %d beverages in %d ms. %s\n", large.getBeverageOptions().length, (System.nanoTime() - start)/1000000, 
+				rejected == broken.length && large.getBeverageOptions().length == 1000 ? "settings are validated" : "FAILED");
+	}
+	
+	/*
+	 * This test checks reloading the menu while the machine runs. Two hot_tea orders are being prepared when a new menu is loaded, in which hot_tea only needs 10 hot_water
+	 * and a masala_tea using a new masala_syrup is added. The two orders in flight keep their old recipe, the order after the reload uses the new one.
+	 * Then outlets keep ordering while the menu is reloaded again and again, and no order should fail because of it. 
+	 * Last, the settings file is watched and changed on disk, and the new beverage should show up on its own.
+	 */
+	public static void menuReloadTest() throws Exception {
+		System.out.println("\n\n\n Running menuReloadTest \n\n\n");
+		Thread.sleep(2000);
+		String menu = "{\"machine\": {\"outlets\": {\"count_n\": 8}, \"total_items_quantity\": {\"hot_water\": 500, \"hot_milk\": 500, \"masala_syrup\": 100}, "
+				+ "\"beverages\": {\"hot_tea\": {\"hot_water\": 10}, \"masala_tea\": {\"hot_water\": 50, \"hot_milk\": 50, \"masala_syrup\": 10}%s}}}";
+		java.io.File file = java.io.File.createTempFile("menu", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), String.format(menu, ""));
+		
+		myCoffeeMachine.SetPreparationTime(1);
+		Map<String, Integer>before = myCoffeeMachine.getAvailableIngredients();
+		List<CompletableFuture<OrderResult>>in_flight = new ArrayList<>();
+		in_flight.add(myCoffeeMachine.submitOrder("hot_tea"));
+		in_flight.add(myCoffeeMachine.submitOrder("hot_tea"));
+		myCoffeeMachine.reloadMenu(file.getPath());
+		in_flight.add(myCoffeeMachine.submitOrder("hot_tea"));
+		in_flight.add(myCoffeeMachine.submitOrder("masala_tea"));
+		for (CompletableFuture<OrderResult>result: in_flight) {
+			System.out.println(result.get().getMessage());
+		}
+		Map<String, Integer>after = myCoffeeMachine.getAvailableIngredients();
+		int water_used = before.get("hot_water") - after.get("hot_water");
+		int milk_used = before.get("hot_milk") - after.get("hot_milk");
+		System.out.printf("hot_water used %d, hot_milk used %d. %s\n", water_used, milk_used, 
+				water_used == 2*70 + 10 + 50 && milk_used == 2*70 + 50 ? "orders in flight kept their recipe" : "FAILED");
+		
+		myCoffeeMachine.SetPreparationTime(0);
+		myCoffeeMachine.SetFullCapacityToInfinite();
+		AtomicInteger failed = new AtomicInteger();
+		ExecutorService outlets = Executors.newFixedThreadPool(outlet_count);
+		for (int i=0; i<outlet_count; i++) {
+			outlets.execute(() -> {
+				for (int j=0; j<500; j++) {
+					OrderResult result = myCoffeeMachine.submitOrder("hot_tea").join();
+					if (!result.isPrepared()) {
+						failed.incrementAndGet();
+						System.out.println(result.getMessage());
+					}
+				}
+			});
+		}
+		outlets.shutdown();
+		for (int i=0; !outlets.awaitTermination(20, TimeUnit.MILLISECONDS); i++) {
+			myCoffeeMachine.reloadMenu(i%2 == 0 ? "resources/settings.json" : file.getPath());
+		}
+		System.out.printf("%d of %d orders failed while the menu was being reloaded. %s\n", failed.get(), outlet_count*500, failed.get() == 0 ? "orders kept flowing" : "FAILED");
+		
+		myCoffeeMachine.watchSettings(file.getPath());
+		java.nio.file.Files.writeString(file.toPath(), String.format(menu, ", \"chai_latte\": {\"hot_milk\": 100}"));
+		boolean found = false;
+		for (int i=0; i<50 && !found; i++) {
+			Thread.sleep(100);
+			found = Arrays.asList(myCoffeeMachine.getBeverageOptions()).contains("chai_latte");
+		}
+		System.out.println(found ? "menu was reloaded when the file changed" : "FAILED, chai_latte not on the menu");
+		myCoffeeMachine.reloadMenu("resources/settings.json");
+		myCoffeeMachine.SetPreparationTime(5);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+	}
+	
+	/*
+	 * This test checks the policies of the admission queue. A machine with 1 outlet, a queue of 2 and 1 second preparation gets 4 hot_tea at once, so one order is too many.
+	 * reject should turn the 4th order away with QUEUE_FULL. block should hold the caller of the 4th order about a second until the first is prepared, and then serve all 4.
+	 * drop_oldest should reject the 2nd order, the one waiting the longest, with DROPPED to make room for the 4th.
+	 * With a queue of 3 and a deadline of 1.5 seconds, the 3rd and 4th orders would wait 2 and 3 seconds, so they should be rejected with DEADLINE_EXCEEDED.
+	 */
+	public static void admissionPoliciesTest() throws Exception {
+		System.out.println("\n\n\n Running admissionPoliciesTest \n\n\n");
+		String[] admissions = {"{\"queue_capacity\": 2, \"policy\": \"reject\"}", "{\"queue_capacity\": 2, \"policy\": \"block\", \"timeout_ms\": 3000}",
+				"{\"queue_capacity\": 2, \"policy\": \"drop_oldest\"}", "{\"queue_capacity\": 3, \"policy\": \"reject\", \"deadline_ms\": 1500}"};
+		String[] expected = {"[NONE, NONE, NONE, QUEUE_FULL]", "[NONE, NONE, NONE, NONE]", "[NONE, DROPPED, NONE, NONE]", "[NONE, NONE, DEADLINE_EXCEEDED, DEADLINE_EXCEEDED]"};
+		boolean passed = true;
+		for (int c=0; c<admissions.length; c++) {
+			java.io.File file = java.io.File.createTempFile("admission", ".json");
+			file.deleteOnExit();
+			java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 1}, \"admission\": " + admissions[c] + ", "
+					+ "\"total_items_quantity\": {\"hot_water\": 5000}, \"beverages\": {\"hot_tea\": {\"hot_water\": 10}}}}");
+			Machine machine = Machine.CreateMachine(file.getPath());
+			machine.SetPreparationTime(1);
+			List<CompletableFuture<OrderResult>>results = new ArrayList<>();
+			long longest_call = 0;
+			for (int i=0; i<4; i++) {
+				long start = System.nanoTime();
+				results.add(machine.submitOrder("hot_tea"));
+				longest_call = Math.max(longest_call, (System.nanoTime() - start) / 1000000);
+			}
+			List<OrderResult.FailureReason>outcome = new ArrayList<>();
+			for (CompletableFuture<OrderResult>result: results) {
+				outcome.add(result.get().getFailureReason());
+			}
+			boolean as_expected = outcome.toString().equals(expected[c]) && (c != 1 || longest_call >= 900);
+			passed &= as_expected;
+			System.out.printf("%s: %s, longest submitOrder call %d ms. %s\n", admissions[c], outcome, longest_call, as_expected ? "as expected" : "FAILED, expected " + expected[c]);
+		}
+		System.out.println(passed ? "every admission policy behaves as set" : "FAILED");
+	}
+	
+	/*
+	 * This test checks the fair sharing of the outlets. A machine with 2 outlets and 1 second preparation gets a BULK batch of 20 hot_tea from a conference,
+	 * which keeps both outlets busy for 10 seconds. Then 4 walk-up customers order one INTERACTIVE hot_tea each. In arrival order they would wait for the whole batch,
+	 * with fair queuing they should get the next free outlets and wait about a second, while the batch still completes.
+	 */
+	public static void fairSchedulingTest() throws Exception {
+		System.out.println("\n\n\n Running fairSchedulingTest \n\n\n");
+		java.io.File file = java.io.File.createTempFile("fair", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 2}, "
+				+ "\"admission\": {\"queue_capacity\": 100, \"policy\": \"reject\", \"weights\": {\"interactive\": 8, \"bulk\": 1}, \"aging_ms\": 30000}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 5000}, \"beverages\": {\"hot_tea\": {\"hot_water\": 10}}}}");
+		Machine machine = Machine.CreateMachine(file.getPath());
+		machine.SetPreparationTime(1);
+		Map<String, Integer>conference = new HashMap<>();
+		conference.put("hot_tea", 20);
+		List<CompletableFuture<OrderResult>>bulk = machine.submitOrders(conference, false, OrderPriority.BULK, "conference");
+		Thread.sleep(200);
+		List<CompletableFuture<OrderResult>>walk_up = new ArrayList<>();
+		for (int i=0; i<4; i++) {
+			walk_up.add(machine.submitOrder("hot_tea", 0, OrderPriority.INTERACTIVE, "customer_" + i));
+		}
+		long longest_walk_up = 0;
+		for (CompletableFuture<OrderResult>result: walk_up) {
+			longest_walk_up = Math.max(longest_walk_up, result.get().getQueueTimeMillis());
+		}
+		int bulk_prepared = 0;
+		for (CompletableFuture<OrderResult>result: bulk) {
+			bulk_prepared += result.get().isPrepared() ? 1 : 0;
+		}
+		Map<String, Long>latencies = machine.getMetrics().getLatencyPercentilesMicros();
+		System.out.printf("walk-up customers waited at most %d ms, %d of 20 bulk orders prepared. queue p99 interactive %d ms, bulk %d ms. %s\n", longest_walk_up, bulk_prepared,
+				latencies.get("queue.interactive.p99")/1000, latencies.get("queue.bulk.p99")/1000, longest_walk_up < 2500 && bulk_prepared == 20 ? "walk-ups were not starved" : "FAILED");
+	}
+	
+	/*
+	 * This test checks planning the waiting orders around the stock. Two machines with 1 outlet and 500 hot_milk get the same orders while their outlet is busy:
+	 * one hot_coffee taking 400 hot_milk followed by 6 hot_tea taking 70 each. Served first come first served, the hot_coffee leaves enough for only 1 hot_tea.
+	 * With the most_served ordering all 6 hot_tea should be served and only the hot_coffee rejected.
+	 */
+	public static void commitPlanningTest() throws Exception {
+		System.out.println("\n\n\n Running commitPlanningTest \n\n\n");
+		String settings = "{\"machine\": {\"outlets\": {\"count_n\": 1}, \"admission\": {\"queue_capacity\": 16, \"ordering\": \"%s\", \"window\": 16}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 5000, \"hot_milk\": 500}, "
+				+ "\"beverages\": {\"hot_water\": {\"hot_water\": 100}, \"hot_coffee\": {\"hot_water\": 100, \"hot_milk\": 400}, \"hot_tea\": {\"hot_water\": 50, \"hot_milk\": 70}}}}";
+		int[] served = new int[2];
+		List<List<CompletableFuture<OrderResult>>>placed = new ArrayList<>();
+		String[] orderings = {"fair", "most_served"};
+		for (String ordering: orderings) {
+			java.io.File file = java.io.File.createTempFile("planning", ".json");
+			file.deleteOnExit();
+			java.nio.file.Files.writeString(file.toPath(), String.format(settings, ordering));
+			Machine machine = Machine.CreateMachine(file.getPath());
+			machine.SetPreparationTime(1);
+			List<CompletableFuture<OrderResult>>results = new ArrayList<>();
+			//keeps the outlet busy so the other orders wait.
+			machine.submitOrder("hot_water");
+			results.add(machine.submitOrder("hot_coffee"));
+			for (int i=0; i<6; i++) {
+				results.add(machine.submitOrder("hot_tea"));
+			}
+			placed.add(results);
+		}
+		for (int m=0; m<2; m++) {
+			StringBuilder outcome = new StringBuilder();
+			for (CompletableFuture<OrderResult>result: placed.get(m)) {
+				OrderResult r = result.get();
+				served[m] += r.isPrepared() ? 1 : 0;
+				outcome.append(r.getBeverage()).append(r.isPrepared() ? "+ " : "- ");
+			}
+			System.out.printf("%s: served %d of 7. %s\n", orderings[m], served[m], outcome);
+		}
+		System.out.println(served[0] == 2 && served[1] == 6 ? "planning served more drinks from the same stock" : "FAILED");
+	}
+	
+	/*
+	 * This test simulates a whole day of a machine with 16 outlets and large containers restocked every hour, in a few seconds of real time.
+	 * Orders come at 1 per second at night, 4 per second in the morning rush, which is more than the outlets can make, and 2.5 per second over the day.
+	 * The rush should show up as orders rejected for a full queue, while the containers are large enough to never run out. Running the same simulation again with the same seed should give the same report.
+	 */
+	public static void simulationTest() throws Exception {
+		System.out.println("\n\n\n Running simulationTest \n\n\n");
+		java.io.File file = java.io.File.createTempFile("simulation", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 16}, \"admission\": {\"queue_capacity\": 32, \"deadline_ms\": 60000}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 2500000, \"hot_milk\": 2000000, \"sugar_syrup\": 250000, \"tea_leaves_syrup\": 300000}, "
+				+ "\"beverages\": {\"hot_tea\": {\"hot_water\": 200, \"hot_milk\": 100, \"sugar_syrup\": 10, \"tea_leaves_syrup\": 30}, "
+				+ "\"hot_coffee\": {\"hot_water\": 100, \"hot_milk\": 400, \"sugar_syrup\": 50}, \"black_tea\": {\"hot_water\": 300, \"tea_leaves_syrup\": 30}}}}");
+		Simulation simulation = new Simulation(file.getPath(), 2024);
+		long hour = 3600000;
+		simulation.addPhase(7*hour, 1);
+		simulation.addPhase(2*hour, 4);
+		simulation.addPhase(15*hour, 2.5);
+		Map<String, Double>mix = new HashMap<>();
+		mix.put("hot_tea", 5.0);
+		mix.put("hot_coffee", 3.0);
+		mix.put("black_tea", 2.0);
+		simulation.setMix(mix);
+		simulation.restockEvery(hour);
+		SimulationReport day = simulation.run();
+		System.out.println(day);
+		System.out.println(day.getMetrics().getLatencyPercentilesMicros());
+		SimulationReport again = simulation.run();
+		boolean same = day.getOrderCount() == again.getOrderCount() && day.getPreparedCount() == again.getPreparedCount() && day.getStockoutCount() == again.getStockoutCount()
+				&& day.getSimulatedMillis() == again.getSimulatedMillis() && day.getMetrics().getRejectionsByReason().equals(again.getMetrics().getRejectionsByReason())
+				&& day.getMetrics().getIngredientLevels().equals(again.getMetrics().getIngredientLevels());
+		System.out.printf("simulated %.0f hours twice in %d ms and %d ms. %s\n", day.getSimulatedMillis() / 3600000.0, day.getWallMillis(), again.getWallMillis(), 
+				same ? "the simulation is deterministic" : "FAILED, the runs differ");
+	}
+	
+	/*
+	 * This test serves a machine over loopback with 2 event loop threads. Thousands of clients connect at once and each pipelines PING, an ORDER and STOCK in a single write,
+	 * then reads the answers, which must come back in the order of the commands even though the order completes last.
+	 * One more client speaks HTTP and pipelines an order and a menu request on the same connection.
+	 * A last client sends restocks by a negative amount, by more than fits in the container, mixing ingredients with and without amounts and with an amount which is
+	 * not a number, which must all be refused and leave the stock as it was.
+	 */
+	public static void orderServerTest() throws Exception {
+		System.out.println("\n\n\n Running orderServerTest \n\n\n");
+		java.io.File file = java.io.File.createTempFile("server", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 64}, \"admission\": {\"queue_capacity\": 8192, \"policy\": \"reject\"}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 500, \"hot_milk\": 500}, "
+				+ "\"beverages\": {\"hot_tea\": {\"hot_water\": 70, \"hot_milk\": 70}}}}");
+		Machine machine = Machine.CreateMachine(file.getPath());
+		machine.SetPreparationTime(0);
+		machine.SetFullCapacityToInfinite();
+		int clients = 5000;
+		try (OrderServer server = new OrderServer(machine, 0, 2)) {
+			server.start();
+			java.net.InetSocketAddress address = new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), server.getPort());
+			long start = System.nanoTime();
+			java.nio.channels.SocketChannel[] channels = new java.nio.channels.SocketChannel[clients];
+			for (int i=0; i<clients; i++) {
+				channels[i] = java.nio.channels.SocketChannel.open(address);
+			}
+			long connected = System.nanoTime();
+			for (java.nio.channels.SocketChannel channel: channels) {
+				channel.write(java.nio.ByteBuffer.wrap("PING\nORDER hot_tea\nSTOCK\n".getBytes()));
+			}
+			int in_order = 0;
+			String sample = null;
+			java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(4096);
+			for (java.nio.channels.SocketChannel channel: channels) {
+				buffer.clear();
+				String answers = "";
+				while (answers.chars().filter(c -> c == '\n').count() < 3 && channel.read(buffer) > 0) {
+					answers = new String(buffer.array(), 0, buffer.position());
+				}
+				String[] lines = answers.split("\n");
+				if (lines.length == 3 && lines[0].equals("OK") && lines[1].startsWith("OK hot_tea ") && lines[2].startsWith("OK hot_milk=")) {
+					in_order++;
+				} else if (sample == null) {
+					sample = answers;
+				}
+			}
+			long answered = System.nanoTime();
+			System.out.printf("%d clients connected in %d ms, %d of them got their 3 answers in order in %d ms. %d connections open on the server\n", clients,
+					(connected - start) / 1000000, in_order, (answered - connected) / 1000000, server.getConnectionCount());
+			if (sample != null) {
+				System.out.println("unexpected answers: " + sample);
+			}
+			for (java.nio.channels.SocketChannel channel: channels) {
+				channel.close();
+			}
+			
+			try (java.nio.channels.SocketChannel http = java.nio.channels.SocketChannel.open(address)) {
+				http.write(java.nio.ByteBuffer.wrap(("POST /orders/hot_tea?priority=interactive HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n"
+						+ "GET /menu HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes()));
+				StringBuilder response = new StringBuilder();
+				buffer.clear();
+				while (http.read(buffer) > 0) {
+					response.append(new String(buffer.array(), 0, buffer.position()));
+					buffer.clear();
+				}
+				String text = response.toString();
+				int order = text.indexOf("\"status\":\"PREPARED\"");
+				int menu = text.indexOf("[\"hot_tea\"]");
+				System.out.println(text);
+				System.out.println(order > 0 && menu > order && text.indexOf("HTTP/1.1 200 OK") == 0 ? "http answers came back in order" : "FAILED");
+			}
+			
+			Map<String, Integer>stock = machine.getAvailableIngredients();
+			try (java.nio.channels.SocketChannel restocker = java.nio.channels.SocketChannel.open(address)) {
+				restocker.write(java.nio.ByteBuffer.wrap("RESTOCK hot_milk=-2147483648\nRESTOCK hot_milk=2147483647\nRESTOCK hot_water hot_milk=50\nRESTOCK hot_milk=lots\n".getBytes()));
+				buffer.clear();
+				String answers = "";
+				while (answers.chars().filter(c -> c == '\n').count() < 4 && restocker.read(buffer) > 0) {
+					answers = new String(buffer.array(), 0, buffer.position());
+				}
+				String[] lines = answers.split("\n");
+				System.out.print(answers);
+				System.out.println(lines.length == 4 && Arrays.stream(lines).allMatch(answer -> answer.startsWith("ERR BAD_REQUEST")) && stock.equals(machine.getAvailableIngredients())
+						? "bad restock amounts are refused and the stock is untouched" : "FAILED");
+			}
+			System.out.println(in_order == clients ? "every client got its answers in order" : "FAILED");
+		}
+	}
+
+	/*
+	 * This test drives a machine with 2 outlets taking 1 second per beverage and a blocking admission queue of 2 with open loop load: 4 orders per second for 4 seconds,
+	 * twice what the machine can make. The queue fills and holds the generator, so the orders after are placed late.
+	 * The latency from the intended time must then be well above the latency from the actual time, which hides the wait behind the held orders.
+	 * A short trace, one CSV and one JSON lines file, is then replayed 4 times faster than recorded and every order of it should be prepared.
+	 * A CSV trace with a mistyped time after its header must be refused with the line of the mistake rather than losing that order.
+	 */
+	public static void loadGeneratorTest() throws Exception {
+		System.out.println("\n\n\n Running loadGeneratorTest \n\n\n");
+		java.io.File file = java.io.File.createTempFile("load", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 2}, \"admission\": {\"queue_capacity\": 2, \"policy\": \"block\", \"timeout_ms\": 10000}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 100000, \"hot_milk\": 100000}, "
+				+ "\"beverages\": {\"hot_tea\": {\"hot_water\": 70, \"hot_milk\": 70}, \"hot_coffee\": {\"hot_water\": 100, \"hot_milk\": 400}}}}");
+		Machine machine = Machine.CreateMachine(file.getPath());
+		machine.SetPreparationTime(1);
+		LoadGenerator rush = new LoadGenerator(machine, 7);
+		Map<String, Double>mix = new HashMap<>();
+		mix.put("hot_tea", 3.0);
+		mix.put("hot_coffee", 1.0);
+		rush.addProfile(4000, 4, mix, OrderPriority.NORMAL);
+		LoadReport report = rush.run();
+		System.out.println(report);
+		long corrected = report.getCorrectedLatencyMillis().get("p99");
+		long uncorrected = report.getUncorrectedLatencyMillis().get("p99");
+		System.out.println(report.getMaxLagMillis() > 1000 && corrected > uncorrected + 1000 ? "the held orders show up in the corrected latency" : "FAILED");
+		
+		java.io.File csv = java.io.File.createTempFile("trace", ".csv");
+		csv.deleteOnExit();
+		java.nio.file.Files.writeString(csv.toPath(), "at_ms,beverage,priority,source\n0,hot_tea,interactive,kiosk-1\n1500,hot_coffee,,kiosk-2\n# a comment\n3000,hot_tea\n");
+		java.io.File jsonl = java.io.File.createTempFile("trace", ".jsonl");
+		jsonl.deleteOnExit();
+		java.nio.file.Files.writeString(jsonl.toPath(), "{\"at_ms\": 500, \"beverage\": \"hot_tea\", \"priority\": \"bulk\", \"source\": \"app\"}\n{\"at_ms\": 2500, \"beverage\": \"hot_coffee\"}\n");
+		LoadGenerator replay = new LoadGenerator(machine, 0);
+		replay.loadTrace(csv.getPath());
+		replay.loadTrace(jsonl.getPath());
+		replay.setSpeed(4);
+		LoadReport replayed = replay.run();
+		System.out.println(replayed);
+		System.out.println(replayed.getOrderCount() == 5 && replayed.getPreparedCount() == 5 && replayed.getPlacingMillis() < 1500 ? "the trace was replayed 4 times faster" : "FAILED");
+		
+		java.nio.file.Files.writeString(csv.toPath(), "at_ms,beverage\n0,hot_tea\n15OO,hot_coffee\n");
+		try {
+			new LoadGenerator(machine, 0).loadTrace(csv.getPath());
+			System.out.println("FAILED, the mistyped time was skipped");
+		} catch (java.io.IOException e) {
+			System.out.println(e.getMessage());
+			System.out.println(e.getMessage().contains("at line 3") ? "only the header line is skipped" : "FAILED");
+		}
+	}
+
+	/*
+	 * This test simulates an hour of a machine with 8 outlets preparing hot_coffee in stages: 1 second heating water on a boiler, 1.5 seconds steaming milk on one of 2 steamers
+	 * and 1 second dispensing. Orders come at 2 per second, more than the machine can make. With 1 boiler the boiler should be the bottleneck at about 1 coffee per second,
+	 * and with 2 boilers the steamers should take over at about 1.3 per second. Either way far fewer than the 8 outlets could make if preparing only held an outlet.
+	 * Then a machine on real time prepares one coffee in short stages, which must complete on a thread of its own timer execution rather than on the timer shared by every machine.
+	 */
+	public static void preparationPipelineTest() throws Exception {
+		System.out.println("\n\n\n Running preparationPipelineTest \n\n\n");
+		String settings = "{\"machine\": {\"outlets\": {\"count_n\": 8}, \"admission\": {\"queue_capacity\": 32}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 10000000, \"hot_milk\": 10000000}, "
+				+ "\"beverages\": {\"hot_coffee\": {\"hot_water\": 100, \"hot_milk\": 400}}, "
+				+ "\"preparation\": {\"resources\": {\"boiler\": %d, \"steamer\": 2}, \"stages\": {\"hot_coffee\": [{\"stage\": \"heat\", \"resource\": \"boiler\", \"ms\": 1000}, "
+				+ "{\"stage\": \"steam\", \"resource\": \"steamer\", \"ms\": 1500}, {\"stage\": \"dispense\", \"ms\": 1000}]}}}}";
+		String[] expected = {"boiler", "steamer"};
+		boolean passed = true;
+		for (int boilers=1; boilers<=2; boilers++) {
+			java.io.File file = java.io.File.createTempFile("pipeline", ".json");
+			file.deleteOnExit();
+			java.nio.file.Files.writeString(file.toPath(), String.format(settings, boilers));
+			Simulation simulation = new Simulation(file.getPath(), 11);
+			simulation.addPhase(3600000, 2);
+			SimulationReport hour = simulation.run();
+			System.out.println(hour);
+			System.out.println("resource utilisation " + hour.getMetrics().getResourceUtilisation() + " bottleneck " + hour.getMetrics().getBottleneck());
+			passed &= hour.getMetrics().getBottleneck().equals(expected[boilers - 1]);
+		}
+		System.out.println(passed ? "the busiest shared resource bounds the machine" : "FAILED");
+		
+		java.io.File file = java.io.File.createTempFile("pipeline", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), String.format(settings.replace("\"outlets\": {\"count_n\": 8}", "\"outlets\": {\"count_n\": 8}, \"execution\": {\"mode\": \"timer\", \"threads\": 2}")
+				.replace("\"ms\": 1000", "\"ms\": 10").replace("\"ms\": 1500", "\"ms\": 10"), 1));
+		Machine machine = Machine.CreateMachine(file.getPath());
+		OrderResult coffee = machine.submitOrder("hot_coffee").thenApply(result -> {
+			System.out.println(result.getBeverage() + " completed on " + Thread.currentThread().getName());
+			return Thread.currentThread().getName().equals("machine-timer") ? null : result;
+		}).get();
+		System.out.println(coffee != null && coffee.isPrepared() ? "the stages run on the threads of the machine" : "FAILED");
+	}
+
+	/*
+	 * This test simulates an hour of about a million orders, at 300 per second with no preparation time, and then queries the order history of the machine.
+	 * The ingredients used by the prepared orders in the history must add up to what was taken from the containers, and every order must be in the history.
+	 * Once warmed up, each query scans the whole hour, or the last 10 minutes for the latencies, in a few milliseconds.
+	 */
+	public static void orderHistoryTest() throws Exception {
+		System.out.println("\n\n\n Running orderHistoryTest \n\n\n");
+		java.io.File file = java.io.File.createTempFile("history", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 64}, \"admission\": {\"queue_capacity\": 64}, "
+				+ "\"history\": {\"segment_ms\": 60000, \"max_segments\": 120}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 500000000, \"hot_milk\": 500000000, \"sugar_syrup\": 500000000, \"tea_leaves_syrup\": 500000000}, "
+				+ "\"beverages\": {\"hot_tea\": {\"hot_water\": 200, \"hot_milk\": 100, \"sugar_syrup\": 10, \"tea_leaves_syrup\": 30}, "
+				+ "\"hot_coffee\": {\"hot_water\": 100, \"hot_milk\": 400, \"sugar_syrup\": 50}, \"black_tea\": {\"hot_water\": 300, \"tea_leaves_syrup\": 30}}}}");
+		Simulation simulation = new Simulation(file.getPath(), 5);
+		simulation.setPreparationTime(0);
+		simulation.addPhase(3600000, 300);
+		SimulationReport hour = simulation.run();
+		System.out.println(hour);
+		OrderHistory history = hour.getHistory();
+		System.out.printf("history keeps %d orders in %.1f MB off the heap\n", history.getOrderCount(), history.getMemoryBytes() / 1048576.0);
+		
+		//the first queries warm up the scans.
+		for (int i=0; i<20; i++) {
+			history.getConsumption(3600000);
+			history.getPeakOrdersPerMinute(3600000);
+			history.getLatencyPercentilesMicros(600000);
+		}
+		long start = System.nanoTime();
+		Map<String, Long>consumption = history.getConsumption(3600000);
+		long consumption_micros = (System.nanoTime() - start) / 1000;
+		start = System.nanoTime();
+		Map<String, Long>drained = history.getConsumptionByBeverage("hot_milk", 3600000);
+		long drained_micros = (System.nanoTime() - start) / 1000;
+		start = System.nanoTime();
+		long peak = history.getPeakOrdersPerMinute(3600000);
+		long peak_micros = (System.nanoTime() - start) / 1000;
+		start = System.nanoTime();
+		Map<String, Long>latencies = history.getLatencyPercentilesMicros(600000);
+		long latency_micros = (System.nanoTime() - start) / 1000;
+		System.out.printf("consumption in the last hour %s in %d us%nhot_milk by beverage %s in %d us%npeak %d orders per minute in %d us%n"
+				+ "latency of the last 10 minutes (us) %s in %d us%nrejections in the last hour %s%n",
+				consumption, consumption_micros, drained, drained_micros, peak, peak_micros, latencies, latency_micros, history.getRejectionsByReason(3600000));
+		
+		boolean consistent = history.getOrderCount() == hour.getOrderCount() && history.getDroppedCount() == 0;
+		for (Entry<String, Integer>level: hour.getMetrics().getIngredientLevels().entrySet()) {
+			consistent &= consumption.getOrDefault(level.getKey(), 0L) == 500000000L - level.getValue();
+		}
+		System.out.println(consistent ? "the history accounts for every order and every drop of the ingredients" : "FAILED");
+	}
+
+	/*
+	 * This test checks the admission control. A machine with 4 outlets, a queue of 100 and 1 second preparation limits every source to 2 orders per second with bursts of 5,
+	 * and sheds low priority orders once the outlets are busy and the queue is half full. A bot ordering in a tight loop should get its burst and then RATE_LIMITED,
+	 * while a customer ordering at the same time is still served. With the queue filled past half, part of the BULK orders should be SHED and no INTERACTIVE one.
+	 * Rejections by the admission control should cost well under a microsecond each, less than an order rejected by an exception.
+	 * A flood of orders from 200000 sources never seen before, far more than the 10000 the machine keeps track of, should cost little more per order than the exception.
+	 */
+	public static void admissionControlTest() throws Exception {
+		System.out.println("\n\n\n Running admissionControlTest \n\n\n");
+		java.io.File file = java.io.File.createTempFile("throttle", ".json");
+		file.deleteOnExit();
+		java.nio.file.Files.writeString(file.toPath(), "{\"machine\": {\"outlets\": {\"count_n\": 4}, \"admission\": {\"queue_capacity\": 100, \"policy\": \"reject\"}, "
+				+ "\"throttle\": {\"client_rate\": 2, \"client_burst\": 5, \"shed_utilisation\": 1, \"shed_queue_fill\": 0.5}, "
+				+ "\"total_items_quantity\": {\"hot_water\": 50000000}, \"beverages\": {\"hot_tea\": {\"hot_water\": 10}}}}");
+		Machine machine = Machine.CreateMachine(file.getPath());
+		machine.SetPreparationTime(1);
+		
+		int bot_admitted = 0;
+		int bot_limited = 0;
+		for (int i=0; i<1000; i++) {
+			//orders taken are still waiting or being prepared, rejected ones are already complete.
+			OrderResult result = machine.submitOrder("hot_tea", 0, OrderPriority.INTERACTIVE, "bot").getNow(null);
+			OrderResult.FailureReason reason = result == null ? OrderResult.FailureReason.NONE : result.getFailureReason();
+			bot_admitted += reason == OrderResult.FailureReason.NONE ? 1 : 0;
+			bot_limited += reason == OrderResult.FailureReason.RATE_LIMITED ? 1 : 0;
+		}
+		OrderResult customer = machine.submitOrder("hot_tea", 0, OrderPriority.INTERACTIVE, "customer").get();
+		System.out.printf("bot: %d orders taken, %d rate limited. customer: %s\n", bot_admitted, bot_limited, customer.getMessage());
+		
+		//the cost of turning an order away, once the rejections are warm.
+		for (int i=0; i<1000000; i++) {
+			machine.submitOrder("hot_tea", 0, OrderPriority.INTERACTIVE, "bot");
+		}
+		long start = System.nanoTime();
+		for (int i=0; i<1000000; i++) {
+			machine.submitOrder("hot_tea", 0, OrderPriority.INTERACTIVE, "bot");
+		}
+		long rejection_nanos = (System.nanoTime() - start) / 1000000;
+		//against an order for a beverage the machine does not serve, rejected by an exception. The machine itself is not rate limited.
+		for (int i=0; i<1000000; i++) {
+			machine.submitOrder("espresso", 0, OrderPriority.INTERACTIVE, "");
+		}
+		start = System.nanoTime();
+		for (int i=0; i<1000000; i++) {
+			machine.submitOrder("espresso", 0, OrderPriority.INTERACTIVE, "");
+		}
+		long exception_nanos = (System.nanoTime() - start) / 1000000;
+		
+		//walk-up customers fill the queue past half, then bulk, normal and interactive orders arrive from sources of their own.
+		for (int i=0; i<70; i++) {
+			machine.submitOrder("hot_tea", 0, OrderPriority.INTERACTIVE, "walk_up_" + i);
+		}
+		int[] shed = new int[OrderPriority.values().length];
+		for (int i=0; i<20; i++) {
+			for (OrderPriority priority: OrderPriority.values()) {
+				OrderResult result = machine.submitOrder("hot_tea", 0, priority, priority.name() + "_" + i).getNow(null);
+				shed[priority.ordinal()] += result != null && result.getFailureReason() == OrderResult.FailureReason.SHED ? 1 : 0;
+			}
+		}
+		
+		//every source of the flood is new. Its order is admitted and rejected for the unknown beverage, or turned away by the shared bucket once 10000 sources are known.
+		start = System.nanoTime();
+		for (int i=0; i<200000; i++) {
+			machine.submitOrder("espresso", 0, OrderPriority.INTERACTIVE, "flood_" + i);
+		}
+		long flood_nanos = (System.nanoTime() - start) / 200000;
+		
+		System.out.printf("shed of 20 orders each: interactive %d, normal %d, bulk %d. a rate limited order takes %d ns to reject, an unknown beverage %d ns, "
+				+ "one from a flood of new sources %d ns\n", shed[OrderPriority.INTERACTIVE.ordinal()], shed[OrderPriority.NORMAL.ordinal()], shed[OrderPriority.BULK.ordinal()],
+				rejection_nanos, exception_nanos, flood_nanos);
+		boolean passed = bot_admitted >= 5 && bot_admitted < 10 && customer.isPrepared() && shed[OrderPriority.INTERACTIVE.ordinal()] == 0
+				&& shed[OrderPriority.BULK.ordinal()] > 0 && shed[OrderPriority.NORMAL.ordinal()] < shed[OrderPriority.BULK.ordinal()] && flood_nanos < 4 * exception_nanos;
+		System.out.println(passed ? "abusive clients are limited and low priority orders are shed first" : "FAILED");
+	}
+	
+	/*
+	 * This is a stress test for the outlet accounting. With zero preparation time and unlimited ingredients, four times as many threads as outlets keep submitting orders.
+	 * Every order must be served by an outlet between 1 and n, and once all of them are done no outlet should be left busy. 
+	 */
+	public static void outletAccountingStressTest() throws InterruptedException {
+		System.out.println("\n\n\n Running outletAccountingStressTest \n\n\n");
+		Thread.sleep(2000);
+		myCoffeeMachine.SetPreparationTime(0);
+		myCoffeeMachine.SetFullCapacityToInfinite();
+		AtomicInteger prepared = new AtomicInteger();
+		AtomicInteger bad_outlet = new AtomicInteger();
+		ExecutorService stressors = Executors.newFixedThreadPool(outlet_count*4);
+		for (int i=0; i<outlet_count*4; i++) {
+			stressors.execute(() -> {
+				for (int j=0; j<200; j++) {
+					OrderResult result = myCoffeeMachine.submitOrder(beverages[j%beverages.length]).join();
+					if (result.isPrepared()) {
+						prepared.incrementAndGet();
+						if (result.getOutlet() < 1 || result.getOutlet() > outlet_count) {
+							bad_outlet.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		stressors.shutdown();
+		stressors.awaitTermination(1, TimeUnit.MINUTES);
+		System.out.printf("prepared %d orders, %d with an invalid outlet, %d outlets left busy. %s\n", prepared.get(), bad_outlet.get(), myCoffeeMachine.getBusyOutletCount(),
+				bad_outlet.get() == 0 && myCoffeeMachine.getBusyOutletCount() == 0 ? "outlet accounting is consistent" : "FAILED");
+		myCoffeeMachine.SetPreparationTime(5);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+	}
+	
+	/*
+	 * This is a stress test for the ingredient reservation. Preparation time is set to zero and as many threads as outlets keep ordering the same beverage until it runs out of ingredients.
+	 * Every prepared beverage must be backed by stock: the quantity consumed of each ingredient should be exactly the number of prepared beverages times the quantity in the recipe,
+	 * and no ingredient should ever go below zero. Any mismatch means an order was oversold.
+	 */
+	public static void stockNeverOversoldStressTest() throws InterruptedException {
+		System.out.println("\n\n\n Running stockNeverOversoldStressTest \n\n\n");
+		myCoffeeMachine.SetPreparationTime(0);
+		for (String beverage: beverages) {
+			myCoffeeMachine.fullRestockToInitialCapacity(null);
+			Thread.sleep(2000);
+			Map<String, Integer>before = myCoffeeMachine.getAvailableIngredients();
+			AtomicInteger prepared = new AtomicInteger();
+			ExecutorService stressors = Executors.newFixedThreadPool(outlet_count);
+			for (int i=0; i<outlet_count; i++) {
+				stressors.execute(() -> {
+					for (int attempt=0; attempt<100000; attempt++) {
+						String result = myCoffeeMachine.placeOrderSerially(beverage);
+						if (result.endsWith(" is prepared.")) {
+							prepared.incrementAndGet();
+						} else if (result.contains(" not sufficient") || result.contains(" not available")) {
+							break;
+						}
+					}
+				});
+			}
+			stressors.shutdown();
+			stressors.awaitTermination(1, TimeUnit.MINUTES);
+			
+			Map<String, Integer>after = myCoffeeMachine.getAvailableIngredients();
+			boolean oversold = false;
+			for (Entry<String, Integer>e: myCoffeeMachine.getBeverageRecipe(beverage).entrySet()) {
+				if (!before.containsKey(e.getKey())) {
+					continue;
+				}
+				int consumed = before.get(e.getKey()) - after.get(e.getKey());
+				if (after.get(e.getKey()) < 0 || consumed != prepared.get()*e.getValue()) {
+					System.out.printf("OVERSOLD %s: prepared %d, consumed %d of %s, left %d\n", beverage, prepared.get(), consumed, e.getKey(), after.get(e.getKey()));
+					oversold = true;
+				}
+			}
+			System.out.printf("%s: prepared %d beverages. %s\n", beverage, prepared.get(), oversold ? "FAILED" : "stock is consistent");
+		}
+		myCoffeeMachine.SetPreparationTime(5);
+		myCoffeeMachine.fullRestockToInitialCapacity(null);
+	}
+	
 	/*
 	 * This testcase try to simulate condition where a beverage is ordered and then a call is made to check if some ingredients are running low. 
 	 * this is repeated until some ingredients start running low.
@@ -0,0 +1,489 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.gson.Gson;
+
+import Machine.CoffeeMachine;
+import Machine.OrderPriority;
+import Machine.OrderResult;
+
+/*
+ * A client of the OrderServer. It is only touched by the thread of its event loop, except for the answers of orders which are filled in by the thread completing them.
+ * Requests are parsed as they arrive, and each one gets an answer slot at the end of a queue. Slots are written out from the head as soon as they are filled in,
+ * so answers keep the order of the requests whatever order the orders complete in.
+ * A client sending more requests than it reads answers for is not read from until it has caught up, so it can not make the server queue answers without bound.
+ * Answers which never change, like the OK of a restock, are shared read-only buffers written without being copied.
+ */
+final class Connection {
+
+	//a request line longer than this closes the connection.
+	private static final int MAX_LINE = 4096;
+	//answers waiting to be written before the connection stops being read.
+	private static final int MAX_PIPELINED = 256;
+
+	private static final int UNKNOWN = 0, TEXT = 1, HTTP = 2;
+
+	private static final Gson GSON = new Gson();
+	private static final ByteBuffer OK = constant("OK\n");
+	private static final String RATE_LIMITED_MESSAGE = "Too many requests from this client. Please try again later";
+	private static final ByteBuffer HTTP_NOT_FOUND = constant("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+
+	private static final class Answer {
+		volatile ByteBuffer buffer;
+		boolean close_after;
+	}
+
+	private final OrderServer server;
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final CoffeeMachine machine;
+	//the source of the orders of this client for the fair sharing of the outlets and the rate limit of the machine.
+	//It is the host of the client, so a kiosk opening many connections still gets one share and one rate.
+	private final String source;
+	private SelectionKey key;
+	private final ArrayDeque<Answer> answers = new ArrayDeque<>();
+	private ByteBuffer[] gather = new ByteBuffer[16];
+	//the start of a request line which did not arrive whole in the last read. null if there is none.
+	private byte[] partial;
+	private int protocol = UNKNOWN;
+	//the http request being read. A method of null means the request line has not been read yet.
+	private String http_method;
+	private String http_path;
+	private boolean http_close;
+	private long http_content_length;
+	//bytes of the body of the http request still to be skipped. The body is only read once the head is over.
+	private long body_remaining;
+	private boolean reading = true;
+	//the client is done sending, so the connection is closed once its answers are written.
+	private boolean closing;
+	private boolean closed;
+
+	Connection(OrderServer _server, EventLoop _loop, SocketChannel _channel) throws IOException {
+		server = _server;
+		loop = _loop;
+		channel = _channel;
+		machine = _server.getMachine();
+		source = "client:" + ((InetSocketAddress)_channel.getRemoteAddress()).getAddress().getHostAddress();
+	}
+
+	void attach(SelectionKey _key) {
+		key = _key;
+	}
+
+	//reads whatever the client sent into the buffer of the loop and handles every request which arrived whole.
+	void read(ByteBuffer buffer) {
+		buffer.clear();
+		if (partial != null) {
+			buffer.put(partial);
+			partial = null;
+		}
+		int read;
+		try {
+			read = channel.read(buffer);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		if (read < 0) {
+			closing = true;
+			stopReading();
+			flush();
+			return;
+		}
+		buffer.flip();
+		parse(buffer);
+		if (buffer.hasRemaining() && !closing) {
+			if (buffer.remaining() > MAX_LINE) {
+				answer(error("BAD_REQUEST", "request line longer than " + MAX_LINE + " bytes")).close_after = true;
+				closing = true;
+				stopReading();
+			} else {
+				partial = new byte[buffer.remaining()];
+				buffer.get(partial);
+			}
+		}
+		flush();
+	}
+
+	private void parse(ByteBuffer buffer) {
+		while (buffer.hasRemaining() && !closing) {
+			if (body_remaining > 0) {
+				int skipped = (int)Math.min(buffer.remaining(), body_remaining);
+				buffer.position(buffer.position() + skipped);
+				body_remaining -= skipped;
+				if (body_remaining == 0) {
+					httpRequest();
+				}
+				continue;
+			}
+			int start = buffer.position();
+			int end = start;
+			while (end < buffer.limit() && buffer.get(end) != '\n') {
+				end++;
+			}
+			if (end == buffer.limit()) {
+				return;
+			}
+			int length = end - start;
+			if (length > 0 && buffer.get(end - 1) == '\r') {
+				length--;
+			}
+			byte[] line = new byte[length];
+			buffer.get(line);
+			buffer.position(end + 1);
+			handleLine(new String(line, StandardCharsets.UTF_8));
+		}
+	}
+
+	private void handleLine(String line) {
+		if (protocol == UNKNOWN && !line.isEmpty()) {
+			protocol = line.endsWith(" HTTP/1.1") || line.endsWith(" HTTP/1.0") ? HTTP : TEXT;
+		}
+		if (protocol == TEXT) {
+			if (!line.isBlank()) {
+				command(line.trim().split(" +"));
+			}
+		} else if (protocol == HTTP) {
+			httpLine(line);
+		}
+	}
+
+	private void command(String[] words) {
+		switch (words[0].toUpperCase()) {
+		case "ORDER":
+			if (words.length < 2 || words.length > 3) {
+				answer(error("BAD_REQUEST", "usage: ORDER <beverage> [interactive|normal|bulk]"));
+				return;
+			}
+			OrderPriority priority = priority(words.length == 3 ? words[2] : null);
+			if (priority == null) {
+				answer(error("BAD_REQUEST", "unknown priority " + words[2]));
+				return;
+			}
+			order(words[1], priority, false);
+			break;
+		case "MENU":
+			answer(line("OK " + String.join(" ", machine.getServableBeverages())));
+			break;
+		case "STOCK":
+			answer(line("OK " + pairs(new TreeMap<>(machine.getAvailableIngredients()), false)));
+			break;
+		case "LOW":
+			answer(line("OK " + pairs(new TreeMap<>(machine.getIngredientsRunningLow()), true)));
+			break;
+		case "RESTOCK":
+			if (!machine.admitRequest(source)) {
+				answer(error(OrderResult.FailureReason.RATE_LIMITED.name(), RATE_LIMITED_MESSAGE));
+				break;
+			}
+			try {
+				restock(Arrays.copyOfRange(words, 1, words.length));
+				answer(OK.duplicate());
+			} catch (IllegalArgumentException e) {
+				answer(error("BAD_REQUEST", e.getMessage()));
+			}
+			break;
+		case "PING":
+			answer(OK.duplicate());
+			break;
+		default:
+			answer(error("BAD_REQUEST", "unknown command " + words[0]));
+		}
+	}
+
+	private void httpLine(String line) {
+		if (http_method == null) {
+			String[] request = line.split(" ");
+			if (line.isEmpty()) {
+				return;
+			}
+			if (request.length != 3) {
+				answer(httpResponse("400 Bad Request", "{\"message\":\"bad request line\"}", true)).close_after = true;
+				closing = true;
+				stopReading();
+				return;
+			}
+			http_method = request[0];
+			http_path = request[1];
+			http_close = "HTTP/1.0".equals(request[2]);
+		} else if (line.isEmpty()) {
+			body_remaining = http_content_length;
+			http_content_length = 0;
+			if (body_remaining == 0) {
+				httpRequest();
+			}
+		} else {
+			int colon = line.indexOf(':');
+			String header = colon < 0 ? line : line.substring(0, colon).trim().toLowerCase();
+			String value = colon < 0 ? "" : line.substring(colon + 1).trim();
+			if ("content-length".equals(header)) {
+				try {
+					http_content_length = Math.max(0, Long.parseLong(value));
+				} catch (NumberFormatException e) {
+					http_content_length = 0;
+				}
+			} else if ("connection".equals(header)) {
+				http_close = "close".equalsIgnoreCase(value) || (http_close && !"keep-alive".equalsIgnoreCase(value));
+			}
+		}
+	}
+
+	//handles the http request whose head and body were read.
+	private void httpRequest() {
+		String method = http_method;
+		String path = http_path;
+		boolean close = http_close;
+		http_method = null;
+		http_path = null;
+		http_close = false;
+		String query = "";
+		int mark = path.indexOf('?');
+		if (mark >= 0) {
+			query = path.substring(mark + 1);
+			path = path.substring(0, mark);
+		}
+		String[] parts = path.substring(path.startsWith("/") ? 1 : 0).split("/");
+		Answer answer;
+		if ("POST".equals(method) && parts.length == 2 && "orders".equals(parts[0])) {
+			OrderPriority priority = priority(query.startsWith("priority=") ? query.substring(9) : null);
+			answer = priority == null ? answer(httpResponse("400 Bad Request", "{\"message\":\"unknown priority\"}", close)) : order(parts[1], priority, close);
+		} else if ("GET".equals(method) && parts.length == 1 && "menu".equals(parts[0])) {
+			answer = answer(httpResponse("200 OK", GSON.toJson(machine.getServableBeverages()), close));
+		} else if ("GET".equals(method) && parts.length == 1 && "stock".equals(parts[0])) {
+			answer = answer(httpResponse("200 OK", GSON.toJson(new TreeMap<>(machine.getAvailableIngredients())), close));
+		} else if ("GET".equals(method) && parts.length == 1 && "low".equals(parts[0])) {
+			answer = answer(httpResponse("200 OK", GSON.toJson(new TreeMap<>(machine.getIngredientsRunningLow())), close));
+		} else if ("POST".equals(method) && parts.length <= 3 && "restock".equals(parts[0])) {
+			if (!machine.admitRequest(source)) {
+				answer = answer(httpResponse("429 Too Many Requests", GSON.toJson(Map.of("message", RATE_LIMITED_MESSAGE)), close));
+			} else {
+				try {
+					restock(parts.length == 3 ? new String[] {parts[1] + "=" + parts[2]} : Arrays.copyOfRange(parts, 1, parts.length));
+					answer = answer(httpResponse("200 OK", GSON.toJson(new TreeMap<>(machine.getAvailableIngredients())), close));
+				} catch (IllegalArgumentException e) {
+					answer = answer(httpResponse("400 Bad Request", GSON.toJson(Map.of("message", e.getMessage())), close));
+				}
+			}
+		} else {
+			answer = answer(close ? httpResponse("404 Not Found", "", true) : HTTP_NOT_FOUND.duplicate());
+		}
+		if (close) {
+			answer.close_after = true;
+			closing = true;
+			stopReading();
+		}
+	}
+
+	//submits the order and gives its answer slot, filled in when the order completes.
+	private Answer order(String beverage, OrderPriority priority, boolean http_close_after) {
+		Answer answer = new Answer();
+		answers.add(answer);
+		CompletableFuture<OrderResult> result = machine.submitOrder(beverage, -1, priority, source);
+		if (result.isDone()) {
+			answer.buffer = encode(result.join(), http_close_after);
+		} else {
+			result.thenAccept(r -> {
+				answer.buffer = encode(r, http_close_after);
+				loop.answerReady(this);
+			});
+		}
+		pipelined();
+		return answer;
+	}
+
+	private ByteBuffer encode(OrderResult result, boolean http_close_after) {
+		if (protocol == TEXT) {
+			return result.isPrepared() ? line("OK " + result.getBeverage() + " " + result.getOutlet() + " " + result.getTotalTimeMillis())
+					: error(result.getFailureReason().name(), result.getMessage());
+		}
+		Map<String, Object> json = new LinkedHashMap<>();
+		json.put("beverage", result.getBeverage());
+		json.put("status", result.getStatus().name());
+		json.put("reason", result.getFailureReason().name());
+		json.put("message", result.getMessage());
+		json.put("outlet", result.getOutlet());
+		json.put("total_ms", result.getTotalTimeMillis());
+		//orders turned away by the rate limit or shed under load tell the client to back off, like any other http service would.
+		String status = result.getFailureReason() == OrderResult.FailureReason.RATE_LIMITED ? "429 Too Many Requests"
+				: result.getFailureReason() == OrderResult.FailureReason.SHED ? "503 Service Unavailable" : "200 OK";
+		return httpResponse(status, GSON.toJson(json), http_close_after);
+	}
+
+	/*
+	 * ingredients given alone are restocked to full, given as <ingredient>=<amount> they are restocked by the amount. None restocks everything.
+	 * A request mixing the two forms, or with an amount which is not a whole number, is refused with an IllegalArgumentException before anything is restocked,
+	 * and so is an amount the machine refuses because it is not positive or does not fit in the container.
+	 */
+	private void restock(String[] ingredients) {
+		if (ingredients.length == 0) {
+			machine.fullRestockToInitialCapacity(null);
+			return;
+		}
+		Map<String, Integer> amounts = new HashMap<>();
+		int given = 0;
+		for (String ingredient: ingredients) {
+			int equals = ingredient.indexOf('=');
+			if (equals >= 0) {
+				given++;
+				String amount = ingredient.substring(equals + 1);
+				try {
+					amounts.put(ingredient.substring(0, equals), Integer.parseInt(amount));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("the amount of " + ingredient.substring(0, equals) + " is not a whole number: " + amount);
+				}
+			}
+		}
+		if (given > 0 && given < ingredients.length) {
+			throw new IllegalArgumentException("give every ingredient an amount or none of them");
+		}
+		if (amounts.isEmpty()) {
+			machine.fullRestockToInitialCapacity(ingredients);
+		} else {
+			machine.restockIngredientsByAmount(amounts);
+		}
+	}
+
+	private static OrderPriority priority(String name) {
+		if (name == null) {
+			return OrderPriority.NORMAL;
+		}
+		for (OrderPriority priority: OrderPriority.values()) {
+			if (priority.name().equalsIgnoreCase(name)) {
+				return priority;
+			}
+		}
+		return null;
+	}
+
+	private static String pairs(Map<String, ?> values, boolean low) {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, ?> e: values.entrySet()) {
+			text.append(text.length() == 0 ? "" : " ").append(e.getKey()).append('=');
+			if (low) {
+				int[] levels = (int[])e.getValue();
+				text.append(levels[0]).append('/').append(levels[1]);
+			} else {
+				text.append(e.getValue());
+			}
+		}
+		return text.toString();
+	}
+
+	private Answer answer(ByteBuffer buffer) {
+		Answer answer = new Answer();
+		answer.buffer = buffer;
+		answers.add(answer);
+		pipelined();
+		return answer;
+	}
+
+	private void pipelined() {
+		if (answers.size() >= MAX_PIPELINED) {
+			stopReading();
+		}
+	}
+
+	//writes the answers ready at the head of the queue in one gathering write, and waits for the socket to take the rest if it is full.
+	void flush() {
+		if (closed) {
+			return;
+		}
+		int count = 0;
+		for (Answer answer: answers) {
+			ByteBuffer buffer = answer.buffer;
+			if (buffer == null) {
+				break;
+			}
+			if (count == gather.length) {
+				gather = Arrays.copyOf(gather, count*2);
+			}
+			gather[count++] = buffer;
+			if (answer.close_after) {
+				break;
+			}
+		}
+		if (count > 0) {
+			try {
+				channel.write(gather, 0, count);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			Arrays.fill(gather, 0, count, null);
+		}
+		while (!answers.isEmpty() && answers.peek().buffer != null && !answers.peek().buffer.hasRemaining()) {
+			if (answers.poll().close_after) {
+				close();
+				return;
+			}
+		}
+		boolean blocked = !answers.isEmpty() && answers.peek().buffer != null;
+		if (key.isValid()) {
+			key.interestOps(blocked ? key.interestOps() | SelectionKey.OP_WRITE : key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		if (closing && answers.isEmpty()) {
+			close();
+		} else if (!reading && !closing && answers.size() < MAX_PIPELINED/2) {
+			reading = true;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	private void stopReading() {
+		if (reading) {
+			reading = false;
+			if (key.isValid()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		server.disconnected();
+	}
+
+	private static ByteBuffer line(String text) {
+		return ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static ByteBuffer error(String reason, String message) {
+		return line("ERR " + reason + " " + String.valueOf(message).replace('\n', ' '));
+	}
+
+	private static ByteBuffer httpResponse(String status, String body, boolean close) {
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		byte[] head = ("HTTP/1.1 " + status + "\r\nContent-Type: application/json\r\nContent-Length: " + content.length
+				+ (close ? "\r\nConnection: close" : "") + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer response = ByteBuffer.allocate(head.length + content.length);
+		response.put(head).put(content).flip();
+		return response;
+	}
+
+	private static ByteBuffer constant(String text) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(text.length());
+		buffer.put(text.getBytes(StandardCharsets.US_ASCII)).flip();
+		return buffer.asReadOnlyBuffer();
+	}
+}
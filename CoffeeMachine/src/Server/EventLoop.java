@@ -0,0 +1,190 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * One thread of the OrderServer with its own selector. It reads and parses the requests of its connections and writes their answers.
+ * Other threads only talk to it through two queues: new connections handed over by the accepting loop, and connections with an answer ready, queued by the thread completing an order.
+ * The selector is woken once for everything queued since the loop last looked, not once per answer.
+ * All the connections of a loop read into the same direct buffer, so an idle connection holds no buffer at all.
+ */
+final class EventLoop implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final long ACCEPT_PAUSE_MILLIS = 100;
+
+	private final OrderServer server;
+	private final Selector selector;
+	private final Thread thread;
+	private final ByteBuffer read_buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean woken = new AtomicBoolean();
+	private volatile boolean open = true;
+	//the acceptor key while accepting is paused after a failed accept, and when it resumes.
+	private SelectionKey accept_paused;
+	private long accept_resumes_at;
+
+	EventLoop(OrderServer _server, int index) throws IOException {
+		server = _server;
+		selector = Selector.open();
+		thread = new Thread(this, "order-server-" + index);
+		thread.setDaemon(true);
+	}
+
+	void registerAcceptor(ServerSocketChannel acceptor) throws IOException {
+		acceptor.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void close() throws IOException {
+		open = false;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SelectionKey key: selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+	//hands a new connection to this loop. Called by the accepting loop.
+	void adopt(SocketChannel channel) {
+		accepted.add(channel);
+		wake();
+	}
+
+	//tells the loop the connection has an answer ready to be written. Called by any thread.
+	void answerReady(Connection connection) {
+		ready.add(connection);
+		wake();
+	}
+
+	private void wake() {
+		if (woken.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/*
+	 * Nothing a single connection or accept does ends the loop. A connection failing in an unexpected way is logged and closed,
+	 * and when accept fails, like with too many open files, the loop stops accepting for ACCEPT_PAUSE_MILLIS while it keeps serving its clients.
+	 * Only the selector itself failing ends the loop.
+	 */
+	public void run() {
+		while (open) {
+			try {
+				selector.select(accept_paused == null ? 0 : ACCEPT_PAUSE_MILLIS);
+			} catch (IOException | ClosedSelectorException e) {
+				if (open) {
+					e.printStackTrace();
+				}
+				return;
+			}
+			woken.set(false);
+			resumeAccepting();
+			SocketChannel channel;
+			while ((channel = accepted.poll()) != null) {
+				register(channel);
+			}
+			Connection connection;
+			while ((connection = ready.poll()) != null) {
+				try {
+					connection.flush();
+				} catch (RuntimeException e) {
+					failed(connection, e);
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept(key);
+					continue;
+				}
+				Connection selected = (Connection)key.attachment();
+				try {
+					if (key.isWritable()) {
+						selected.flush();
+					}
+					if (key.isValid() && key.isReadable()) {
+						selected.read(read_buffer);
+					}
+				} catch (RuntimeException e) {
+					failed(selected, e);
+				}
+			}
+		}
+	}
+
+	private void failed(Connection connection, RuntimeException e) {
+		System.out.println("Closing a connection which failed: " + e);
+		e.printStackTrace();
+		connection.close();
+	}
+
+	private void accept(SelectionKey key) {
+		ServerSocketChannel acceptor = (ServerSocketChannel)key.channel();
+		try {
+			SocketChannel channel;
+			while ((channel = acceptor.accept()) != null) {
+				EventLoop loop = server.nextLoop();
+				if (loop == this) {
+					register(channel);
+				} else {
+					loop.adopt(channel);
+				}
+			}
+		} catch (IOException e) {
+			//the connection stays in the backlog of the acceptor, so accepting again right away would fail again in a busy loop.
+			System.out.println("Could not accept a connection: " + e + ". Accepting again in " + ACCEPT_PAUSE_MILLIS + " ms.");
+			key.interestOps(0);
+			accept_paused = key;
+			accept_resumes_at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_PAUSE_MILLIS);
+		}
+	}
+
+	private void resumeAccepting() {
+		if (accept_paused != null && System.nanoTime() - accept_resumes_at >= 0) {
+			if (accept_paused.isValid()) {
+				accept_paused.interestOps(SelectionKey.OP_ACCEPT);
+			}
+			accept_paused = null;
+		}
+	}
+
+	private void register(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+			Connection connection = new Connection(server, this, channel);
+			connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+			server.connected();
+		} catch (IOException e) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
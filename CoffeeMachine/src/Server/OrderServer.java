@@ -0,0 +1,99 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Machine.CoffeeMachine;
+
+/*
+ * Serves a CoffeeMachine, a single machine or a whole FleetRouter, to kiosks and apps over the network.
+ * It is built on non-blocking NIO: a few event loop threads, each with its own selector, handle every connection, so tens of thousands of idle or slow clients cost
+ * no threads. The first loop also accepts the new connections and deals them out to the loops in turn. Orders are submitted with submitOrder and answered when their
+ * future completes, so a loop never waits for a beverage to be prepared.
+ *
+ * Two protocols are spoken on the same port, told apart by the first line a client sends:
+ * 1. The compact text protocol, one command per line, answered by one line starting with OK or ERR:
+ *      ORDER <beverage> [interactive|normal|bulk]   OK <beverage> <outlet> <total ms>  or  ERR <reason> <message>
+ *      MENU                                         OK <servable beverages>
+ *      STOCK                                        OK <ingredient>=<quantity> ...
+ *      LOW                                          OK <ingredient>=<quantity>/<max capacity> ...
+ *      RESTOCK                                      OK, every ingredient restocked to full
+ *      RESTOCK <ingredient> ...                     OK, the given ingredients restocked to full
+ *      RESTOCK <ingredient>=<amount> ...            OK, the given ingredients restocked by the amounts
+ *      PING                                         OK
+ * 2. HTTP/1.1 with JSON bodies: POST /orders/<beverage>?priority=<priority>, GET /menu, GET /stock, GET /low, POST /restock, POST /restock/<ingredient>
+ *    and POST /restock/<ingredient>/<amount>. Connections are kept alive unless the client asks otherwise.
+ * In both, a client may send many requests without waiting for the answers. The answers come back in the order of the requests, even though the orders complete
+ * in any order, and whatever answers are ready are written out in a single gathering write.
+ *
+ * A restock amount must be a positive whole number which fits in the container, and a restock gives amounts to all of its ingredients or to none of them.
+ * Otherwise it is answered with BAD_REQUEST, or 400 over HTTP, and nothing is restocked.
+ *
+ * Each client is its own source for the fair sharing of the outlets, so one client sending a burst of orders does not hold up the others.
+ * Restocks take from the same rate limit as its orders, and are answered with RATE_LIMITED, or 429 over HTTP, once it runs out.
+ * The admission queue of the machine should use the reject or drop_oldest policy, since with block a full queue holds the event loop for up to the timeout.
+ */
+public final class OrderServer implements Closeable {
+
+	private final CoffeeMachine machine;
+	private final ServerSocketChannel acceptor;
+	private final EventLoop[] loops;
+	private final AtomicInteger connections = new AtomicInteger();
+	private int next_loop;
+
+	//port 0 takes any free port, given by getPort once the server is created.
+	public OrderServer(CoffeeMachine _machine, int port, int threads) throws IOException {
+		machine = _machine;
+		acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(port), 4096);
+		acceptor.configureBlocking(false);
+		loops = new EventLoop[Math.max(1, threads)];
+		for (int i=0; i<loops.length; i++) {
+			loops[i] = new EventLoop(this, i);
+		}
+		loops[0].registerAcceptor(acceptor);
+	}
+
+	public void start() {
+		for (EventLoop loop: loops) {
+			loop.start();
+		}
+	}
+
+	public int getPort() {
+		return acceptor.socket().getLocalPort();
+	}
+
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	public void close() throws IOException {
+		acceptor.close();
+		for (EventLoop loop: loops) {
+			loop.close();
+		}
+	}
+
+	CoffeeMachine getMachine() {
+		return machine;
+	}
+
+	//the loop a new connection goes to. Only called by the first loop, which accepts the connections.
+	EventLoop nextLoop() {
+		EventLoop loop = loops[next_loop];
+		next_loop = (next_loop + 1) % loops.length;
+		return loop;
+	}
+
+	void connected() {
+		connections.incrementAndGet();
+	}
+
+	void disconnected() {
+		connections.decrementAndGet();
+	}
+}